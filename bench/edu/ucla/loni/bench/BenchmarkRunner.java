@@ -0,0 +1,67 @@
+package edu.ucla.loni.bench;
+
+import java.util.Arrays;
+
+/**
+ * Minimal JMH-style harness: warmup iterations followed by measured iterations,
+ * each iteration timed with System.nanoTime and reported as avg / p50 / p99 / max
+ */
+public class BenchmarkRunner {
+	/**
+	 * One benchmark iteration. setUp and tearDown are not measured.
+	 */
+	public static abstract class Task {
+		public void setUp() throws Exception {}
+		public abstract void run() throws Exception;
+		public void tearDown() throws Exception {}
+	}
+
+	private int warmup;
+	private int iterations;
+
+	public BenchmarkRunner(int warmup, int iterations){
+		this.warmup = warmup;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Runs the task and prints one result line
+	 * @param name name of the benchmark
+	 * @param operations number of operations done by one iteration (files parsed, files moved, ...)
+	 */
+	public void run(String name, int operations, Task task) throws Exception {
+		for (int i = 0; i < warmup; i++){
+			task.setUp();
+			task.run();
+			task.tearDown();
+		}
+
+		long[] times = new long[iterations];
+		for (int i = 0; i < iterations; i++){
+			task.setUp();
+			long start = System.nanoTime();
+			task.run();
+			times[i] = System.nanoTime() - start;
+			task.tearDown();
+		}
+
+		Arrays.sort(times);
+		long total = 0;
+		for (long t : times){
+			total += t;
+		}
+
+		double avgMs = total / (double) iterations / 1e6;
+		double opsPerSec = operations * iterations / (total / 1e9);
+
+		System.out.println(String.format(
+			"%-36s %10.3f ms/op avg %10.3f p50 %10.3f p99 %10.3f max %12.1f ops/s",
+			name, avgMs, percentile(times, 50), percentile(times, 99), times[times.length - 1] / 1e6, opsPerSec
+		));
+	}
+
+	private static double percentile(long[] sorted, int p){
+		int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+}
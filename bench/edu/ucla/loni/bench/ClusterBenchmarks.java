@@ -0,0 +1,186 @@
+package edu.ucla.loni.bench;
+
+import java.io.File;
+
+import java.util.ArrayList;
+
+import org.hsqldb.server.Server;
+
+import edu.ucla.loni.server.FileServiceImpl;
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * Several FileServiceImpl nodes in one process sharing an embedded HSQLDB server, as web
+ * nodes behind a load balancer would share the catalog database.
+ * <p>
+ * Run with war/WEB-INF/lib/*, the GWT servlet jar and the compiled src on the classpath:<br>
+ * {@code java edu.ucla.loni.bench.ClusterBenchmarks}
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ * <li>bench.dir - where the library is generated (default: java.io.tmpdir)</li>
+ * <li>bench.warmup / bench.iterations - iterations of cluster.propagate (default: 3 / 10)</li>
+ * <li>bench.size - library size (default: 1000)</li>
+ * <li>bench.nodes - nodes in the cluster (default: 3)</li>
+ * <li>bench.port - port of the HSQLDB server (default: 9137)</li>
+ * <li>edu.ucla.loni.cluster.poll / edu.ucla.loni.cluster.lease (default here: 100 / 1000 ms)</li>
+ * </ul>
+ * Benchmarks, all run in order:
+ * <ul>
+ * <li>cluster.scan - the indexer scans the library until every other node lists all of it</li>
+ * <li>cluster.propagate - a file moved on one node until every other node lists it moved</li>
+ * <li>cluster.failover - the indexer shut down until another node has taken the lease</li>
+ * </ul>
+ */
+public class ClusterBenchmarks {
+	private static final long TIMEOUT = 60 * 1000;
+
+	public static void main(String[] args) throws Exception {
+		File workDir = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")), "slm-cluster-bench");
+		int size = Integer.getInteger("bench.size", 1000);
+		int warmup = Integer.getInteger("bench.warmup", 3);
+		int iterations = Integer.getInteger("bench.iterations", 10);
+		int nodeCount = Integer.getInteger("bench.nodes", 3);
+		int port = Integer.getInteger("bench.port", 9137);
+
+		Server server = new Server();
+		server.setDatabaseName(0, "cluster");
+		server.setDatabasePath(0, "mem:cluster");
+		server.setPort(port);
+		server.setSilent(true);
+		server.setNoSystemExit(true);
+		server.start();
+
+		System.setProperty("edu.ucla.loni.db.url", "jdbc:hsqldb:hsql://localhost:" + port + "/cluster");
+		System.setProperty("edu.ucla.loni.cluster", "true");
+		if (System.getProperty("edu.ucla.loni.cluster.poll") == null){
+			System.setProperty("edu.ucla.loni.cluster.poll", "100");
+		}
+		if (System.getProperty("edu.ucla.loni.cluster.lease") == null){
+			System.setProperty("edu.ucla.loni.cluster.lease", "1000");
+		}
+
+		final ArrayList<FileServiceImpl> nodes = new ArrayList<FileServiceImpl>();
+		try {
+			// The first node to join takes the lease
+			for (int i = 0; i < nodeCount; i++){
+				FileServiceImpl node = new FileServiceImpl();
+				node.isIndexer();
+				nodes.add(node);
+			}
+			final FileServiceImpl indexer = nodes.get(0);
+			if (indexer.isIndexer() == false){
+				throw new Exception("The first node did not become the indexer");
+			}
+
+			final File root = new LibraryGenerator().size(size).generate(new File(workDir, "library"));
+			final String rootPath = root.getAbsolutePath();
+			final int fileCount = listPipefiles(new ArrayList<File>(), root).size();
+
+			new BenchmarkRunner(0, 1).run("cluster.scan(" + size + ")", fileCount, new BenchmarkRunner.Task() {
+				public void run() throws Exception {
+					indexer.getFiles(rootPath);
+					for (final FileServiceImpl node : nodes){
+						await(new Condition() {
+							public boolean holds() throws Exception {
+								Pipefile[] files = node.getCatalogFiles(rootPath, null);
+								return files != null && files.length == fileCount;
+							}
+						});
+					}
+				}
+			});
+
+			final File package0 = new File(root, "package0");
+			final File package1 = new File(root, "package1");
+			final File moved = listPipefiles(new ArrayList<File>(), package0).get(0);
+
+			new BenchmarkRunner(warmup, iterations).run("cluster.propagate(" + nodeCount + " nodes)", 1, new BenchmarkRunner.Task() {
+				private boolean there = false;
+
+				public void run() throws Exception {
+					File from = new File(there ? package1 : package0, moved.getName());
+					final File to = new File(there ? package0 : package1, moved.getName());
+					there = there == false;
+
+					// Made on a node that is not the indexer, every node has to see it
+					nodes.get(nodes.size() - 1).moveFiles(new String[] {from.getAbsolutePath()}, to.getParent());
+					for (final FileServiceImpl node : nodes){
+						await(new Condition() {
+							public boolean holds() throws Exception {
+								return lists(node, rootPath, to.getAbsolutePath());
+							}
+						});
+					}
+				}
+			});
+
+			if (nodes.size() > 1){
+				new BenchmarkRunner(0, 1).run("cluster.failover", 1, new BenchmarkRunner.Task() {
+					public void run() throws Exception {
+						nodes.remove(indexer);
+						indexer.destroy();
+
+						await(new Condition() {
+							public boolean holds() throws Exception {
+								for (FileServiceImpl node : nodes){
+									if (node.isIndexer()){
+										return true;
+									}
+								}
+								return false;
+							}
+						});
+					}
+				});
+			}
+		} finally {
+			for (FileServiceImpl node : nodes){
+				node.destroy();
+			}
+			server.stop();
+			LibraryGenerator.delete(workDir);
+		}
+	}
+
+	private interface Condition {
+		boolean holds() throws Exception;
+	}
+
+	/**
+	 * Polls until the condition holds
+	 * @throws Exception if it does not within TIMEOUT
+	 */
+	private static void await(Condition condition) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (condition.holds() == false){
+			if (System.currentTimeMillis() > deadline){
+				throw new Exception("The cluster did not converge in " + TIMEOUT + " ms");
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	private static boolean lists(FileServiceImpl node, String root, String absolutePath) throws Exception {
+		Pipefile[] files = node.getCatalogFiles(root, null);
+		if (files != null){
+			for (Pipefile p : files){
+				if (p.absolutePath.equals(absolutePath)){
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static ArrayList<File> listPipefiles(ArrayList<File> files, File dir){
+		for (File file : dir.listFiles()){
+			if (file.isDirectory()){
+				listPipefiles(files, file);
+			} else if (file.getName().endsWith(".pipe")){
+				files.add(file);
+			}
+		}
+		return files;
+	}
+}
@@ -0,0 +1,209 @@
+package edu.ucla.loni.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.ucla.loni.server.FileServiceImpl;
+import edu.ucla.loni.shared.JobStatus;
+
+/**
+ * URL imports (FileServiceImpl.startUrlImport) from an embedded HTTP server serving a
+ * synthetic library, with an embedded (in-memory) HSQLDB
+ * <p>
+ * Run with war/WEB-INF/lib/*, the GWT servlet jar and the compiled src on the classpath:<br>
+ * {@code java edu.ucla.loni.bench.ImportBenchmarks}
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ * <li>bench.dir - where the library is generated and imported (default: java.io.tmpdir)</li>
+ * <li>bench.warmup / bench.iterations - iterations per benchmark (default: 1 / 5)</li>
+ * <li>bench.size - library size (default: 200)</li>
+ * <li>bench.latency - milliseconds the server waits before each answer (default: 20)</li>
+ * <li>edu.ucla.loni.fetch.* - the fetcher settings of FileServiceImpl</li>
+ * </ul>
+ * Benchmarks, all run in order:
+ * <ul>
+ * <li>import.urls - every pipefile by its own URL</li>
+ * <li>import.retry - every pipefile by a URL that answers 503 the first time</li>
+ * <li>import.archive - the library as one zip archive, written as it is sent</li>
+ * </ul>
+ * Each import is checked: the job has to be Done and every file in the catalog.
+ */
+public class ImportBenchmarks {
+	private static final long TIMEOUT = 120 * 1000;
+
+	private static int imports = 0;
+
+	public static void main(String[] args) throws Exception {
+		File workDir = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")), "slm-import-bench");
+		int size = Integer.getInteger("bench.size", 200);
+		int warmup = Integer.getInteger("bench.warmup", 1);
+		int iterations = Integer.getInteger("bench.iterations", 5);
+		final long latency = Long.getLong("bench.latency", 20);
+
+		final File library = new LibraryGenerator().size(size).generate(new File(workDir, "library"));
+		final ArrayList<String> paths = new ArrayList<String>();
+		listPipefiles(paths, library, "");
+
+		final HashSet<String> served = new HashSet<String>();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e){
+					return;
+				}
+
+				String path = exchange.getRequestURI().getPath();
+				if (path.startsWith("/flaky/")){
+					path = path.substring("/flaky".length());
+					boolean first;
+					synchronized (served){
+						first = served.add(path);
+					}
+					if (first){
+						exchange.sendResponseHeaders(503, -1);
+						exchange.close();
+						return;
+					}
+				}
+
+				if (path.equals("/library.zip")){
+					sendArchive(exchange, library, paths);
+					return;
+				}
+
+				File file = new File(library, path.substring(1));
+				if (file.isFile() == false){
+					exchange.sendResponseHeaders(404, -1);
+					exchange.close();
+					return;
+				}
+				byte[] content = Files.readAllBytes(file.toPath());
+				exchange.sendResponseHeaders(200, content.length);
+				exchange.getResponseBody().write(content);
+				exchange.close();
+			}
+		});
+		server.start();
+		String base = "http://localhost:" + server.getAddress().getPort();
+
+		final String[] urls = new String[paths.size()];
+		final String[] flakyUrls = new String[paths.size()];
+		for (int i = 0; i < urls.length; i++){
+			urls[i] = base + "/" + paths.get(i);
+			flakyUrls[i] = base + "/flaky/" + paths.get(i);
+		}
+
+		BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations);
+		System.setProperty("edu.ucla.loni.db.url", "jdbc:hsqldb:mem:import");
+		final FileServiceImpl service = new FileServiceImpl();
+		final File importDir = new File(workDir, "imports");
+		try {
+			runner.run("import.urls(" + size + ")", urls.length, new ImportTask(service, importDir, urls, urls.length));
+
+			runner.run("import.retry(" + size + ")", urls.length, new ImportTask(service, importDir, flakyUrls, urls.length) {
+				public void setUp(){
+					synchronized (served){
+						served.clear();
+					}
+				}
+			});
+
+			runner.run("import.archive(" + size + ")", urls.length,
+				new ImportTask(service, importDir, new String[] {base + "/library.zip"}, urls.length));
+		} finally {
+			service.destroy();
+			server.stop(0);
+			LibraryGenerator.delete(workDir);
+		}
+	}
+
+	/**
+	 * Imports the URLs into a new root, checks every file is in the catalog, then deletes the root
+	 */
+	private static class ImportTask extends BenchmarkRunner.Task {
+		private final FileServiceImpl service;
+		private final File importDir;
+		private final String[] urls;
+		private final int expected;
+
+		ImportTask(FileServiceImpl service, File importDir, String[] urls, int expected){
+			this.service = service;
+			this.importDir = importDir;
+			this.urls = urls;
+			this.expected = expected;
+		}
+
+		public void run() throws Exception {
+			File root = new File(importDir, "root" + (imports++));
+			int id = service.startUrlImport(urls, root.getAbsolutePath());
+
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			JobStatus status = service.getJob(id);
+			while (status.state.equals("Done") == false){
+				if (status.state.equals("Failed")){
+					throw new Exception("Import failed: " + status.message);
+				}
+				if (System.currentTimeMillis() > deadline){
+					throw new Exception("Import did not finish in " + TIMEOUT + " ms");
+				}
+				Thread.sleep(5);
+				status = service.getJob(id);
+			}
+
+			if (status.result == null || status.result.length != expected){
+				throw new Exception("Imported " + (status.result == null ? 0 : status.result.length) + " files instead of " + expected);
+			}
+		}
+
+		public void tearDown(){
+			LibraryGenerator.delete(importDir);
+		}
+	}
+
+	/**
+	 * Streams a zip of the library, without a length, as it is compressed
+	 */
+	private static void sendArchive(HttpExchange exchange, File library, ArrayList<String> paths) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/zip");
+		exchange.sendResponseHeaders(200, 0);
+		ZipOutputStream zip = new ZipOutputStream(exchange.getResponseBody());
+		for (String path : paths){
+			zip.putNextEntry(new ZipEntry(path));
+			zip.write(Files.readAllBytes(new File(library, path).toPath()));
+			zip.closeEntry();
+		}
+		zip.close();
+		exchange.close();
+	}
+
+	/**
+	 * Collects the paths of the pipefiles relative to the library, with / separators
+	 */
+	private static void listPipefiles(ArrayList<String> paths, File dir, String prefix){
+		for (File file : dir.listFiles()){
+			if (file.isDirectory()){
+				listPipefiles(paths, file, prefix + file.getName() + "/");
+			} else if (file.getName().endsWith(".pipe")){
+				paths.add(prefix + file.getName());
+			}
+		}
+	}
+}
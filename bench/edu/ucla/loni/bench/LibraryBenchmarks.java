@@ -0,0 +1,305 @@
+package edu.ucla.loni.bench;
+
+import java.io.File;
+
+import java.sql.DriverManager;
+
+import java.util.ArrayList;
+
+import edu.ucla.loni.server.DirectoryWalker;
+import edu.ucla.loni.server.FileServiceImpl;
+import edu.ucla.loni.server.ServerUtils;
+
+/**
+ * Benchmarks for parsing, scanning, searching and bulk file operations.
+ * <p>
+ * Everything runs against synthetic libraries and an embedded (in-memory) HSQLDB,
+ * so no database server or Tomcat is needed.
+ * <p>
+ * Run with war/WEB-INF/lib/*, the GWT servlet jar and the compiled src on the classpath:<br>
+ * {@code java edu.ucla.loni.bench.LibraryBenchmarks [benchmark ...]}
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ * <li>bench.dir - where libraries are generated (default: java.io.tmpdir)</li>
+ * <li>bench.warmup / bench.iterations - iterations per benchmark (default: 3 / 10)</li>
+ * <li>bench.size - library size for parse, scan and file operations (default: 1000)</li>
+ * <li>bench.sizes - comma separated library sizes for search (default: 1000,5000,20000)</li>
+ * </ul>
+ * The version history and operation journal of the services are kept under bench.dir too.
+ * Benchmarks: walk, parse, scan.cold, scan.warm, search, move, remove (default: all)
+ */
+public class LibraryBenchmarks {
+	private static final String[] QUERIES = {"mri", "brain", "module 1", "atlas", "package3", "zzz"};
+	private static final String[] TYPO_QUERIES = {"mir", "brian", "segmentaton", "atlsa", "skul strip", "zzz"};
+
+	private static int databases = 0;
+
+	private File workDir;
+	private int size;
+	private BenchmarkRunner runner;
+
+	public LibraryBenchmarks(File workDir, int size, int warmup, int iterations){
+		this.workDir = workDir;
+		this.size = size;
+		this.runner = new BenchmarkRunner(warmup, iterations);
+	}
+
+	public static void main(String[] args) throws Exception {
+		File workDir = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")), "slm-bench");
+		int size = Integer.getInteger("bench.size", 1000);
+		int warmup = Integer.getInteger("bench.warmup", 3);
+		int iterations = Integer.getInteger("bench.iterations", 10);
+		String[] sizes = System.getProperty("bench.sizes", "1000,5000,20000").split(",");
+
+		// Not the user's, moves and removes record history
+		System.setProperty("edu.ucla.loni.history.dir", new File(workDir, "history").getPath());
+		System.setProperty("edu.ucla.loni.journal", new File(workDir, "journal").getPath());
+
+		LibraryBenchmarks bench = new LibraryBenchmarks(workDir, size, warmup, iterations);
+
+		String[] benchmarks = args.length > 0 ? args : new String[] {
+			"walk", "parse", "scan.cold", "scan.warm", "search", "move", "remove"
+		};
+
+		try {
+			for (String name : benchmarks){
+				if (name.equals("walk")){
+					bench.walk();
+				} else if (name.equals("parse")){
+					bench.parse();
+				} else if (name.equals("scan.cold")){
+					bench.coldScan();
+				} else if (name.equals("scan.warm")){
+					bench.warmScan();
+				} else if (name.equals("search")){
+					for (String s : sizes){
+						bench.search(Integer.parseInt(s.trim()));
+					}
+				} else if (name.equals("move")){
+					bench.move();
+				} else if (name.equals("remove")){
+					bench.remove();
+				} else {
+					System.err.println("Unknown benchmark: " + name);
+				}
+			}
+		} finally {
+			LibraryGenerator.delete(workDir);
+		}
+	}
+
+	////////////////////////////////////////////////////////////
+	// Benchmarks
+	////////////////////////////////////////////////////////////
+
+	/**
+	 * Finding the pipefiles and their lastModified: the File.listFiles recursion
+	 * getAllPipefiles used to do against DirectoryWalker
+	 */
+	public void walk() throws Exception {
+		final File root = new LibraryGenerator().size(size).descriptionWords(1).tagsPerFile(1).modulesPerWorkflow(3)
+			.generate(new File(workDir, "walk"));
+
+		runner.run("walk.listFiles(" + size + ")", size, new BenchmarkRunner.Task() {
+			public void run() throws Exception {
+				long newest = 0;
+				for (File file : listPipefiles(new ArrayList<File>(), root)){
+					newest = Math.max(newest, file.lastModified());
+				}
+			}
+		});
+
+		runner.run("walk.nio(" + size + ")", size, new BenchmarkRunner.Task() {
+			public void run() throws Exception {
+				DirectoryWalker.walk(root);
+			}
+		});
+
+		LibraryGenerator.delete(root);
+	}
+
+	/**
+	 * ServerUtils.parseFile over every file of the library, reported per file
+	 */
+	public void parse() throws Exception {
+		File root = new LibraryGenerator().size(size).generate(new File(workDir, "parse"));
+		final ArrayList<File> files = listPipefiles(new ArrayList<File>(), root);
+
+		runner.run("parse(" + files.size() + ")", files.size(), new BenchmarkRunner.Task() {
+			public void run() throws Exception {
+				for (File file : files){
+					if (ServerUtils.parseFile(file) == null){
+						throw new Exception("Could not parse " + file);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * getFiles against an empty database: full walk, parse and insert
+	 */
+	public void coldScan() throws Exception {
+		final File root = new LibraryGenerator().size(size).generate(new File(workDir, "scan"));
+
+		runner.run("scan.cold(" + size + ")", 1, new BenchmarkRunner.Task() {
+			private String db;
+			private FileServiceImpl service;
+
+			public void setUp() throws Exception {
+				db = newDatabase();
+				service = new FileServiceImpl();
+			}
+
+			public void run() throws Exception {
+				service.getFiles(root.getAbsolutePath());
+			}
+
+			public void tearDown() throws Exception {
+				service.destroy();
+				shutdown(db);
+			}
+		});
+	}
+
+	/**
+	 * getFiles when the database is already up-to-date: walk and lastModified comparisons only
+	 */
+	public void warmScan() throws Exception {
+		final File root = new LibraryGenerator().size(size).generate(new File(workDir, "scan"));
+
+		String db = newDatabase();
+		final FileServiceImpl service = new FileServiceImpl();
+		service.getFiles(root.getAbsolutePath());
+
+		try {
+			runner.run("scan.warm(" + size + ")", 1, new BenchmarkRunner.Task() {
+				public void run() throws Exception {
+					service.getFiles(root.getAbsolutePath());
+				}
+			});
+		} finally {
+			service.destroy();
+			shutdown(db);
+		}
+	}
+
+	/**
+	 * getSearchResults on a scanned library of the given size, exact and fuzzy, reported per query
+	 */
+	public void search(int librarySize) throws Exception {
+		final File root = new LibraryGenerator().size(librarySize).generate(new File(workDir, "search" + librarySize));
+
+		String db = newDatabase();
+		final FileServiceImpl service = new FileServiceImpl();
+		service.getFiles(root.getAbsolutePath());
+
+		try {
+			runner.run("search(" + librarySize + ")", QUERIES.length, new BenchmarkRunner.Task() {
+				public void run() throws Exception {
+					for (String query : QUERIES){
+						service.getSearchResults(root.getAbsolutePath(), query, null, false);
+					}
+				}
+			});
+
+			runner.run("search.fuzzy(" + librarySize + ")", TYPO_QUERIES.length, new BenchmarkRunner.Task() {
+				public void run() throws Exception {
+					for (String query : TYPO_QUERIES){
+						service.getSearchResults(root.getAbsolutePath(), query, null, true);
+					}
+				}
+			});
+		} finally {
+			service.destroy();
+			shutdown(db);
+			LibraryGenerator.delete(root);
+		}
+	}
+
+	/**
+	 * moveFiles of one whole package into another, reported per file
+	 */
+	public void move() throws Exception {
+		final int perPackage = size / new LibraryGenerator().size(size).packageCount();
+
+		runner.run("move(" + perPackage + ")", perPackage, new FileOperationTask() {
+			public void run() throws Exception {
+				service.moveFiles(filenames, new File(root, "package1").getAbsolutePath());
+			}
+		});
+	}
+
+	/**
+	 * removeFiles of one whole package, reported per file
+	 */
+	public void remove() throws Exception {
+		final int perPackage = size / new LibraryGenerator().size(size).packageCount();
+
+		runner.run("remove(" + perPackage + ")", perPackage, new FileOperationTask() {
+			public void run() throws Exception {
+				service.removeFiles(filenames);
+			}
+		});
+	}
+
+	/**
+	 * Generates and scans a fresh library before each iteration,
+	 * the files of package0 are the ones operated on
+	 */
+	private abstract class FileOperationTask extends BenchmarkRunner.Task {
+		protected File root;
+		protected String db;
+		protected FileServiceImpl service;
+		protected String[] filenames;
+
+		public void setUp() throws Exception {
+			root = new LibraryGenerator().size(size).generate(new File(workDir, "fileops"));
+			db = newDatabase();
+			service = new FileServiceImpl();
+			service.getFiles(root.getAbsolutePath());
+
+			ArrayList<File> files = listPipefiles(new ArrayList<File>(), new File(root, "package0"));
+			filenames = new String[files.size()];
+			for (int i = 0; i < filenames.length; i++){
+				filenames[i] = files.get(i).getAbsolutePath();
+			}
+		}
+
+		public void tearDown() throws Exception {
+			service.destroy();
+			shutdown(db);
+			LibraryGenerator.delete(root);
+		}
+	}
+
+	////////////////////////////////////////////////////////////
+	// Helpers
+	////////////////////////////////////////////////////////////
+
+	/**
+	 * Points FileServiceImpl at a new in-memory database, used by services created afterwards
+	 * @return the database url
+	 */
+	private static String newDatabase(){
+		String db = "jdbc:hsqldb:mem:bench" + (databases++);
+		System.setProperty("edu.ucla.loni.db.url", db);
+		return db;
+	}
+
+	private static void shutdown(String db) throws Exception {
+		DriverManager.getConnection(db, "SA", "").createStatement().execute("SHUTDOWN");
+	}
+
+	private static ArrayList<File> listPipefiles(ArrayList<File> files, File dir){
+		for (File file : dir.listFiles()){
+			if (file.isDirectory()){
+				listPipefiles(files, file);
+			} else if (file.getName().endsWith(".pipe")){
+				files.add(file);
+			}
+		}
+		return files;
+	}
+}
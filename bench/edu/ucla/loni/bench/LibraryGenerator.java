@@ -0,0 +1,210 @@
+package edu.ucla.loni.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.Random;
+
+/**
+ * Generates a synthetic library of .pipe files (Modules, Data and Workflows)
+ * laid out as root/package/file.pipe, the same way a Pipeline server library is.
+ * <p>
+ * The generator is seeded so the same settings always produce the same library.
+ */
+public class LibraryGenerator {
+	private static final String[] FORMATS = {"NIfTI", "Analyze", "MINC", "DICOM", "Text"};
+	private static final String[] WORDS = {
+		"brain", "mri", "fmri", "cortex", "segmentation", "registration", "skull",
+		"strip", "atlas", "surface", "volume", "smooth", "mask", "tensor", "label"
+	};
+
+	private int packages = 20;
+	private int modules = 600;
+	private int data = 200;
+	private int workflows = 200;
+	private int tagsPerFile = 4;
+	private int modulesPerWorkflow = 8;
+	private int descriptionWords = 40;
+	private long seed = 130;
+
+	public LibraryGenerator packages(int n){ packages = n; return this; }
+	public LibraryGenerator modules(int n){ modules = n; return this; }
+	public LibraryGenerator data(int n){ data = n; return this; }
+	public LibraryGenerator workflows(int n){ workflows = n; return this; }
+	public LibraryGenerator tagsPerFile(int n){ tagsPerFile = n; return this; }
+	public LibraryGenerator modulesPerWorkflow(int n){ modulesPerWorkflow = n; return this; }
+	public LibraryGenerator descriptionWords(int n){ descriptionWords = n; return this; }
+	public LibraryGenerator seed(long s){ seed = s; return this; }
+
+	public int packageCount(){ return packages; }
+
+	/**
+	 * Scales the counts so the library holds roughly the given number of files,
+	 * keeping the 60/20/20 split between Modules, Data and Workflows
+	 */
+	public LibraryGenerator size(int files){
+		modules = files * 6 / 10;
+		data = files * 2 / 10;
+		workflows = files - modules - data;
+		packages = Math.max(1, files / 50);
+		return this;
+	}
+
+	/**
+	 * Writes the library under root (which is created if needed)
+	 * @return root
+	 */
+	public File generate(File root) throws IOException {
+		Random random = new Random(seed);
+
+		File[] packageDirs = new File[packages];
+		for (int i = 0; i < packages; i++){
+			packageDirs[i] = new File(root, "package" + i);
+			packageDirs[i].mkdirs();
+		}
+
+		for (int i = 0; i < modules; i++){
+			File dir = packageDirs[i % packages];
+			write(new File(dir, "module" + i + ".pipe"), module(random, i, dir.getName()));
+		}
+
+		for (int i = 0; i < data; i++){
+			File dir = packageDirs[i % packages];
+			write(new File(dir, "data" + i + ".pipe"), dataModule(random, i, dir.getName()));
+		}
+
+		for (int i = 0; i < workflows; i++){
+			File dir = packageDirs[i % packages];
+			write(new File(dir, "workflow" + i + ".pipe"), workflow(random, i, dir.getName()));
+		}
+
+		return root;
+	}
+
+	/**
+	 * Recursively deletes a generated library
+	 */
+	public static void delete(File file){
+		File[] children = file.listFiles();
+		if (children != null){
+			for (File child : children){
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	////////////////////////////////////////////////////////////
+	// XML
+	////////////////////////////////////////////////////////////
+
+	private String module(Random random, int i, String packageName){
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<pipeline version=\".2\">\n");
+		xml.append("  <moduleGroup id=\"group" + i + "\" name=\"Module " + i + "\" posX=\"0\" posY=\"0\">\n");
+		appendModule(xml, random, "module" + i, "Module " + i, packageName, "    ");
+		xml.append("  </moduleGroup>\n");
+		xml.append("</pipeline>\n");
+		return xml.toString();
+	}
+
+	private String dataModule(Random random, int i, String packageName){
+		String format = FORMATS[random.nextInt(FORMATS.length)];
+
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<pipeline version=\".2\">\n");
+		xml.append("  <moduleGroup id=\"group" + i + "\" name=\"Data " + i + "\" posX=\"0\" posY=\"0\">\n");
+		xml.append("    <dataModule id=\"data" + i + "\" name=\"Data " + i + "\" package=\"" + packageName + "\"" +
+			" description=\"" + words(random, descriptionWords) + "\" type=\"File\" source=\"true\">\n");
+		appendTags(xml, random, "      ");
+		xml.append("      <output id=\"data" + i + ".Output\" name=\"Output\" required=\"true\" enabled=\"true\" order=\"0\">\n");
+		appendFormat(xml, format, "        ");
+		xml.append("      </output>\n");
+		xml.append("      <values>\n");
+		xml.append("        <value>/data/" + packageName + "/subject" + i + "." + format.toLowerCase() + "</value>\n");
+		xml.append("      </values>\n");
+		xml.append("    </dataModule>\n");
+		xml.append("  </moduleGroup>\n");
+		xml.append("</pipeline>\n");
+		return xml.toString();
+	}
+
+	private String workflow(Random random, int i, String packageName){
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<pipeline version=\".2\">\n");
+		xml.append("  <connections>\n");
+		for (int m = 1; m < modulesPerWorkflow; m++){
+			xml.append("    <connection source=\"w" + i + "m" + (m - 1) + ".Output\" sink=\"w" + i + "m" + m + ".Input\" />\n");
+		}
+		xml.append("  </connections>\n");
+		xml.append("  <moduleGroup id=\"workflow" + i + "\" name=\"Workflow " + i + "\" package=\"" + packageName + "\"" +
+			" description=\"" + words(random, descriptionWords) + "\" posX=\"0\" posY=\"0\">\n");
+		appendTags(xml, random, "    ");
+		xml.append("    <uri>http://example.org/workflows/" + i + "</uri>\n");
+		for (int m = 0; m < modulesPerWorkflow; m++){
+			// Reference modules that exist in the library so the library has real dependencies
+			int ref = modules == 0 ? m : random.nextInt(modules);
+			appendModule(xml, random, "w" + i + "m" + m, "Module " + ref, "package" + (ref % packages), "    ");
+		}
+		xml.append("  </moduleGroup>\n");
+		xml.append("</pipeline>\n");
+		return xml.toString();
+	}
+
+	private void appendModule(StringBuilder xml, Random random, String id, String name, String packageName, String indent){
+		String format = FORMATS[random.nextInt(FORMATS.length)];
+
+		xml.append(indent + "<module id=\"" + id + "\" name=\"" + name + "\" package=\"" + packageName + "\"" +
+			" version=\"1.0\" description=\"" + words(random, descriptionWords) + "\"" +
+			" location=\"pipeline://localhost//usr/local/bin/" + name.replace(' ', '_').toLowerCase() + "\"" +
+			" posX=\"0\" posY=\"0\">\n");
+		appendTags(xml, random, indent + "  ");
+		xml.append(indent + "  <uri>http://example.org/modules/" + name.replace(' ', '_') + "</uri>\n");
+		xml.append(indent + "  <input id=\"" + id + ".Input\" name=\"Input\" required=\"true\" enabled=\"true\" order=\"0\">\n");
+		appendFormat(xml, format, indent + "    ");
+		xml.append(indent + "  </input>\n");
+		xml.append(indent + "  <output id=\"" + id + ".Output\" name=\"Output\" required=\"true\" enabled=\"true\" order=\"1\">\n");
+		appendFormat(xml, format, indent + "    ");
+		xml.append(indent + "  </output>\n");
+		xml.append(indent + "</module>\n");
+	}
+
+	private void appendFormat(StringBuilder xml, String format, String indent){
+		xml.append(indent + "<format type=\"File\" cardinality=\"1\">\n");
+		xml.append(indent + "  <fileTypes>\n");
+		xml.append(indent + "    <filetype name=\"" + format + "\" extension=\"" + format.toLowerCase() + "\" description=\"\" />\n");
+		xml.append(indent + "  </fileTypes>\n");
+		xml.append(indent + "</format>\n");
+	}
+
+	private void appendTags(StringBuilder xml, Random random, String indent){
+		for (int t = 0; t < tagsPerFile; t++){
+			xml.append(indent + "<tag>" + WORDS[random.nextInt(WORDS.length)] + "</tag>\n");
+		}
+	}
+
+	private String words(Random random, int n){
+		StringBuilder ret = new StringBuilder();
+		for (int w = 0; w < n; w++){
+			if (w > 0){
+				ret.append(' ');
+			}
+			ret.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return ret.toString();
+	}
+
+	private void write(File file, String content) throws IOException {
+		Writer out = new FileWriter(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package edu.ucla.loni.client;
+
+import java.util.ArrayList;
+
+import com.google.gwt.storage.client.Storage;
+
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * Keeps the files of the last root directory in the browser's localStorage, with the
+ * catalog version they were sent at, so a reload shows them without waiting for the server
+ * <p>
+ * The files are the summaries the trees are built from, their other fields are null.
+ * <p>
+ * Only one root is kept, under KEY, to stay well within the storage quota. Does nothing
+ * where localStorage is not supported or is full.
+ * <p>
+ * Format: root, version, number of files, then the fields of each file. Every value is
+ * its length, ':' and the characters, or '-' for null.
+ */
+public class CatalogCache {
+	private static final String KEY = "slm.catalog.2";
+
+	/**
+	 *  Keys of older formats, removed to free their space
+	 */
+	private static final String[] OLD_KEYS = {"slm.catalog"};
+
+	private final Storage storage = Storage.getLocalStorageIfSupported();
+
+	private String root;
+	private String version;
+	private Pipefile[] files;
+
+	/**
+	 *  Reads the stored files, if any
+	 */
+	public CatalogCache(){
+		if (storage != null){
+			for (String key : OLD_KEYS){
+				storage.removeItem(key);
+			}
+		}
+
+		String data = storage == null ? null : storage.getItem(KEY);
+		if (data != null){
+			try {
+				decode(data);
+			} catch (RuntimeException e){
+				// Written by an older format, or cut short
+				root = null;
+				version = null;
+				files = null;
+				storage.removeItem(KEY);
+			}
+		}
+	}
+
+	/**
+	 *  @return the catalog version of the stored files of the root, null if none are stored
+	 */
+	public String getVersion(String root){
+		return root.equals(this.root) ? version : null;
+	}
+
+	/**
+	 *  @return the stored files of the root, null if none are stored
+	 */
+	public Pipefile[] getFiles(String root){
+		return root.equals(this.root) ? files : null;
+	}
+
+	/**
+	 *  Stores the files of a root, replacing any other root
+	 */
+	public void put(String root, String version, Pipefile[] files){
+		this.root = root;
+		this.version = version;
+		this.files = files;
+
+		if (storage == null){
+			return;
+		}
+
+		StringBuilder data = new StringBuilder();
+		encode(data, root);
+		encode(data, version);
+		encode(data, String.valueOf(files.length));
+		for (Pipefile p : files){
+			for (String value : fields(p)){
+				encode(data, value);
+			}
+		}
+
+		try {
+			storage.setItem(KEY, data.toString());
+		} catch (RuntimeException e){
+			// Over the quota, next load starts from the server
+			storage.removeItem(KEY);
+		}
+	}
+
+	private static String[] fields(Pipefile p){
+		return new String[] {p.absolutePath, p.name, p.type, p.packageName, p.description,
+			p.tags, p.access, p.contentHash, p.location, p.uri, p.inputs, p.outputs};
+	}
+
+	private void decode(String data){
+		int[] at = {0};
+		String storedRoot = decode(data, at);
+		String storedVersion = decode(data, at);
+		int count = Integer.parseInt(decode(data, at));
+
+		ArrayList<Pipefile> list = new ArrayList<Pipefile>(count);
+		for (int i = 0; i < count; i++){
+			Pipefile p = new Pipefile();
+			p.absolutePath = decode(data, at);
+			p.name = decode(data, at);
+			p.type = decode(data, at);
+			p.packageName = decode(data, at);
+			p.description = decode(data, at);
+			p.tags = decode(data, at);
+			p.access = decode(data, at);
+			p.contentHash = decode(data, at);
+			p.location = decode(data, at);
+			p.uri = decode(data, at);
+			p.inputs = decode(data, at);
+			p.outputs = decode(data, at);
+			list.add(p);
+		}
+
+		root = storedRoot;
+		version = storedVersion;
+		files = list.toArray(new Pipefile[list.size()]);
+	}
+
+	private static void encode(StringBuilder data, String value){
+		if (value == null){
+			data.append('-');
+		} else {
+			data.append(value.length()).append(':').append(value);
+		}
+	}
+
+	/**
+	 *  @param at position to read from, moved past the value
+	 */
+	private static String decode(String data, int[] at){
+		if (data.charAt(at[0]) == '-'){
+			at[0]++;
+			return null;
+		}
+
+		int colon = data.indexOf(':', at[0]);
+		int length = Integer.parseInt(data.substring(at[0], colon));
+		at[0] = colon + 1 + length;
+		return data.substring(colon + 1, at[0]);
+	}
+}
@@ -8,8 +8,15 @@ import com.google.gwt.user.client.rpc.RemoteServiceRelativePath;
 @RemoteServiceRelativePath("file")
 public interface FileService extends RemoteService {
 	Pipefile[]	getFiles(String root) throws Exception;
+	Pipefile[]	getPipefileDetails(String[] absolutePaths) throws Exception;
 	
-	Pipefile[] 	getSearchResults(String root, String query) throws Exception;
+	SearchResult	getSearchResults(String root, String query, Facet[] filters, boolean fuzzy) throws Exception;
+	SearchResult	getSearchPage(String root, String query, Facet[] filters, boolean fuzzy, String sortBy, boolean descending, int start, int end) throws Exception;
+	Facet[]		getTags(String root, String prefix, int limit) throws Exception;
+	
+	String[]	getRoots() throws Exception;
+	SearchResult	getFederatedFiles(String[] roots, String sortBy, boolean descending) throws Exception;
+	SearchResult	getFederatedSearch(String[] roots, String query, Facet[] filters, boolean fuzzy, String sortBy, boolean descending) throws Exception;
 	
 	void 		updateFile(Pipefile pipe) throws Exception;
 	
@@ -19,4 +26,21 @@ public interface FileService extends RemoteService {
 	
 	Group[]		getGroups() throws Exception;
 	void		updateGroup(Group g) throws Exception;	
+	
+	int			startScan(String root) throws Exception;
+	int			startRefresh(String root, String version) throws Exception;
+	int			startRemove(String[] filenames) throws Exception;
+	int			startCopy(String[] filenames, String packageName) throws Exception;
+	int			startMove(String[] filenames, String packageName) throws Exception;
+	int			startImport(String archive, String root) throws Exception;
+	int			startUrlImport(String[] urls, String root) throws Exception;
+	JobStatus	getJob(int id) throws Exception;
+	
+	String[]	getDependents(String absolutePath) throws Exception;
+	String[]	getTransitiveDependents(String absolutePath) throws Exception;
+	
+	DuplicateCluster[]	getDuplicates(String[] roots, boolean byMetadata) throws Exception;
+	
+	PipefileVersion[]	getVersions(String absolutePath) throws Exception;
+	void		restoreVersion(String root, String absolutePath, int version) throws Exception;
 }
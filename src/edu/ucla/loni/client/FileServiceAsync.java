@@ -6,8 +6,15 @@ import com.google.gwt.user.client.rpc.AsyncCallback;
 
 public interface FileServiceAsync {
 	void getFiles(String root, AsyncCallback<Pipefile[]> callback);
+	void getPipefileDetails(String[] absolutePaths, AsyncCallback<Pipefile[]> callback);
 	
-	void getSearchResults(String root, String query, AsyncCallback<Pipefile[]> callback);
+	void getSearchResults(String root, String query, Facet[] filters, boolean fuzzy, AsyncCallback<SearchResult> callback);
+	void getSearchPage(String root, String query, Facet[] filters, boolean fuzzy, String sortBy, boolean descending, int start, int end, AsyncCallback<SearchResult> callback);
+	void getTags(String root, String prefix, int limit, AsyncCallback<Facet[]> callback);
+	
+	void getRoots(AsyncCallback<String[]> callback);
+	void getFederatedFiles(String[] roots, String sortBy, boolean descending, AsyncCallback<SearchResult> callback);
+	void getFederatedSearch(String[] roots, String query, Facet[] filters, boolean fuzzy, String sortBy, boolean descending, AsyncCallback<SearchResult> callback);
 	
 	void updateFile(Pipefile pipe, AsyncCallback<Void> callback);
 	
@@ -17,4 +24,21 @@ public interface FileServiceAsync {
 	
 	void getGroups(AsyncCallback<Group[]> callback);
 	void updateGroup(Group g, AsyncCallback<Void> callback);
+	
+	void startScan(String root, AsyncCallback<Integer> callback);
+	void startRefresh(String root, String version, AsyncCallback<Integer> callback);
+	void startRemove(String[] filenames, AsyncCallback<Integer> callback);
+	void startCopy(String[] filenames, String packageName, AsyncCallback<Integer> callback);
+	void startMove(String[] filenames, String packageName, AsyncCallback<Integer> callback);
+	void startImport(String archive, String root, AsyncCallback<Integer> callback);
+	void startUrlImport(String[] urls, String root, AsyncCallback<Integer> callback);
+	void getJob(int id, AsyncCallback<JobStatus> callback);
+	
+	void getDependents(String absolutePath, AsyncCallback<String[]> callback);
+	void getTransitiveDependents(String absolutePath, AsyncCallback<String[]> callback);
+	
+	void getDuplicates(String[] roots, boolean byMetadata, AsyncCallback<DuplicateCluster[]> callback);
+	
+	void getVersions(String absolutePath, AsyncCallback<PipefileVersion[]> callback);
+	void restoreVersion(String root, String absolutePath, int version, AsyncCallback<Void> callback);
 }
@@ -0,0 +1,144 @@
+package edu.ucla.loni.client;
+
+import com.google.gwt.user.client.rpc.AsyncCallback;
+
+import com.smartgwt.client.data.DSRequest;
+import com.smartgwt.client.data.DSResponse;
+import com.smartgwt.client.data.DataSource;
+import com.smartgwt.client.data.SortSpecifier;
+import com.smartgwt.client.data.fields.DataSourceTextField;
+import com.smartgwt.client.rpc.RPCResponse;
+import com.smartgwt.client.types.DSDataFormat;
+import com.smartgwt.client.types.DSOperationType;
+import com.smartgwt.client.types.DSProtocol;
+import com.smartgwt.client.types.SortDirection;
+import com.smartgwt.client.widgets.grid.ListGridRecord;
+
+import edu.ucla.loni.shared.Facet;
+import edu.ucla.loni.shared.Pipefile;
+import edu.ucla.loni.shared.SearchResult;
+
+/**
+ * Fetches the search results a page at a time with getSearchPage, for a grid that
+ * only draws and asks for the rows in view
+ * <p>
+ * The search is set with setSearch, the grid then has to fetch again. Sorting a
+ * page of a larger result asks the server for that page in the new order, once every
+ * row has been fetched the grid sorts on its own.
+ * <p>
+ * Records: absolutePath (the key), name, packageName and type.
+ */
+public class SearchDataSource extends DataSource {
+	private final FileServiceAsync fileServer;
+	private final AsyncCallback<SearchResult> listener;
+
+	private String root;
+	private String query = "";
+	private Facet[] filters;
+	private boolean fuzzy;
+
+	/**
+	 *  Changed by setSearch, pages of an older search are not passed to the listener
+	 */
+	private int generation = 0;
+
+	/**
+	 *  @param listener called with every page fetched, facets is set on the first page only,
+	 *         and with the failure of a fetch
+	 */
+	public SearchDataSource(FileServiceAsync fileServer, AsyncCallback<SearchResult> listener){
+		this.fileServer = fileServer;
+		this.listener = listener;
+
+		setDataProtocol(DSProtocol.CLIENTCUSTOM);
+		setDataFormat(DSDataFormat.CUSTOM);
+		setClientOnly(false);
+
+		DataSourceTextField path = new DataSourceTextField("absolutePath", "Path");
+		path.setPrimaryKey(true);
+		path.setHidden(true);
+
+		setFields(path,
+			new DataSourceTextField("name", "Name"),
+			new DataSourceTextField("packageName", "Package"),
+			new DataSourceTextField("type", "Type"));
+	}
+
+	/**
+	 *  Sets what the next fetches search for
+	 *  @param root the root directory, null for every root
+	 */
+	public void setSearch(String root, String query, Facet[] filters, boolean fuzzy){
+		this.root = root;
+		this.query = query;
+		this.filters = filters;
+		this.fuzzy = fuzzy;
+		generation++;
+	}
+
+	protected Object transformRequest(DSRequest request){
+		String requestId = request.getRequestId();
+		DSResponse response = new DSResponse();
+		response.setAttribute("clientContext", request.getAttributeAsObject("clientContext"));
+
+		if (request.getOperationType() == DSOperationType.FETCH){
+			fetch(requestId, request, response);
+		} else {
+			// Results are read only
+			response.setStatus(RPCResponse.STATUS_FAILURE);
+			processResponse(requestId, response);
+		}
+
+		return request.getData();
+	}
+
+	private void fetch(final String requestId, DSRequest request, final DSResponse response){
+		final int start = request.getStartRow() == null ? 0 : request.getStartRow();
+		int end = request.getEndRow() == null ? Integer.MAX_VALUE : request.getEndRow();
+
+		String sortBy = null;
+		boolean descending = false;
+		SortSpecifier[] sort = request.getSortBy();
+		if (sort != null && sort.length > 0){
+			sortBy = sort[0].getField();
+			descending = sort[0].getSortDirection() == SortDirection.DESCENDING;
+		}
+
+		final int fetchedFor = generation;
+		fileServer.getSearchPage(
+			root, query, filters, fuzzy, sortBy, descending, start, end,
+			new AsyncCallback<SearchResult>() {
+				public void onFailure(Throwable caught) {
+					response.setStatus(RPCResponse.STATUS_FAILURE);
+					processResponse(requestId, response);
+
+					if (fetchedFor == generation){
+						listener.onFailure(caught);
+					}
+				}
+
+				public void onSuccess(SearchResult result) {
+					ListGridRecord[] records = new ListGridRecord[result.files.length];
+					for (int i = 0; i < records.length; i++){
+						Pipefile p = result.files[i];
+						records[i] = new ListGridRecord();
+						records[i].setAttribute("absolutePath", p.absolutePath);
+						records[i].setAttribute("name", p.name);
+						records[i].setAttribute("packageName", p.packageName);
+						records[i].setAttribute("type", p.type);
+					}
+
+					response.setData(records);
+					response.setStartRow(start);
+					response.setEndRow(start + records.length);
+					response.setTotalRows(result.total);
+					processResponse(requestId, response);
+
+					if (fetchedFor == generation){
+						listener.onSuccess(result);
+					}
+				}
+			}
+		);
+	}
+}
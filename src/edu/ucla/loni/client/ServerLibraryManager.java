@@ -2,26 +2,37 @@ package edu.ucla.loni.client;
 
 import edu.ucla.loni.shared.*;
 
+import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 
 import com.google.gwt.core.client.EntryPoint;
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.RunAsyncCallback;
 import com.google.gwt.http.client.URL;
+import com.google.gwt.user.client.Cookies;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.client.rpc.SerializationStreamFactory;
 
 import com.smartgwt.client.types.Alignment;
+import com.smartgwt.client.types.FetchMode;
 import com.smartgwt.client.types.KeyNames;
+import com.smartgwt.client.types.SelectionStyle;
 
 import com.smartgwt.client.widgets.events.ClickEvent;  
 import com.smartgwt.client.widgets.events.ClickHandler;
 import com.smartgwt.client.widgets.Button;
 import com.smartgwt.client.widgets.Label;
 import com.smartgwt.client.widgets.form.DynamicForm;
+import com.smartgwt.client.widgets.form.fields.CheckboxItem;
 import com.smartgwt.client.widgets.form.fields.ComboBoxItem;
 import com.smartgwt.client.widgets.form.fields.FormItem;
+import com.smartgwt.client.widgets.form.fields.TextAreaItem;
 import com.smartgwt.client.widgets.form.fields.TextItem;
 import com.smartgwt.client.widgets.form.fields.events.ChangedEvent;
 import com.smartgwt.client.widgets.form.fields.events.ChangedHandler;
@@ -30,6 +41,8 @@ import com.smartgwt.client.widgets.form.fields.events.KeyUpHandler;
 import com.smartgwt.client.widgets.grid.ListGrid;
 import com.smartgwt.client.widgets.grid.ListGridField;
 import com.smartgwt.client.widgets.grid.ListGridRecord;
+import com.smartgwt.client.widgets.grid.events.RecordClickEvent;
+import com.smartgwt.client.widgets.grid.events.RecordClickHandler;
 import com.smartgwt.client.widgets.layout.HLayout;
 import com.smartgwt.client.widgets.layout.VLayout;
 import com.smartgwt.client.widgets.tab.Tab;
@@ -53,6 +66,26 @@ public class ServerLibraryManager implements EntryPoint {
 	 */
 	private FileServiceAsync fileServer = GWT.create(FileService.class);
 	
+	/**
+	 *   Milliseconds between polls of a running job
+	 */
+	private static final int JOB_POLL_INTERVAL = 500;
+	
+	/**
+	 *   Search results fetched at a time
+	 */
+	private static final int RESULTS_PAGE_SIZE = 75;
+	
+	/**
+	 *   Tags suggested while typing a search
+	 */
+	private static final int TAG_SUGGESTIONS = 10;
+	
+	/**
+	 *   Cookie keeping the root directory, also read by the server to embed its files in the host page
+	 */
+	private static final String ROOT_COOKIE = "slmRoot";
+	
 	/**
 	 *   Default Root Directory
 	 */
@@ -89,16 +122,93 @@ public class ServerLibraryManager implements EntryPoint {
 	private final Tree moduleTree = new Tree();
 	
 	/**
-	 *   Results Tree
+	 *   Search results, fetched a page at a time from searchSource as the grid scrolls
 	 *   <p>
 	 *   Set in: treeResults
 	 *   <br>
 	 *   Used in: onModuleLoad
 	 */
-	private final Tree resultsTree = new Tree();
+	private final ListGrid resultsGrid = new ListGrid();
+	
+	/**
+	 *   Data source of resultsGrid
+	 *   <p>
+	 *   Set in: onModuleLoad, treeResults
+	 */
+	private SearchDataSource searchSource;
+	
+	/**
+	 *   Whether resultsGrid has fetched since it was last emptied, 
+	 *   a new search then invalidates its cache instead of fetching
+	 *   <p>
+	 *   Set in: treeResults
+	 */
+	private boolean resultsFetched = false;
+	
+	/**
+	 *   Facet counts of the search results, clicking one toggles it as a filter
+	 *   <p>
+	 *   Set in: treeResults
+	 *   <br>
+	 *   Used in: onModuleLoad
+	 */
+	private final ListGrid facetGrid = new ListGrid();
+	
+	/**
+	 *   String field + "=" + value => Facet filter
+	 *   <p>
+	 *   Set in: facetGrid's RecordClickHandler
+	 *   <br>
+	 *   Used in: treeResults
+	 */
+	private final LinkedHashMap<String, Facet> facetFilters = new LinkedHashMap<String, Facet>();
+	
+	/**
+	 *   Last search query
+	 *   <p>
+	 *   Set in: treeResults
+	 */
+	private String searchQuery = "";
+	
+	/**
+	 *   Whether searches allow typos
+	 *   <p>
+	 *   Set in: onModuleLoad
+	 *   <br>
+	 *   Used in: treeResults
+	 */
+	private boolean searchFuzzy = false;
+	
+	/**
+	 *   Whether searches cover every root directory instead of the current one
+	 *   <p>
+	 *   Set in: onModuleLoad
+	 *   <br>
+	 *   Used in: treeResults
+	 */
+	private boolean searchAllRoots = false;
+	
+	/**
+	 *   Names the roots left out of an every-root search, hidden otherwise
+	 *   <p>
+	 *   Set in: searchSource's listener
+	 */
+	private final Label searchNotice = new Label();
 
 	/**
-	 *  String abosolutePath => Pipefile pipe
+	 *   Files of the last root directory, kept in the browser between page loads
+	 */
+	private final CatalogCache catalogCache = new CatalogCache();
+	
+	/**
+	 *   Catalog version of the files in the trees, null if it is not known
+	 *   <p>
+	 *   Set in: treeRefresh, treeFromCache
+	 */
+	private String treeVersion;
+	
+	/**
+	 *  String abosolutePath => Pipefile pipe, summaries: absolutePath, name, type, packageName and access
 	 *  <p>
 	 *  Set in: treeRefresh
 	 *  <br>
@@ -106,6 +216,24 @@ public class ServerLibraryManager implements EntryPoint {
 	 */
 	private final LinkedHashMap<String, Pipefile> pipes = new LinkedHashMap<String, Pipefile>();
 	
+	/**
+	 *  Most files kept in details
+	 */
+	private static final int DETAILS_CACHE_SIZE = 200;
+	
+	/**
+	 *  String absolutePath => Pipefile pipe with everything, from getPipefileDetails, least recently viewed first
+	 *  <p>
+	 *  Set in: fileDetails, emptied in treeBuild since the files may have changed
+	 *  <br>
+	 *  Used in: viewFile
+	 */
+	private final LinkedHashMap<String, Pipefile> details = new LinkedHashMap<String, Pipefile>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Pipefile> eldest){
+			return size() > DETAILS_CACHE_SIZE;
+		}
+	};
+	
 	/**
 	 *   Set in: treeRefresh 
 	 *   <br>
@@ -123,7 +251,7 @@ public class ServerLibraryManager implements EntryPoint {
 	/**
 	 *   String groupName => Group g
 	 *   <p>
-	 *   Set in viewGroups
+	 *   Set in groupsPanel
 	 *   <br>
 	 *   Used in editGroup
 	 */
@@ -175,6 +303,11 @@ public class ServerLibraryManager implements EntryPoint {
 	 * Entry point method (basically main function)
 	 */
 	public void onModuleLoad() {		
+		String savedRoot = Cookies.getCookie(ROOT_COOKIE);
+		if (savedRoot != null){
+			rootDirectory = savedRoot;
+		}
+		
 		// Header -- Title
 		Label title = new Label ();
 		title.setWidth100();
@@ -196,11 +329,18 @@ public class ServerLibraryManager implements EntryPoint {
 		    	viewGroups();
 		    }
 		});
+		Button duplicatesButton = new Button("Find Duplicates");
+		duplicatesButton.addClickHandler( new ClickHandler() {
+			public void onClick(ClickEvent event) {
+		    	viewDuplicates(false);
+		    }
+		});
 		
 		// Header -- Button Row
 		HLayout buttonRow = new HLayout(5);
 		buttonRow.addMember(importButton);
 		buttonRow.addMember(groupsButton);
+		buttonRow.addMember(duplicatesButton);
 		buttonRow.setMargin(5);
 		
 		// Header
@@ -245,31 +385,135 @@ public class ServerLibraryManager implements EntryPoint {
 	    moduleTreeTab.setPane(moduleTreeGrid);
 	    
 	    // Left -- TreeTabs -- ResultsTreeTab
-	    TreeNode resultsRoot = new TreeNode();
-	    resultsTree.setRoot(resultsRoot);
-	    resultsTree.setShowRoot(false);
+	    searchSource = new SearchDataSource(
+	    	fileServer,
+	    	new AsyncCallback<SearchResult>() {
+	    		public void onFailure(Throwable caught) {
+	    			error("Call to getSearchPage failed");
+	    		}
+	    		
+	    		public void onSuccess(SearchResult page) {
+	    			for (Pipefile p : page.files){
+	    				if (pipes.containsKey(p.absolutePath) == false){
+	    					pipes.put(p.absolutePath, p);
+	    				}
+	    			}
+	    			
+	    			if (page.facets != null){
+	    				facetsBuild(page.facets);
+	    			}
+	    			
+	    			if (page.incompleteRoots != null){
+	    				String roots = "";
+	    				for (String root : page.incompleteRoots){
+	    					roots += (roots.length() == 0 ? "" : ", ") + root;
+	    				}
+	    				searchNotice.setContents("Not searched in time: " + roots);
+	    				searchNotice.show();
+	    			}
+	    		}
+	    	}
+	    );
 	    
-	    TreeGrid resultsTreeGrid = new TreeGrid();
-	    resultsTreeGrid.setData(resultsTree);
-	    resultsTreeGrid.setShowConnectors(false);
-	    resultsTreeGrid.addNodeClickHandler(selectPipefileHandler);
+	    // Only the rows in view are drawn and fetched, sorting by a column sorts on the server
+	    // until every row has been fetched
+	    resultsGrid.setDataSource(searchSource);
+	    resultsGrid.setDataFetchMode(FetchMode.PAGED);
+	    resultsGrid.setDataPageSize(RESULTS_PAGE_SIZE);
+	    resultsGrid.setAutoFetchData(false);
+	    resultsGrid.setShowAllRecords(false);
+	    resultsGrid.setSelectionType(SelectionStyle.MULTIPLE);
+	    resultsGrid.setEmptyMessage("No results");
+	    resultsGrid.setFields(
+	    	new ListGridField("name", "Name"), 
+	    	new ListGridField("packageName", "Package"), 
+	    	new ListGridField("type", "Type")
+	    );
+	    resultsGrid.addRecordClickHandler(new RecordClickHandler() {
+	    	public void onRecordClick(RecordClickEvent event){
+	    		ListGridRecord[] selected = resultsGrid.getSelection();
+	    		if (selected.length == 0){
+	    			basicInstructions();
+	    		}
+	    		else if (selected.length == 1){
+	    			viewFile(selected[0].getAttribute("absolutePath"));
+	    		}
+	    		else {
+	    			selectedFiles = new String[selected.length];
+	    			for (int i = 0; i < selected.length; i++){
+	    				selectedFiles[i] = selected[i].getAttribute("absolutePath");
+	    			}
+	    			fileOperations(selectedFiles);
+	    		}
+	    	}
+	    });
 	    
-	    final TextItem query = new TextItem();
+	    // Suggests tags as the user types, picking one searches for that exact tag
+	    final ComboBoxItem query = new ComboBoxItem();
 	    query.setShowTitle(false);
+	    query.setShowPickerIcon(false);
 	    query.setWidth(290);
 	    query.addChangedHandler(new ChangedHandler(){
 	    	public void onChanged(ChangedEvent event){
 	    		treeResults(query.getValueAsString());
+	    		tagSuggestions(query);
+	    	}
+	    });
+	    
+	    ListGridField facetField = new ListGridField("field", "Facet");
+	    ListGridField facetValue = new ListGridField("value", "Value");
+	    ListGridField facetCount = new ListGridField("count", "Files");
+	    facetCount.setWidth(50);
+	    
+	    facetGrid.setFields(facetField, facetValue, facetCount);
+	    facetGrid.setSelectionType(SelectionStyle.SIMPLE);
+	    facetGrid.setHeight(200);
+	    facetGrid.setShowResizeBar(true);
+	    facetGrid.addRecordClickHandler(new RecordClickHandler() {
+	    	public void onRecordClick(RecordClickEvent event){
+	    		Facet f = new Facet();
+	    		f.field = event.getRecord().getAttribute("field");
+	    		f.value = event.getRecord().getAttribute("value");
+	    		
+	    		String key = f.field + "=" + f.value;
+	    		if (facetFilters.remove(key) == null){
+	    			facetFilters.put(key, f);
+	    		}
+	    		
+	    		treeResults(searchQuery);
 	    	}
 	    });
 
+	    final CheckboxItem fuzzy = new CheckboxItem();
+	    fuzzy.setTitle("Allow typos");
+	    fuzzy.addChangedHandler(new ChangedHandler(){
+	    	public void onChanged(ChangedEvent event){
+	    		searchFuzzy = fuzzy.getValueAsBoolean();
+	    		treeResults(searchQuery);
+	    	}
+	    });
+	    
+	    final CheckboxItem allRoots = new CheckboxItem();
+	    allRoots.setTitle("All roots");
+	    allRoots.addChangedHandler(new ChangedHandler(){
+	    	public void onChanged(ChangedEvent event){
+	    		searchAllRoots = allRoots.getValueAsBoolean();
+	    		treeResults(searchQuery);
+	    	}
+	    });
+	    
+	    searchNotice.setHeight(20);
+	    searchNotice.hide();
+	    
 	    DynamicForm searchForm = new DynamicForm();
-	    searchForm.setFields(new FormItem[] {query});
+	    searchForm.setFields(new FormItem[] {query, fuzzy, allRoots});
 	    searchForm.setWidth100();
 	    
 	    VLayout search = new VLayout(10);
 	    search.addMember(searchForm);
-	    search.addMember(resultsTreeGrid);
+	    search.addMember(facetGrid);
+	    search.addMember(searchNotice);
+	    search.addMember(resultsGrid);
 	    
 	    Tab resultsTreeTab = new Tab("Search");
 	    resultsTreeTab.setPane(search);
@@ -306,7 +550,14 @@ public class ServerLibraryManager implements EntryPoint {
 	    layout.addMember(main);
 	    layout.draw();
 
-	    // Tree Initialization
+	    // Tree Initialization, from the files stored in the browser or else embedded 
+	    // by the host page, while the scan runs
+	    if (treeFromCache() == false){
+	    	Pipefile[] embedded = bootstrapFiles();
+	    	if (embedded != null){
+	    		treeBuild(embedded);
+	    	}
+	    }
 	    treeRefresh();
 	}
 	
@@ -316,129 +567,302 @@ public class ServerLibraryManager implements EntryPoint {
 	
 	/**
 	 *  Updates Package Tree and Module Tree based on the rootDirectory
+	 *  <p>
+	 *  The files are only sent if they changed since treeVersion
 	 */
 	private void treeRefresh(){
-		// Clear packageTree and moduleTree
-		packageTree.removeList(packageTree.getDescendants());
-		moduleTree.removeList(moduleTree.getDescendants());
+		final String root = rootDirectory;
 		
-	    // Update Trees
-		fileServer.getFiles(
-            rootDirectory, 
-            new AsyncCallback<Pipefile[]>() {
+	    // Scan in the background, then update Trees
+		fileServer.startRefresh(
+            root, treeVersion,
+            new AsyncCallback<Integer>() {
 		        public void onFailure(Throwable caught) {
-		        	error("Call to getFiles failed: " + caught.getMessage());
+		        	error("Call to startRefresh failed: " + caught.getMessage());
 		        }
 
-		        public void onSuccess(Pipefile[] result) {
-		        	if (result != null) {
-		        		LinkedHashMap<String, TreeNode> packageMap = new LinkedHashMap<String, TreeNode>();
-		        		LinkedHashMap<String, TreeNode> packageTypeMap = new LinkedHashMap<String, TreeNode>();
-		        	
-		        		LinkedHashMap<String, TreeNode> typeMap = new LinkedHashMap<String, TreeNode>();
-		        		LinkedHashMap<String, TreeNode> typePackageMap = new LinkedHashMap<String, TreeNode>();
-		        	
-			        	for (Pipefile p : result){
-			        		pipes.put(p.absolutePath, p);
-			        		
-			        		TreeNode pipe = new TreeNode(p.name);
-			        		pipe.setAttribute("absolutePath", p.absolutePath);
-			        		
-			        		// Package Tree
-			        		TreeNode packageTreeGrandParent;
-			        		
-			        		if (packageMap.containsKey(p.packageName)){
-			        			packageTreeGrandParent = packageMap.get(p.packageName);
-			        		} else {
-			        			packageTreeGrandParent = new TreeNode(p.packageName);
-			        			packageTree.add(packageTreeGrandParent, packageTree.getRoot());
-			        			packageMap.put(p.packageName, packageTreeGrandParent);
-			        		}
-			        		
-			        		TreeNode packageTreeParent;
-			        		String package_type = p.packageName + p.type;
-			        		
-			        		if (packageTypeMap.containsKey(package_type)){
-			        			packageTreeParent = packageTypeMap.get(package_type);
-			        		} else {
-			        			packageTreeParent = new TreeNode(p.type);
-			        			packageTree.add(packageTreeParent, packageTreeGrandParent);
-			        			packageTypeMap.put(package_type, packageTreeParent);
-			        		}
-			        		
-			        		packageTree.add(pipe, packageTreeParent);
-			        		
-			        		// Module Tree
-			        		TreeNode moduleTreeGrandParent;
-			        		
-			        		if (typeMap.containsKey(p.type)){
-			        			moduleTreeGrandParent = typeMap.get(p.type);
-			        		} else {
-			        			moduleTreeGrandParent = new TreeNode(p.type);
-			        			moduleTree.add(moduleTreeGrandParent, moduleTree.getRoot());
-			        			typeMap.put(p.type, moduleTreeGrandParent);
-			        		}
-			        		
-			        		TreeNode moduleTreeParent;
-			        		String type_package = p.type + p.packageName ;
-			        		
-			        		if (typePackageMap.containsKey(type_package)){
-			        			moduleTreeParent = typePackageMap.get(type_package);
-			        		} else {
-			        			moduleTreeParent = new TreeNode(p.packageName);
-			        			moduleTree.add(moduleTreeParent, moduleTreeGrandParent);
-			        			typePackageMap.put(type_package, moduleTreeParent);
-			        		}
-			        		
-			        		moduleTree.add(pipe, moduleTreeParent);
-			        	}
-		        	
-			        	packages = new String[packageMap.size()];
-			        	packages = packageMap.keySet().toArray(packages);
-		        	}
+		        public void onSuccess(Integer id) {
+		        	waitForJob(id, null, new AsyncCallback<JobStatus>() {
+		        		public void onFailure(Throwable caught) {
+				        	error("Scan failed: " + caught.getMessage());
+				        }
+		        		
+		        		public void onSuccess(JobStatus job) {
+		        			if (root.equals(rootDirectory) == false){
+		        				return; // The root changed while scanning
+		        			}
+		        			if (job.result == null && job.version != null && job.version.equals(treeVersion)){
+		        				return; // The trees are up-to-date
+		        			}
+		        			
+		        			treeBuild(job.result);
+		        			treeVersion = job.version;
+		        			if (job.result != null && job.version != null){
+		        				catalogCache.put(root, job.version, job.result);
+		        			}
+		        		}
+		        	});
 		        }
 		    }
         );
 	}
 	
 	/**
-	 *  Updates ResultsTree based on what query is returned by the server
+	 *  Fills the trees with the files stored in the browser for the root directory, if any
+	 *  @return false if there are none, the trees are left as they are
+	 */
+	private boolean treeFromCache(){
+		Pipefile[] cached = catalogCache.getFiles(rootDirectory);
+		if (cached == null){
+			return false;
+		}
+		
+		treeBuild(cached);
+		treeVersion = catalogCache.getVersion(rootDirectory);
+		return true;
+	}
+	
+	/**
+	 *  Fills Package Tree and Module Tree with the files of the root directory,
+	 *  the trees keep showing the previous files until then
+	 */
+	private void treeBuild(Pipefile[] result){
+		// Clear packageTree and moduleTree
+		packageTree.removeList(packageTree.getDescendants());
+		moduleTree.removeList(moduleTree.getDescendants());
+		pipes.clear();
+		details.clear();
+		
+		if (result != null) {
+			LinkedHashMap<String, TreeNode> packageMap = new LinkedHashMap<String, TreeNode>();
+			LinkedHashMap<String, TreeNode> packageTypeMap = new LinkedHashMap<String, TreeNode>();
+		
+			LinkedHashMap<String, TreeNode> typeMap = new LinkedHashMap<String, TreeNode>();
+			LinkedHashMap<String, TreeNode> typePackageMap = new LinkedHashMap<String, TreeNode>();
+		
+			for (Pipefile p : result){
+				pipes.put(p.absolutePath, p);
+				
+				TreeNode pipe = new TreeNode(p.name);
+				pipe.setAttribute("absolutePath", p.absolutePath);
+				
+				// Package Tree
+				TreeNode packageTreeGrandParent;
+				
+				if (packageMap.containsKey(p.packageName)){
+					packageTreeGrandParent = packageMap.get(p.packageName);
+				} else {
+					packageTreeGrandParent = new TreeNode(p.packageName);
+					packageTree.add(packageTreeGrandParent, packageTree.getRoot());
+					packageMap.put(p.packageName, packageTreeGrandParent);
+				}
+				
+				TreeNode packageTreeParent;
+				String package_type = p.packageName + p.type;
+				
+				if (packageTypeMap.containsKey(package_type)){
+					packageTreeParent = packageTypeMap.get(package_type);
+				} else {
+					packageTreeParent = new TreeNode(p.type);
+					packageTree.add(packageTreeParent, packageTreeGrandParent);
+					packageTypeMap.put(package_type, packageTreeParent);
+				}
+				
+				packageTree.add(pipe, packageTreeParent);
+				
+				// Module Tree
+				TreeNode moduleTreeGrandParent;
+				
+				if (typeMap.containsKey(p.type)){
+					moduleTreeGrandParent = typeMap.get(p.type);
+				} else {
+					moduleTreeGrandParent = new TreeNode(p.type);
+					moduleTree.add(moduleTreeGrandParent, moduleTree.getRoot());
+					typeMap.put(p.type, moduleTreeGrandParent);
+				}
+				
+				TreeNode moduleTreeParent;
+				String type_package = p.type + p.packageName ;
+				
+				if (typePackageMap.containsKey(type_package)){
+					moduleTreeParent = typePackageMap.get(type_package);
+				} else {
+					moduleTreeParent = new TreeNode(p.packageName);
+					moduleTree.add(moduleTreeParent, moduleTreeGrandParent);
+					typePackageMap.put(type_package, moduleTreeParent);
+				}
+				
+				moduleTree.add(pipe, moduleTreeParent);
+			}
+		
+			packages = new String[packageMap.size()];
+			packages = packageMap.keySet().toArray(packages);
+		}
+	}
+	
+	/**
+	 *  @return the files the host page embedded for the root directory, 
+	 *          or null if there are none or they are for another root
+	 */
+	private Pipefile[] bootstrapFiles(){
+		String payload = bootstrapPayload();
+		if (payload == null || rootDirectory.equals(bootstrapRoot()) == false){
+			return null;
+		}
+		
+		try {
+			return (Pipefile[]) ((SerializationStreamFactory) fileServer).createStreamReader(payload).readObject();
+		} catch (SerializationException e){
+			// Encoded for another version of the module, the scan fills the trees
+			return null;
+		}
+	}
+	
+	private static native String bootstrapRoot() /*-{
+		return $wnd.slmBootstrap ? $wnd.slmBootstrap.root : null;
+	}-*/;
+	
+	private static native String bootstrapPayload() /*-{
+		return $wnd.slmBootstrap ? $wnd.slmBootstrap.files : null;
+	}-*/;
+	
+	/**
+	 *  Polls a job until it is done or failed
+	 *  @param id job id returned by one of the start functions
+	 *  @param progress label updated with the progress of the job, can be null
+	 *  @param callback called with the final status, onFailure if the job failed
+	 */
+	private void waitForJob(final int id, final Label progress, final AsyncCallback<JobStatus> callback){
+		Timer poll = new Timer() {
+			public void run() {
+				final Timer timer = this;
+				
+				fileServer.getJob(
+					id,
+					new AsyncCallback<JobStatus>() {
+						public void onFailure(Throwable caught) {
+							callback.onFailure(caught);
+						}
+						
+						public void onSuccess(JobStatus job) {
+							if (job == null){
+								callback.onFailure(new Exception("Job " + id + " no longer exists"));
+							} else if (job.state.equals("Done")){
+								callback.onSuccess(job);
+							} else if (job.state.equals("Failed")){
+								callback.onFailure(new Exception(job.message));
+							} else {
+								if (progress != null && job.total > 0){
+									progress.setContents(job.done + " / " + job.total);
+								}
+								timer.schedule(JOB_POLL_INTERVAL);
+							}
+						}
+					}
+				);
+			}
+		};
+		
+		poll.schedule(JOB_POLL_INTERVAL);
+	}
+	
+	/**
+	 *  Updates the results grid and the facet counts based on what query is returned by the server,
+	 *  only the files with the selected facets are returned
 	 */
 	private void treeResults(final String query){
-		if (query != null && query.length() >= 2){
-			fileServer.getSearchResults(
-	            rootDirectory,
-	            query,
-	            new AsyncCallback<Pipefile[]>() {
-			        public void onFailure(Throwable caught) {
-			        	error("Call to getSearchResults failed");
-			        }
-	
-			        public void onSuccess(Pipefile[] result) {
-			        	// Clear the ResultsTree
-			        	resultsTree.removeList(resultsTree.getDescendants());
-			        	
-			        	if (result != null){
-			        		for (Pipefile p : result){
-			        			if (pipes.containsKey(p.absolutePath) == false){
-			        				pipes.put(p.absolutePath, p);
-			        			}
-				        		
-				        		TreeNode pipe = new TreeNode(p.name);
-				        		pipe.setAttribute("absolutePath", p.absolutePath);
-				        		
-				        		resultsTree.add(pipe, resultsTree.getRoot());
-			        		}
-			        	}
-			        }
-			    }
-	        );
+		searchQuery = query == null ? "" : query;
+		
+		if (searchQuery.length() >= 2 || facetFilters.isEmpty() == false){
+			Facet[] filters = new Facet[facetFilters.size()];
+			filters = facetFilters.values().toArray(filters);
+			
+			// The grid asks the data source for the rows in view, the first page brings the facets
+			// (none for every root, the server then searches each root in parallel and merges them)
+			searchSource.setSearch(searchAllRoots ? null : rootDirectory, searchQuery, filters, searchFuzzy);
+			searchNotice.hide();
+			if (searchAllRoots){
+				facetGrid.setData(new ListGridRecord[0]);
+			}
+			if (resultsFetched){
+				resultsGrid.invalidateCache();
+			} else {
+				resultsGrid.fetchData();
+				resultsFetched = true;
+			}
 		} else {
-			resultsTree.removeList(resultsTree.getDescendants());
+			resultsGrid.setData(new ListGridRecord[0]);
+			resultsFetched = false;
+			searchNotice.hide();
+			facetGrid.setData(new ListGridRecord[0]);
+		}
+	}
+	
+	/**
+	 *  Offers the most used tags starting with what has been typed in the search box
+	 */
+	private void tagSuggestions(final ComboBoxItem query){
+		String prefix = query.getValueAsString();
+		if (prefix == null || prefix.length() == 0){
+			return;
+		}
+		
+		fileServer.getTags(
+			rootDirectory,
+			prefix,
+			TAG_SUGGESTIONS,
+			new AsyncCallback<Facet[]>() {
+				public void onFailure(Throwable caught) {
+					// Suggestions are optional, the search itself reports errors
+				}
+				
+				public void onSuccess(Facet[] result) {
+					String[] tags = new String[result.length];
+					for (int i = 0; i < result.length; i++){
+						tags[i] = result[i].value;
+					}
+					query.setValueMap(tags);
+				}
+			}
+		);
+	}
+	
+	/**
+	 *  Fills the facet grid, selecting the facets being filtered on
+	 */
+	private void facetsBuild(Facet[] facets){
+		ListGridRecord[] records = new ListGridRecord[facets.length];
+		for (int i = 0; i < facets.length; i++){
+			records[i] = new ListGridRecord();
+			records[i].setAttribute("field", facets[i].field);
+			records[i].setAttribute("value", facets[i].value);
+			records[i].setAttribute("count", facets[i].count);
+		}
+		facetGrid.setData(records);
+		
+		for (ListGridRecord record : records){
+			if (facetFilters.containsKey(record.getAttribute("field") + "=" + record.getAttribute("value"))){
+				facetGrid.selectRecord(record);
+			}
 		}
 	}
 	
+	/**
+	 *  Updates the workarea with the operations on the selected files, loaded on demand
+	 */
 	private void fileOperations(final String[] selected){
+		GWT.runAsync(new RunAsyncCallback() {
+			public void onFailure(Throwable reason){
+				error("Could not load the file operations: " + reason.getMessage());
+			}
+			
+			public void onSuccess(){
+				fileOperationsPanel(selected);
+			}
+		});
+	}
+	
+	private void fileOperationsPanel(final String[] selected){
 		clearWorkarea();
 		
 		// WorkareaTitle
@@ -453,18 +877,30 @@ public class ServerLibraryManager implements EntryPoint {
 		Button copy = new Button("Copy");
 		Button move = new Button("Move");
 		
+		final Label progress = new Label();
+		progress.setHeight(20);
+		
 		remove.addClickHandler(new ClickHandler() {
 			public void onClick(ClickEvent event){
-				fileServer.removeFiles(
+				fileServer.startRemove(
 					selected,
-			        new AsyncCallback<Void>() {
+			        new AsyncCallback<Integer>() {
 			        	public void onFailure(Throwable caught) {
-					        error("Call to removeFiles failed");
+					        error("Call to startRemove failed");
 					    }
 			
-					    public void onSuccess(Void result){
-					    	// TODO, update the tree
-					    	basicInstructions();
+					    public void onSuccess(Integer id){
+					    	workarea.addMember(progress, 1);
+					    	waitForJob(id, progress, new AsyncCallback<JobStatus>() {
+					    		public void onFailure(Throwable caught) {
+					    			error("Remove failed: " + caught.getMessage());
+					    		}
+					    		
+					    		public void onSuccess(JobStatus job) {
+					    			treeRefresh();
+					    			basicInstructions();
+					    		}
+					    	});
 					    }
 					}
 				);
@@ -572,15 +1008,200 @@ public class ServerLibraryManager implements EntryPoint {
 
 		Label name = new Label("Name: " + pipe.name);
 		Label packageName = new Label("Package: " + pipe.packageName);
-		Label description = new Label("Description: " + pipe.description);
+		final Label description = new Label("Description: ...");
+		final Label inputs = new Label();
+		final Label outputs = new Label();
+		inputs.hide();
+		outputs.hide();
 		workarea.addMember(name);
 		workarea.addMember(packageName);
 		workarea.addMember(description);
+		workarea.addMember(inputs);
+		workarea.addMember(outputs);
+		
+		// The trees only have summaries, the rest is fetched once the file is viewed
+		fileDetails(absolutePath, new AsyncCallback<Pipefile>() {
+			public void onFailure(Throwable caught) {
+				description.setContents("Description: unknown");
+			}
+			
+			public void onSuccess(Pipefile result) {
+				description.setContents("Description: " + result.description);
+				if (result.inputs != null){
+					inputs.setContents("Inputs: " + parametersText(result.inputs));
+					inputs.show();
+				}
+				if (result.outputs != null){
+					outputs.setContents("Outputs: " + parametersText(result.outputs));
+					outputs.show();
+				}
+			}
+		});
+		
+		// Workflows that would break if this file is moved or removed
+		final Label usedBy = new Label("Used by: ...");
+		usedBy.setHeight(20);
+		workarea.addMember(usedBy);
+		
+		fileServer.getTransitiveDependents(
+			absolutePath,
+			new AsyncCallback<String[]>() {
+				public void onFailure(Throwable caught) {
+					usedBy.setContents("Used by: unknown");
+				}
+				
+				public void onSuccess(String[] result) {
+					if (result.length == 0){
+						usedBy.setContents("Used by: no workflows");
+						return;
+					}
+					
+					String names = "";
+					for (String path : result){
+						Pipefile workflow = pipes.get(path);
+						names += (names.length() > 0 ? ", " : "") + (workflow != null ? workflow.name : path);
+					}
+					usedBy.setContents("Used by: " + names);
+				}
+			}
+		);
 		
+		fileHistory(absolutePath);
 		
 		// TODO display properties
 	}
 	
+	/**
+	 *  Gets everything about a file from details, or else from the server
+	 *  @param callback fails if the file is gone or cannot be accessed
+	 */
+	private void fileDetails(final String absolutePath, final AsyncCallback<Pipefile> callback){
+		Pipefile known = details.get(absolutePath);
+		if (known != null){
+			callback.onSuccess(known);
+			return;
+		}
+		
+		fileServer.getPipefileDetails(
+			new String[] {absolutePath},
+			new AsyncCallback<Pipefile[]>() {
+				public void onFailure(Throwable caught) {
+					callback.onFailure(caught);
+				}
+				
+				public void onSuccess(Pipefile[] result) {
+					if (result.length == 0){
+						callback.onFailure(new Exception("No such file: " + absolutePath));
+						return;
+					}
+					
+					details.put(absolutePath, result[0]);
+					callback.onSuccess(result[0]);
+				}
+			}
+		);
+	}
+	
+	/**
+	 *  Formats Pipefile.inputs or outputs for display
+	 *  <p>
+	 *  Example:<br>
+	 *  "Image\tFile\tNIfTI:nii,Analyze:img" returns "Image (NIfTI, Analyze)"
+	 */
+	private static String parametersText(String parameters){
+		String ret = "";
+		for (String parameter : parameters.split("\n")){
+			String[] fields = parameter.split("\t", -1);
+			if (fields.length < 3){
+				continue;
+			}
+			
+			String formats = "";
+			if (fields[2].length() > 0){
+				for (String fileType : fields[2].split(",")){
+					formats += (formats.length() > 0 ? ", " : "") + fileType.split(":")[0];
+				}
+			} else {
+				formats = fields[1];
+			}
+			
+			ret += (ret.length() > 0 ? "; " : "") + fields[0] + (formats.length() > 0 ? " (" + formats + ")" : "");
+		}
+		return ret;
+	}
+	
+	/**
+	 *  Adds the prior versions of a file to the workarea, clicking one restores it
+	 */
+	private void fileHistory(final String absolutePath){
+		fileServer.getVersions(
+			absolutePath,
+			new AsyncCallback<PipefileVersion[]>() {
+				public void onFailure(Throwable caught) {
+					error("Call to getVersions failed: " + caught.getMessage());
+				}
+				
+				public void onSuccess(PipefileVersion[] result) {
+					if (result.length == 0){
+						return;
+					}
+					
+					Label title = new Label("History");
+					title.setHeight(20);
+					title.setStyleName("workarea-title");
+					workarea.addMember(title);
+					
+					ListGrid grid = new ListGrid();
+					grid.setWidth(600);
+					grid.setHeight(150);
+					ListGridField vField = new ListGridField("version", "Version");
+					vField.setWidth(60);
+					ListGridField tField = new ListGridField("time", "Replaced");
+					ListGridField oField = new ListGridField("operation", "By");
+					grid.setFields(vField, tField, oField);
+					
+					// Newest first
+					ListGridRecord[] records = new ListGridRecord[result.length];
+					for (int i = 0; i < result.length; i++){
+						PipefileVersion v = result[result.length - 1 - i];
+						
+						ListGridRecord record = new ListGridRecord();
+						record.setAttribute("version", v.version);
+						record.setAttribute("time", v.time);
+						record.setAttribute("operation", v.operation);
+						records[i] = record;
+					}
+					grid.setData(records);
+					
+					grid.addRecordClickHandler(new RecordClickHandler() {
+						public void onRecordClick(RecordClickEvent event){
+							int version = event.getRecord().getAttributeAsInt("version");
+							if (Window.confirm("Restore version " + version + "? The current file is kept in the history.") == false){
+								return;
+							}
+							
+							fileServer.restoreVersion(
+								rootDirectory, absolutePath, version,
+								new AsyncCallback<Void>() {
+									public void onFailure(Throwable caught) {
+										error("Call to restoreVersion failed: " + caught.getMessage());
+									}
+									
+									public void onSuccess(Void result) {
+										treeRefresh();
+										clearWorkarea();
+									}
+								}
+							);
+						}
+					});
+					
+					workarea.addMember(grid);
+				}
+			}
+		);
+	}
+	
 	/**
 	 *  Updates the workarea with a form to edit the file
 	 */
@@ -593,42 +1214,229 @@ public class ServerLibraryManager implements EntryPoint {
 	}
 	
 	/**
-	 *  Updates workarea with a list of the groups 
+	 *  Updates workarea with a list of the groups, group management is loaded on demand
 	 */
 	private void viewGroups(){
-		// TODO
-		// Call getGroups, save into private variable groups
-		
-		// Create a table
-		
-		// For each group
-		//   Create a row in a table
-		//   First column = name
-		//   Second column = user list
-		//   Third column = Edit Button
-		//      OnClick - call groupEdit
-		//   Fourth = Remove Button
-		//      Disabled if the group is in use
-		//      OnClick - call removeGroup, then groupViewSummary
+		GWT.runAsync(new RunAsyncCallback() {
+			public void onFailure(Throwable reason){
+				error("Could not load group management: " + reason.getMessage());
+			}
+			
+			public void onSuccess(){
+				groupsPanel();
+			}
+		});
+	}
+	
+	private void groupsPanel(){
+		fileServer.getGroups(
+			new AsyncCallback<Group[]>() {
+				public void onFailure(Throwable caught) {
+					error("Call to getGroups failed: " + caught.getMessage());
+				}
+				
+				public void onSuccess(Group[] result) {
+					clearWorkarea();
+					
+					Label title = new Label("Groups");
+					title.setHeight(20);
+					title.setStyleName("workarea-title");
+					workarea.addMember(title);
+					
+					Button newGroup = new Button("New Group");
+					newGroup.addClickHandler(new ClickHandler() {
+						public void onClick(ClickEvent event){
+							editGroup(null);
+						}
+					});
+					workarea.addMember(newGroup);
+					
+					ListGrid grid = new ListGrid();
+					grid.setWidth(600);
+					ListGridField nField = new ListGridField("name", "Name");
+					nField.setWidth(150);
+					ListGridField uField = new ListGridField("users", "Users");
+					grid.setFields(nField, uField);
+					
+					groups.clear();
+					ListGridRecord[] records = new ListGridRecord[result.length];
+					for (int i = 0; i < result.length; i++){
+						groups.put(result[i].name, result[i]);
+						
+						ListGridRecord record = new ListGridRecord();
+						record.setAttribute("name", result[i].name);
+						record.setAttribute("users", result[i].users);
+						records[i] = record;
+					}
+					grid.setData(records);
+					
+					// Clicking a group edits it
+					grid.addRecordClickHandler(new RecordClickHandler() {
+						public void onRecordClick(RecordClickEvent event){
+							editGroup(event.getRecord().getAttribute("name"));
+						}
+					});
+					
+					workarea.addMember(grid);
+				}
+			}
+		);
 	}
 
 	/**
 	 *  Updates workarea with a form to edit a group 
-	 *  @param groupIndex is an index into the currentGroups
+	 *  @param groupName name of the group in groups, null to create a new group
 	 */
 	private void editGroup(String groupName){
-		// TODO
+		clearWorkarea();
+		
+		Group group = groupName == null ? null : groups.get(groupName);
+		
+		Label title = new Label(group == null ? "New Group" : "Edit Group");
+		title.setHeight(20);
+		title.setStyleName("workarea-title");
+		workarea.addMember(title);
 		
-		// Find the group in the private variable
+		final TextItem name = new TextItem();
+		name.setTitle("Name");
 		
-		// Create a form
-		// Textarea to edit the users 
+		final TextAreaItem users = new TextAreaItem();
+		users.setTitle("Users (comma separated)");
+		users.setWidth(400);
+		
+		if (group != null){
+			name.setValue(group.name);
+			name.setDisabled(true);
+			users.setValue(group.users);
+		}
+		
+		DynamicForm form = new DynamicForm();
+		form.setFields(new FormItem[] {name, users});
+		workarea.addMember(form);
+		
+		Button save = new Button("Save");
+		save.addClickHandler(new ClickHandler() {
+			public void onClick(ClickEvent event){
+				Group g = new Group();
+				g.name = name.getValueAsString();
+				g.users = users.getValueAsString();
+				
+				fileServer.updateGroup(
+					g,
+					new AsyncCallback<Void>() {
+						public void onFailure(Throwable caught) {
+							error("Call to updateGroup failed: " + caught.getMessage());
+						}
+						
+						public void onSuccess(Void result) {
+							viewGroups();
+						}
+					}
+				);
+			}
+		});
+		workarea.addMember(save);
+	}
+	
+	/**
+	 *  Updates workarea with the files that are copies of each other, in every root directory
+	 *  @param byMetadata group files with the same metadata instead of the same content
+	 */
+	private void viewDuplicates(final boolean byMetadata){
+		GWT.runAsync(new RunAsyncCallback() {
+			public void onFailure(Throwable reason){
+				error("Could not load duplicate detection: " + reason.getMessage());
+			}
+			
+			public void onSuccess(){
+				duplicatesPanel(byMetadata);
+			}
+		});
+	}
+	
+	private void duplicatesPanel(final boolean byMetadata){
+		fileServer.getDuplicates(
+			null, byMetadata,
+			new AsyncCallback<DuplicateCluster[]>() {
+				public void onFailure(Throwable caught) {
+					error("Call to getDuplicates failed: " + caught.getMessage());
+				}
+				
+				public void onSuccess(DuplicateCluster[] result) {
+					clearWorkarea();
+					
+					Label title = new Label("Duplicates");
+					title.setHeight(20);
+					title.setStyleName("workarea-title");
+					workarea.addMember(title);
+					
+					final CheckboxItem metadata = new CheckboxItem();
+					metadata.setTitle("Same metadata instead of identical content");
+					metadata.setValue(byMetadata);
+					metadata.addChangedHandler(new ChangedHandler(){
+						public void onChanged(ChangedEvent event){
+							duplicatesPanel(metadata.getValueAsBoolean());
+						}
+					});
+					
+					DynamicForm form = new DynamicForm();
+					form.setFields(new FormItem[] {metadata});
+					workarea.addMember(form);
+					
+					if (result.length == 0){
+						workarea.addMember(new Label("No duplicates found"));
+						return;
+					}
+					
+					ListGrid grid = new ListGrid();
+					grid.setWidth(600);
+					ListGridField cField = new ListGridField("cluster", "Group");
+					cField.setWidth(50);
+					ListGridField nField = new ListGridField("name", "Name");
+					nField.setWidth(150);
+					ListGridField pField = new ListGridField("absolutePath", "Path");
+					grid.setFields(cField, nField, pField);
+					
+					int count = 0;
+					for (DuplicateCluster cluster : result){
+						count += cluster.files.length;
+					}
+					
+					ListGridRecord[] records = new ListGridRecord[count];
+					int i = 0;
+					for (int c = 0; c < result.length; c++){
+						for (Pipefile pipe : result[c].files){
+							ListGridRecord record = new ListGridRecord();
+							record.setAttribute("cluster", c + 1);
+							record.setAttribute("name", pipe.name);
+							record.setAttribute("absolutePath", pipe.absolutePath);
+							records[i++] = record;
+						}
+					}
+					grid.setData(records);
+					
+					workarea.addMember(grid);
+				}
+			}
+		);
 	}
 	
 	/**
-	 *  Updates the workarea with an import form
+	 *  Updates the workarea with an import form, loaded on demand
 	 */
 	private void importForm(){
+		GWT.runAsync(new RunAsyncCallback() {
+			public void onFailure(Throwable reason){
+				error("Could not load the import form: " + reason.getMessage());
+			}
+			
+			public void onSuccess(){
+				importPanel();
+			}
+		});
+	}
+	
+	private void importPanel(){
 		// TODO
 		
 		// Allow user to select files/folders
@@ -683,6 +1491,7 @@ public class ServerLibraryManager implements EntryPoint {
 	            	String newRoot = newDir.getValueAsString();
 	            	Boolean updateTree = rootDirectory.equals(newRoot) == false;
 	            	rootDirectory = newRoot;
+	            	Cookies.setCookie(ROOT_COOKIE, newRoot, new Date(new Date().getTime() + 365L * 24 * 60 * 60 * 1000));
             		
             		// Update the view
             		container.removeMember(form);
@@ -690,6 +1499,8 @@ public class ServerLibraryManager implements EntryPoint {
         	        
         	        // Update the tree if need be
         	        if (updateTree){
+        	        	treeVersion = null;
+        	        	treeFromCache();
         	        	treeRefresh();
         	        }
 	            }
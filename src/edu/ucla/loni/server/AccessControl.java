@@ -0,0 +1,171 @@
+package edu.ucla.loni.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import edu.ucla.loni.shared.Group;
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * Compiled access-control evaluator
+ * <p>
+ * An access expression (Pipefile.access) is a comma separated list of users and group names,
+ * an empty expression means everybody has access. Every group, and every user named directly,
+ * gets a bit. Each distinct expression is compiled once into a bitmask and each user is resolved
+ * once into the mask of their own bit plus their groups' bits, so checking a file is a bitwise AND.
+ * <p>
+ * Built from the groups in the database, a new instance must be created when groups change.
+ */
+public class AccessControl {
+	private final HashSet<String> groupNames = new HashSet<String>();
+	private final HashMap<String, HashSet<String>> userGroups = new HashMap<String, HashSet<String>>();
+
+	// "g:name" or "u:name" => bit
+	private final HashMap<String, Integer> principals = new HashMap<String, Integer>();
+
+	// access expression => mask (null for public), user => mask
+	private final HashMap<String, long[]> compiled = new HashMap<String, long[]>();
+	private final HashMap<String, long[]> users = new HashMap<String, long[]>();
+
+	public AccessControl(Group[] groups){
+		for (Group g : groups){
+			groupNames.add(g.name);
+			bit("g:" + g.name);
+
+			for (String user : split(g.users)){
+				HashSet<String> memberOf = userGroups.get(user);
+				if (memberOf == null){
+					memberOf = new HashSet<String>();
+					userGroups.put(user, memberOf);
+				}
+				memberOf.add(g.name);
+			}
+		}
+	}
+
+	/**
+	 * @return the mask of an access expression, null if everybody has access
+	 */
+	public synchronized long[] compile(String access){
+		if (access == null || access.trim().length() == 0){
+			return null;
+		}
+
+		if (compiled.containsKey(access)){
+			return compiled.get(access);
+		}
+
+		ArrayList<Integer> bits = new ArrayList<Integer>();
+		for (String name : split(access)){
+			bits.add(bit(groupNames.contains(name) ? "g:" + name : "u:" + name));
+		}
+
+		long[] mask = mask(bits);
+		compiled.put(access, mask);
+		return mask;
+	}
+
+	/**
+	 * @return the mask of everything the user is, themselves and their groups
+	 */
+	public synchronized long[] userMask(String user){
+		long[] mask = users.get(user);
+		if (mask == null){
+			ArrayList<Integer> bits = new ArrayList<Integer>();
+			bits.add(bit("u:" + user));
+
+			HashSet<String> memberOf = userGroups.get(user);
+			if (memberOf != null){
+				for (String group : memberOf){
+					bits.add(bit("g:" + group));
+				}
+			}
+
+			mask = mask(bits);
+			users.put(user, mask);
+		}
+
+		return mask;
+	}
+
+	/**
+	 * @param fileMask compiled access expression, null if public
+	 * @param userMask mask returned by userMask
+	 */
+	public static boolean allows(long[] fileMask, long[] userMask){
+		if (fileMask == null){
+			return true;
+		}
+
+		int words = Math.min(fileMask.length, userMask.length);
+		for (int i = 0; i < words; i++){
+			if ((fileMask[i] & userMask[i]) != 0){
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the files the user can access
+	 */
+	public Pipefile[] filter(Pipefile[] files, String user){
+		long[] userMask = userMask(user);
+
+		ArrayList<Pipefile> allowed = new ArrayList<Pipefile>(files.length);
+		for (Pipefile p : files){
+			if (allows(compile(p.access), userMask)){
+				allowed.add(p);
+			}
+		}
+
+		Pipefile[] ret = new Pipefile[allowed.size()];
+		return allowed.toArray(ret);
+	}
+
+	/**
+	 * @return the bit of a principal, assigned on first use
+	 */
+	private int bit(String principal){
+		Integer bit = principals.get(principal);
+		if (bit == null){
+			bit = principals.size();
+			principals.put(principal, bit);
+		}
+
+		return bit;
+	}
+
+	private static long[] mask(ArrayList<Integer> bits){
+		int max = 0;
+		for (int bit : bits){
+			max = Math.max(max, bit);
+		}
+
+		long[] mask = new long[max / 64 + 1];
+		for (int bit : bits){
+			mask[bit / 64] |= 1L << (bit % 64);
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Splits a comma separated list, ignoring whitespace and empty entries
+	 */
+	static ArrayList<String> split(String list){
+		ArrayList<String> ret = new ArrayList<String>();
+		if (list != null){
+			for (String s : list.split(",")){
+				s = s.trim();
+				if (s.length() > 0){
+					ret.add(s);
+				}
+			}
+		}
+
+		return ret;
+	}
+}
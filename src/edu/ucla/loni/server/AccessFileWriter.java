@@ -0,0 +1,214 @@
+package edu.ucla.loni.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the Pipeline server access restrictions file in sync with the catalog
+ * <p>
+ * The file's content (absolute path => access expression, public files are left out)
+ * is held in memory and changed one file at a time. Changes are not written right away:
+ * the file is rewritten once things have been quiet for QUIET_MS (or at the latest MAX_DELAY_MS
+ * after the first change), so a bulk move or remove of thousands of files causes one rewrite.
+ * Writes go to a temporary file that is renamed over the old one, readers never see half a file.
+ * <p>
+ * Format:<br>
+ * {@literal <accessRestrictions><file path="/lib/a.pipe" access="alice, mri" /></accessRestrictions>}
+ */
+public class AccessFileWriter {
+	private static final long QUIET_MS = 500;
+	private static final long MAX_DELAY_MS = 5000;
+
+	private static final Metrics.Counter writes =
+		Metrics.counter("slm_access_file_writes_total", "Rewrites of the access restrictions file");
+
+	private final File file;
+	private final TreeMap<String, String> restrictions = new TreeMap<String, String>();
+
+	private boolean scheduled = false;
+	private long firstChange;
+	private long lastChange;
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r, "slm-access-file");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * @param file the access restrictions file, null to only keep the model in memory
+	 * @param initial absolute path => access expression of every file, as stored in the catalog
+	 */
+	public AccessFileWriter(File file, Map<String, String> initial){
+		this.file = file;
+		for (Map.Entry<String, String> entry : initial.entrySet()){
+			set(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Records the access expression of a file, an empty expression removes its restriction
+	 */
+	public synchronized void put(String absolutePath, String access){
+		String old = restrictions.get(absolutePath);
+		set(absolutePath, access);
+
+		if (equal(old, restrictions.get(absolutePath)) == false){
+			changed();
+		}
+	}
+
+	/**
+	 * Forgets a removed file
+	 */
+	public synchronized void remove(String absolutePath){
+		if (restrictions.remove(absolutePath) != null){
+			changed();
+		}
+	}
+
+	/**
+	 * Moves the restriction of a file to its new path
+	 */
+	public synchronized void rename(String oldPath, String newPath){
+		String access = restrictions.remove(oldPath);
+		if (access != null){
+			restrictions.put(newPath, access);
+			changed();
+		}
+	}
+
+	/**
+	 * Writes pending changes now and stops the timer
+	 */
+	public void close() throws Exception {
+		timer.shutdownNow();
+
+		boolean dirty;
+		synchronized (this){
+			dirty = scheduled;
+			scheduled = false;
+		}
+		if (dirty){
+			write();
+		}
+	}
+
+	private void set(String absolutePath, String access){
+		if (access == null || access.trim().length() == 0){
+			restrictions.remove(absolutePath);
+		} else {
+			restrictions.put(absolutePath, access.trim());
+		}
+	}
+
+	/**
+	 * Schedules a write if none is pending, called with the lock held
+	 */
+	private void changed(){
+		lastChange = System.currentTimeMillis();
+
+		if (scheduled == false){
+			scheduled = true;
+			firstChange = lastChange;
+			schedule(QUIET_MS);
+		}
+	}
+
+	private void schedule(long delay){
+		try {
+			timer.schedule(new Runnable() {
+				public void run(){
+					flush();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (Exception e){
+			// Closed, close() writes whatever is pending
+		}
+	}
+
+	/**
+	 * Runs on the timer, writes unless changes are still arriving
+	 */
+	private void flush(){
+		synchronized (this){
+			long now = System.currentTimeMillis();
+			long quietFor = now - lastChange;
+
+			if (quietFor < QUIET_MS && now - firstChange < MAX_DELAY_MS){
+				schedule(Math.min(QUIET_MS - quietFor, MAX_DELAY_MS - (now - firstChange)));
+				return;
+			}
+
+			scheduled = false;
+		}
+
+		try {
+			write();
+		} catch (Exception e){
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the model to a temporary file and renames it over the access file
+	 */
+	private void write() throws Exception {
+		if (file == null){
+			return;
+		}
+
+		TreeMap<String, String> snapshot;
+		synchronized (this){
+			snapshot = new TreeMap<String, String>(restrictions);
+		}
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+
+		try {
+			FileOutputStream stream = new FileOutputStream(temp);
+			Writer out = new OutputStreamWriter(stream, "UTF-8");
+			try {
+				out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+				out.write("<accessRestrictions>\n");
+				for (Map.Entry<String, String> entry : snapshot.entrySet()){
+					out.write("\t<file path=\"" + escape(entry.getKey()) + "\" access=\"" + escape(entry.getValue()) + "\" />\n");
+				}
+				out.write("</accessRestrictions>\n");
+				out.flush();
+				stream.getFD().sync();
+			} finally {
+				out.close();
+			}
+
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			writes.inc();
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private static String escape(String s){
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static boolean equal(String a, String b){
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,313 @@
+package edu.ucla.loni.server;
+
+import java.io.IOException;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Limits how many expensive requests run at once and how often one session can make them,
+ * so an overloaded server turns requests away right away instead of piling up threads
+ * <p>
+ * Requests are grouped by operation: scan, search, write, download and upload. Each has:
+ * <ul>
+ * <li>concurrency - requests running at the same time</li>
+ * <li>waiting - requests waiting for one of them to finish, more are turned away at once</li>
+ * <li>timeout - milliseconds a request waits before it is turned away</li>
+ * <li>rate / burst - requests per second a session can make on average (0 for no limit),
+ *     and how many it can make in a row (a token bucket per session)</li>
+ * </ul>
+ * Each setting can be changed with the system property edu.ucla.loni.admission.OPERATION.SETTING,
+ * such as edu.ucla.loni.admission.scan.concurrency.
+ * <p>
+ * A request over its session's rate is refused with TOO_MANY_REQUESTS, one the server has
+ * no room for with SERVICE_UNAVAILABLE, both with the seconds to wait before retrying.
+ * The limits and the requests running and waiting are exported as metrics, by operation.
+ */
+public class AdmissionControl {
+	public static final int TOO_MANY_REQUESTS = 429;
+	public static final int SERVICE_UNAVAILABLE = 503;
+
+	/**
+	 *  {operation, concurrency, waiting, timeout, rate, burst}
+	 */
+	private static final String[][] DEFAULTS = {
+		{"scan",		"2",	"8",	"2000",	"0.5",	"3"},
+		{"search",		"8",	"32",	"1000",	"10",	"20"},
+		{"write",		"2",	"16",	"5000",	"2",	"10"},
+		{"download",	"8",	"32",	"2000",	"20",	"40"},
+		{"upload",		"2",	"4",	"2000",	"1",	"3"},
+	};
+
+	/**
+	 *  Token buckets kept before the full ones (sessions gone quiet) are dropped
+	 */
+	private static final int MAX_BUCKETS = 10000;
+
+	private static final AdmissionControl shared = new AdmissionControl();
+
+	/**
+	 *  A request turned away
+	 */
+	@SuppressWarnings("serial")
+	public static class Rejected extends Exception {
+		public final int status;
+		public final int retryAfter;
+
+		Rejected(String message, int status, int retryAfter){
+			super(message);
+			this.status = status;
+			this.retryAfter = retryAfter;
+		}
+
+		/**
+		 *  Answers the request with the status and a Retry-After header
+		 */
+		public void send(HttpServletResponse response) throws IOException {
+			response.setHeader("Retry-After", String.valueOf(retryAfter));
+			response.sendError(status, getMessage());
+		}
+	}
+
+	/**
+	 *  Room for one running request, released when it is done
+	 */
+	public static class Permit {
+		private final Limit limit;
+
+		Permit(Limit limit){
+			this.limit = limit;
+		}
+
+		public void release(){
+			if (limit != null){
+				limit.running.dec();
+				limit.slots.release();
+			}
+		}
+	}
+
+	/**
+	 *  Settings and state of one operation
+	 */
+	private static class Limit {
+		final String operation;
+		final int waitingLimit;
+		final long timeout;
+		final double rate;
+		final double burst;
+
+		final Semaphore slots;
+		final AtomicInteger waiting = new AtomicInteger();
+
+		final Metrics.Gauge running;
+		final Metrics.Gauge queued;
+		final Metrics.Counter rateLimited;
+		final Metrics.Counter overloaded;
+		final LatencyHistogram waitTime;
+
+		Limit(String operation, int concurrency, int waitingLimit, long timeout, double rate, double burst){
+			this.operation = operation;
+			this.waitingLimit = waitingLimit;
+			this.timeout = timeout;
+			this.rate = rate;
+			this.burst = burst;
+
+			// Fair, requests run in the order they arrived
+			slots = new Semaphore(concurrency, true);
+
+			running = Metrics.gauge("slm_admission_running", "Requests running, by operation", "operation", operation);
+			queued = Metrics.gauge("slm_admission_waiting", "Requests waiting to run, by operation", "operation", operation);
+			rateLimited = Metrics.counter("slm_admission_rate_limited_total",
+				"Requests refused for going over their session's rate, by operation", "operation", operation);
+			overloaded = Metrics.counter("slm_admission_overloaded_total",
+				"Requests refused for lack of room to run them, by operation", "operation", operation);
+			waitTime = Metrics.histogram("slm_admission_wait_seconds",
+				"Time requests waited to run, by operation", "operation", operation);
+
+			Metrics.gauge("slm_admission_concurrency_limit", "Requests that can run at once, by operation",
+				"operation", operation).set(concurrency);
+			Metrics.gauge("slm_admission_waiting_limit", "Requests that can wait to run, by operation",
+				"operation", operation).set(waitingLimit);
+		}
+	}
+
+	/**
+	 *  Requests a session can make, refilled at the rate of its operation
+	 */
+	private static class TokenBucket {
+		private double tokens;
+		private long refilled = System.nanoTime();
+
+		TokenBucket(double burst){
+			tokens = burst;
+		}
+
+		/**
+		 *  @return 0 if a token was taken, otherwise the milliseconds until there is one
+		 */
+		synchronized long take(double rate, double burst){
+			refill(rate, burst);
+			if (tokens >= 1){
+				tokens--;
+				return 0;
+			}
+
+			return (long) Math.ceil((1 - tokens) / rate * 1000);
+		}
+
+		synchronized boolean isFull(double rate, double burst){
+			refill(rate, burst);
+			return tokens >= burst;
+		}
+
+		private void refill(double rate, double burst){
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - refilled) / 1e9 * rate);
+			refilled = now;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+	// operation + "\n" + session => bucket
+	private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+
+	/**
+	 *  @return the admission control shared by the servlets of the webapp
+	 */
+	public static AdmissionControl get(){
+		return shared;
+	}
+
+	/**
+	 *  @return who the request comes from for rate limiting: the remote user, else the session,
+	 *          else the remote address; null without a request
+	 */
+	public static String sessionOf(HttpServletRequest request){
+		if (request == null){
+			return null;
+		}
+		if (request.getRemoteUser() != null){
+			return "user:" + request.getRemoteUser();
+		}
+
+		HttpSession session = request.getSession(false);
+		if (session != null){
+			return "session:" + session.getId();
+		}
+
+		return "address:" + request.getRemoteAddr();
+	}
+
+	/**
+	 *  Waits for room to run a request, within the operation's limits
+	 *  @param operation null for a request that is not limited
+	 *  @param session as sessionOf, null to skip the rate limit
+	 *  @return the permit to release once the request is done
+	 *  @throws Rejected if the request is turned away
+	 */
+	public Permit acquire(String operation, String session) throws Rejected {
+		if (operation == null){
+			return new Permit(null);
+		}
+
+		Limit limit = limit(operation);
+
+		if (session != null && limit.rate > 0){
+			long wait = bucket(limit, session).take(limit.rate, limit.burst);
+			if (wait > 0){
+				limit.rateLimited.inc();
+				throw new Rejected("Too many " + operation + " requests, try again later",
+					TOO_MANY_REQUESTS, (int) Math.max(1, (wait + 999) / 1000));
+			}
+		}
+
+		if (limit.slots.tryAcquire() == false){
+			if (limit.waiting.incrementAndGet() > limit.waitingLimit){
+				limit.waiting.decrementAndGet();
+				limit.overloaded.inc();
+				throw new Rejected("Server is busy, try again later", SERVICE_UNAVAILABLE, 1);
+			}
+
+			limit.queued.inc();
+			long start = System.nanoTime();
+			boolean acquired;
+			try {
+				acquired = limit.slots.tryAcquire(limit.timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				acquired = false;
+			} finally {
+				limit.waiting.decrementAndGet();
+				limit.queued.dec();
+				limit.waitTime.recordSince(start);
+			}
+
+			if (acquired == false){
+				limit.overloaded.inc();
+				throw new Rejected("Server is busy, try again later", SERVICE_UNAVAILABLE, 1);
+			}
+		}
+
+		limit.running.inc();
+		return new Permit(limit);
+	}
+
+	private Limit limit(String operation){
+		Limit limit = limits.get(operation);
+		if (limit == null){
+			String[] defaults = {operation, "4", "16", "2000", "0", "1"};
+			for (String[] d : DEFAULTS){
+				if (d[0].equals(operation)){
+					defaults = d;
+				}
+			}
+
+			String prefix = "edu.ucla.loni.admission." + operation + ".";
+			limits.putIfAbsent(operation, new Limit(operation,
+				Integer.parseInt(System.getProperty(prefix + "concurrency", defaults[1])),
+				Integer.parseInt(System.getProperty(prefix + "waiting", defaults[2])),
+				Long.parseLong(System.getProperty(prefix + "timeout", defaults[3])),
+				Double.parseDouble(System.getProperty(prefix + "rate", defaults[4])),
+				Double.parseDouble(System.getProperty(prefix + "burst", defaults[5]))));
+			limit = limits.get(operation);
+		}
+
+		return limit;
+	}
+
+	private TokenBucket bucket(Limit limit, String session){
+		String key = limit.operation + "\n" + session;
+		TokenBucket bucket = buckets.get(key);
+		if (bucket == null){
+			if (buckets.size() >= MAX_BUCKETS){
+				purge();
+			}
+			buckets.putIfAbsent(key, new TokenBucket(limit.burst));
+			bucket = buckets.get(key);
+		}
+
+		return bucket;
+	}
+
+	/**
+	 *  Drops the buckets that have refilled, their sessions start over with a full one anyway
+	 */
+	private void purge(){
+		for (Iterator<String> it = buckets.keySet().iterator(); it.hasNext(); ){
+			String key = it.next();
+			Limit limit = limits.get(key.substring(0, key.indexOf('\n')));
+			if (buckets.get(key).isFull(limit.rate, limit.burst)){
+				it.remove();
+			}
+		}
+	}
+}
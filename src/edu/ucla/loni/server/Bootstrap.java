@@ -0,0 +1,207 @@
+package edu.ucla.loni.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.URLDecoder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gwt.user.server.rpc.RPC;
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.SerializationPolicyLoader;
+
+import edu.ucla.loni.client.FileService;
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * Serves the files of the user's root directory as a script the host page loads next to the
+ * module, so the trees are filled as soon as the module starts instead of after a scan
+ * <p>
+ * The root is the one the client last used, kept in the ROOT_COOKIE cookie. The files are
+ * taken from the catalog as they are, the client still scans and refreshes the trees.
+ * They are GWT RPC encoded, as getFiles would return them, with the serialization
+ * policy of the compiled module. Encoded scripts are kept until the catalog changes
+ * and answered with an ETag, an unchanged library costs a 304.
+ * <p>
+ * Script: {@literal var slmBootstrap = {root: "...", files: "..."};} or
+ * {@literal var slmBootstrap = null;} when there is nothing to embed.
+ */
+@SuppressWarnings("serial")
+public class Bootstrap extends HttpServlet {
+	public static final String ROOT_COOKIE = "slmRoot";
+
+	/**
+	 *  Most scripts kept, by root and user
+	 */
+	private static final int CACHE_SIZE = 16;
+
+	private static final LatencyHistogram bootstrapTime =
+		Metrics.histogram("slm_bootstrap_seconds", "Time to serve the bootstrap script");
+	private static final Metrics.Counter notModified =
+		Metrics.counter("slm_bootstrap_not_modified_total", "Bootstrap requests answered with 304 Not Modified");
+
+	// root + user => {catalog version, script}, least recently used first
+	private final LinkedHashMap<String, String[]> scripts = new LinkedHashMap<String, String[]>(CACHE_SIZE, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest){
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private SerializationPolicy policy;
+	private long policyModified;
+
+	public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		long start = System.nanoTime();
+		try {
+			bootstrap(request, response);
+		} finally {
+			bootstrapTime.recordSince(start);
+		}
+	}
+
+	private void bootstrap(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		response.setContentType("text/javascript; charset=utf-8");
+		// Cached by the browser, but checked every time
+		response.setHeader("Cache-Control", "private, no-cache");
+
+		FileServiceImpl service = (FileServiceImpl) getServletContext().getAttribute(FileServiceImpl.class.getName());
+		String root = getRoot(request);
+		if (service == null || root == null){
+			response.getWriter().write("var slmBootstrap = null;");
+			return;
+		}
+
+		String user = request.getRemoteUser();
+		String key = root + "\n" + user;
+
+		try {
+			String version = service.getCatalogVersion();
+			String etag = "\"" + Integer.toHexString((key + "\n" + version).hashCode()) + "\"";
+			if (etag.equals(request.getHeader("If-None-Match"))){
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				notModified.inc();
+				return;
+			}
+
+			String script;
+			synchronized (scripts){
+				String[] cached = scripts.get(key);
+				script = cached != null && cached[0].equals(version) ? cached[1] : null;
+			}
+
+			if (script == null){
+				script = script(root, service.getCatalogFiles(root, user));
+				synchronized (scripts){
+					scripts.put(key, new String[] {version, script});
+				}
+			}
+
+			response.setHeader("ETag", etag);
+			PrintWriter out = response.getWriter();
+			out.write(script);
+		} catch (Exception e){
+			// The client scans as it would without the bootstrap
+			e.printStackTrace();
+			response.getWriter().write("var slmBootstrap = null;");
+		}
+	}
+
+	/**
+	 *  @return the root directory from the cookie, or null if the client has not set one
+	 */
+	private static String getRoot(HttpServletRequest request) throws IOException {
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null){
+			for (Cookie cookie : cookies){
+				if (ROOT_COOKIE.equals(cookie.getName())){
+					return URLDecoder.decode(cookie.getValue(), "UTF-8");
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private String script(String root, Pipefile[] files) throws Exception {
+		SerializationPolicy p = getPolicy();
+		if (files == null || p == null){
+			return "var slmBootstrap = null;";
+		}
+
+		// What the client's stream reader expects is the response without its "//OK" prefix
+		String payload = RPC.encodeResponseForSuccess(FileService.class.getMethod("getFiles", String.class), files, p);
+		payload = payload.substring(4);
+
+		return "var slmBootstrap = {root: " + quote(root) + ", files: " + quote(payload) + "};";
+	}
+
+	/**
+	 *  @return the serialization policy of the compiled module (the newest .gwt.rpc file),
+	 *          or null if there is none, as when running hosted mode
+	 */
+	private synchronized SerializationPolicy getPolicy() throws Exception {
+		String path = getServletContext().getRealPath("/serverlibrarymanager");
+		File[] files = path == null ? null : new File(path).listFiles();
+		if (files == null){
+			return null;
+		}
+
+		File newest = null;
+		for (File f : files){
+			if (f.getName().endsWith(".gwt.rpc") && (newest == null || f.lastModified() > newest.lastModified())){
+				newest = f;
+			}
+		}
+
+		if (newest == null){
+			return null;
+		}
+		if (policy == null || newest.lastModified() != policyModified){
+			InputStream in = new FileInputStream(newest);
+			try {
+				policy = SerializationPolicyLoader.loadFromStream(in, null);
+				policyModified = newest.lastModified();
+			} finally {
+				in.close();
+			}
+		}
+
+		return policy;
+	}
+
+	/**
+	 *  @return the string as a JavaScript string literal
+	 */
+	private static String quote(String s){
+		StringBuilder ret = new StringBuilder(s.length() + 16);
+		ret.append('"');
+		for (int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\'){
+				ret.append('\\').append(c);
+			} else if (c < 0x20 || c == '<' || c == '\u2028' || c == '\u2029'){
+				String hex = Integer.toHexString(c);
+				ret.append("\\u");
+				for (int pad = hex.length(); pad < 4; pad++){
+					ret.append('0');
+				}
+				ret.append(hex);
+			} else {
+				ret.append(c);
+			}
+		}
+		ret.append('"');
+
+		return ret.toString();
+	}
+}
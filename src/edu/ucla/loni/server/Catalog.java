@@ -0,0 +1,643 @@
+package edu.ucla.loni.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.ucla.loni.shared.DuplicateCluster;
+import edu.ucla.loni.shared.Facet;
+import edu.ucla.loni.shared.Pipefile;
+import edu.ucla.loni.shared.SearchResult;
+
+/**
+ * In-memory copy of the pipefile table, for listing and searching without the database
+ * <p>
+ * Pipefiles are numbered and every root directory and facet value (type, packageName, each
+ * normalized tag, each format of the inputs and of the outputs) keeps a CompressedBitmap of the numbers of its files. Filtering by facets is a few bitmap
+ * intersections and the facet counts of a result are intersection cardinalities, so drilling down
+ * does not touch the files themselves. Content hashes and metadata hashes are posted the same way,
+ * so duplicates are the postings with more than one file.
+ * <p>
+ * Kept up-to-date by the scan and the file operations, stored Pipefiles are never changed in place
+ * since they may be in the middle of being serialized. The files themselves are kept by a
+ * PipefileStore, on the heap or in memory-mapped files.
+ * <p>
+ * Listings (getFiles, search) return summaries with only what a list shows, see summary.
+ * The whole pipefile is returned by get.
+ */
+public class Catalog {
+	public static final String TYPE = "type";
+	public static final String PACKAGE = "packageName";
+	public static final String TAG = "tag";
+	public static final String INPUT = "input";
+	public static final String OUTPUT = "output";
+
+	private static final String[] FIELDS = {TYPE, PACKAGE, TAG, INPUT, OUTPUT};
+
+	/**
+	 *  Most values returned per facet field
+	 */
+	private static final int FACET_LIMIT = 50;
+
+	/**
+	 *  Most used first, then alphabetical
+	 */
+	private static final Comparator<Facet> BY_COUNT = new Comparator<Facet>() {
+		public int compare(Facet a, Facet b){
+			return a.count != b.count ? b.count - a.count : a.value.compareTo(b.value);
+		}
+	};
+
+	// The pipefiles by number, with the primary index by absolutePath
+	private final PipefileStore store;
+
+	// directoryID => files, field => value => files
+	private final HashMap<Integer, CompressedBitmap> byDirectory = new HashMap<Integer, CompressedBitmap>();
+	private final HashMap<String, HashMap<String, CompressedBitmap>> facets = new HashMap<String, HashMap<String, CompressedBitmap>>();
+
+	// contentHash => files, metadataHash => files
+	private final HashMap<String, CompressedBitmap> byContent = new HashMap<String, CompressedBitmap>();
+	private final HashMap<String, CompressedBitmap> byMetadata = new HashMap<String, CompressedBitmap>();
+
+	// Every normalized tag with postings, for autocomplete
+	private final TagTrie tagTrie = new TagTrie();
+
+	// Words of the searchable fields, for typo tolerant search, built by the first fuzzy search
+	private FuzzyIndex fuzzyIndex;
+
+	// Root directory absolutePath => directoryID, as in the directory table
+	private final HashMap<String, Integer> directoryIds = new HashMap<String, Integer>();
+
+	// Incremented by every change
+	private int modCount = 0;
+
+	// Set by close, changes are ignored afterwards
+	private boolean closed = false;
+
+	/**
+	 *  Copy of the catalog's content, see contents()
+	 */
+	public static class Contents {
+		public HashMap<String, Integer> directories;
+		public Pipefile[] files;
+		public int[] directoryIDs;	// Of each file
+		public int modCount;
+	}
+
+	public Catalog(){
+		this(new HeapPipefileStore());
+	}
+
+	/**
+	 *  @param store where the pipefiles are kept, the directory and facet postings are its secondary indexes
+	 */
+	public Catalog(PipefileStore store){
+		this.store = store;
+		for (String field : FIELDS){
+			facets.put(field, new HashMap<String, CompressedBitmap>());
+		}
+	}
+
+	/**
+	 *  Adds or replaces a pipefile
+	 *  @param directoryID root directory the file is under
+	 *  @param pipe the file, a null access keeps the access already stored
+	 */
+	public synchronized void put(int directoryID, Pipefile pipe){
+		if (closed){
+			return;
+		}
+
+		int id = store.find(pipe.absolutePath);
+		Pipefile old = null;
+
+		if (id >= 0){
+			old = store.get(id);
+			unindex(id, old);
+		}
+
+		if (pipe.access == null){
+			pipe = copy(pipe);
+			pipe.access = old == null ? "" : old.access;
+		}
+
+		if (id < 0){
+			id = store.add(directoryID, pipe);
+		} else {
+			store.set(id, directoryID, pipe);
+		}
+		index(id, pipe);
+		modCount++;
+	}
+
+	/**
+	 *  Forgets a removed pipefile
+	 */
+	public synchronized void remove(String absolutePath){
+		if (closed){
+			return;
+		}
+
+		int id = store.find(absolutePath);
+		if (id >= 0){
+			unindex(id, store.get(id));
+			store.remove(id);
+			modCount++;
+		}
+	}
+
+	/**
+	 *  Moves a pipefile to another path and package
+	 *  @param directoryID root directory the new path is under
+	 */
+	public synchronized void move(String oldPath, String newPath, int directoryID, String packageName){
+		int id = store.find(oldPath);
+		if (id >= 0){
+			Pipefile pipe = copy(store.get(id));
+			pipe.absolutePath = newPath;
+			pipe.packageName = packageName;
+
+			remove(oldPath);
+			put(directoryID, pipe);
+		}
+	}
+
+	/**
+	 *  Changes the access expression of a pipefile
+	 */
+	public synchronized void setAccess(String absolutePath, String access){
+		if (closed){
+			return;
+		}
+
+		int id = store.find(absolutePath);
+		if (id >= 0){
+			Pipefile pipe = copy(store.get(id));
+			pipe.access = access == null ? "" : access;
+			store.set(id, store.getDirectoryID(id), pipe);
+			modCount++;
+		}
+	}
+
+	/**
+	 *  Records the directoryID of a root directory
+	 */
+	public synchronized void setDirectory(String absolutePath, int directoryID){
+		Integer old = directoryIds.put(absolutePath, directoryID);
+		if (old == null || old != directoryID){
+			modCount++;
+		}
+	}
+
+	/**
+	 *  @return the directoryID of a root directory, or null if it is not known
+	 */
+	public synchronized Integer getDirectoryId(String absolutePath){
+		return directoryIds.get(absolutePath);
+	}
+
+	/**
+	 *  Releases the store, once the catalog has been replaced. Files already returned stay valid
+	 *  and changes still arriving from callers holding on to it are ignored.
+	 */
+	public synchronized void close(){
+		if (closed == false){
+			closed = true;
+			store.close();
+		}
+	}
+
+	/**
+	 *  @return the number of changes made so far, to tell whether the catalog changed
+	 */
+	public synchronized int getModCount(){
+		return modCount;
+	}
+
+	/**
+	 *  @return a copy of the directories and files, consistent with getModCount at the time
+	 */
+	public synchronized Contents contents(){
+		Contents ret = new Contents();
+		ret.directories = new HashMap<String, Integer>(directoryIds);
+		ret.modCount = modCount;
+
+		int n = store.count();
+		ret.files = new Pipefile[n];
+		ret.directoryIDs = new int[n];
+
+		int i = 0;
+		for (int id = 0; id < store.size(); id++){
+			Pipefile pipe = store.get(id);
+			if (pipe != null){
+				ret.files[i] = pipe;
+				ret.directoryIDs[i] = store.getDirectoryID(id);
+				i++;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 *  @return the pipefile, or null if it is not in the catalog
+	 */
+	public synchronized Pipefile get(String absolutePath){
+		int id = store.find(absolutePath);
+		return id < 0 ? null : store.get(id);
+	}
+
+	/**
+	 *  @return summaries of the files under the root directory
+	 */
+	public synchronized Pipefile[] getFiles(int directoryID){
+		return toSummaries(directory(directoryID).toArray());
+	}
+
+	/**
+	 *  @return a stored pipefile with this content, or null if there is none
+	 */
+	public synchronized Pipefile findByHash(String contentHash){
+		CompressedBitmap postings = byContent.get(contentHash);
+		return postings == null ? null : store.get(postings.toArray()[0]);
+	}
+
+	/**
+	 *  Groups the files with the same content, or the same normalized metadata, 
+	 *  without comparing files pairwise
+	 *  @param directoryIDs root directories to look under, null for all of them
+	 *  @param byMetadata group by ServerUtils.metadataHash instead of contentHash
+	 *  @return the groups of two files or more, largest first
+	 */
+	public synchronized DuplicateCluster[] duplicates(int[] directoryIDs, boolean byMetadata){
+		CompressedBitmap candidates = null;
+		if (directoryIDs != null){
+			candidates = new CompressedBitmap();
+			for (int directoryID : directoryIDs){
+				candidates = candidates.or(directory(directoryID));
+			}
+		}
+
+		ArrayList<DuplicateCluster> ret = new ArrayList<DuplicateCluster>();
+		for (Map.Entry<String, CompressedBitmap> entry : (byMetadata ? this.byMetadata : byContent).entrySet()){
+			CompressedBitmap files = entry.getValue();
+			if (files.cardinality() < 2){
+				continue;
+			}
+			if (candidates != null){
+				files = files.and(candidates);
+				if (files.cardinality() < 2){
+					continue;
+				}
+			}
+
+			DuplicateCluster cluster = new DuplicateCluster();
+			cluster.key = entry.getKey();
+			cluster.files = toFiles(files.toArray());
+			ret.add(cluster);
+		}
+
+		Collections.sort(ret, new Comparator<DuplicateCluster>() {
+			public int compare(DuplicateCluster a, DuplicateCluster b){
+				return a.files.length != b.files.length ? b.files.length - a.files.length : a.key.compareTo(b.key);
+			}
+		});
+
+		return ret.toArray(new DuplicateCluster[ret.size()]);
+	}
+
+	/**
+	 *  Searches the files under a root directory
+	 *  @param query matched case insensitive against name, packageName and description,
+	 *         and as a whole normalized tag ("mri" does not match the tag "fmri"), empty to match everything
+	 *  @param filters facet values the files must have, values of the same field are alternatives
+	 *  @param fuzzy match the words of the query allowing typos instead, best matches first
+	 *  @param acl access-control evaluator, null to return every file
+	 *  @param user the user searching, unused without acl
+	 *  @return summaries of the matching files
+	 */
+	public synchronized SearchResult search(int directoryID, String query, Facet[] filters, boolean fuzzy, AccessControl acl, String user){
+		CompressedBitmap candidates = directory(directoryID);
+
+		if (filters != null){
+			for (String field : FIELDS){
+				CompressedBitmap allowed = null;
+				for (Facet f : filters){
+					if (field.equals(f.field)){
+						CompressedBitmap postings = facets.get(field).get(f.value);
+						if (postings == null){
+							postings = new CompressedBitmap();
+						}
+						allowed = allowed == null ? postings : allowed.or(postings);
+					}
+				}
+				if (allowed != null){
+					candidates = candidates.and(allowed);
+				}
+			}
+		}
+
+		String q = query == null ? "" : query.trim().toLowerCase();
+		CompressedBitmap tagged = q.length() == 0 ? null : facets.get(TAG).get(ServerUtils.normalizeTag(q));
+		final float[] scores = fuzzy ? getFuzzyIndex().score(q, store.size()) : null;
+		long[] userMask = acl == null ? null : acl.userMask(user);
+
+		CompressedBitmap hits = candidates;
+		if (q.length() > 0 || acl != null){
+			hits = new CompressedBitmap();
+			for (int id : candidates.toArray()){
+				if (scores != null){
+					if (scores[id] == 0){
+						continue;
+					}
+				} else if (q.length() > 0 && fuzzy == false && store.matches(id, q) == false && (tagged == null || tagged.contains(id) == false)){
+					continue;
+				}
+				if (acl != null && AccessControl.allows(acl.compile(store.getAccess(id)), userMask) == false){
+					continue;
+				}
+				hits.add(id);
+			}
+		}
+
+		SearchResult ret = new SearchResult();
+		ret.facets = count(hits, filters);
+
+		if (scores != null){
+			// Best matches first
+			Integer[] ranked = new Integer[hits.cardinality()];
+			int n = 0;
+			for (int id : hits.toArray()){
+				ranked[n++] = id;
+			}
+
+			Arrays.sort(ranked, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b){
+					return Float.compare(scores[b], scores[a]);
+				}
+			});
+
+			int[] order = new int[ranked.length];
+			for (int i = 0; i < ranked.length; i++){
+				order[i] = ranked[i];
+			}
+			ret.files = toSummaries(order);
+		} else {
+			ret.files = toSummaries(hits.toArray());
+		}
+		ret.total = ret.files.length;
+
+		return ret;
+	}
+
+	/**
+	 *  @return the FACET_LIMIT most common values of each field among the hits,
+	 *          plus any value filtered on
+	 */
+	private Facet[] count(CompressedBitmap hits, Facet[] filters){
+		ArrayList<Facet> ret = new ArrayList<Facet>();
+		int hitCount = hits.cardinality();
+
+		for (String field : FIELDS){
+			HashMap<String, CompressedBitmap> values = facets.get(field);
+			ArrayList<Facet> counts = new ArrayList<Facet>();
+
+			if (hitCount < values.size()){
+				// Few hits, count the hits' own values instead of intersecting every posting list
+				HashMap<String, Facet> byValue = new HashMap<String, Facet>();
+				for (int id : hits.toArray()){
+					for (String value : values(field, store.get(id))){
+						Facet f = byValue.get(value);
+						if (f == null){
+							f = facet(field, value, 0);
+							byValue.put(value, f);
+							counts.add(f);
+						}
+						f.count++;
+					}
+				}
+			} else {
+				for (Map.Entry<String, CompressedBitmap> entry : values.entrySet()){
+					int n = hits.andCardinality(entry.getValue());
+					if (n > 0){
+						counts.add(facet(field, entry.getKey(), n));
+					}
+				}
+			}
+
+			Collections.sort(counts, BY_COUNT);
+
+			for (int i = 0; i < counts.size(); i++){
+				Facet f = counts.get(i);
+				if (i < FACET_LIMIT || isFilter(f, filters)){
+					ret.add(f);
+				}
+			}
+		}
+
+		return ret.toArray(new Facet[ret.size()]);
+	}
+
+	/**
+	 *  Tag autocomplete
+	 *  @param prefix start of the tag, normalized before lookup
+	 *  @param limit most tags returned
+	 *  @return tags used under the root directory starting with the prefix, 
+	 *          with the number of files using them, most used first
+	 */
+	public synchronized Facet[] getTags(int directoryID, String prefix, int limit){
+		CompressedBitmap files = directory(directoryID);
+		HashMap<String, CompressedBitmap> tags = facets.get(TAG);
+
+		ArrayList<Facet> ret = new ArrayList<Facet>();
+		for (String tag : tagTrie.complete(ServerUtils.normalizeTag(prefix == null ? "" : prefix))){
+			int n = files.andCardinality(tags.get(tag));
+			if (n > 0){
+				ret.add(facet(TAG, tag, n));
+			}
+		}
+
+		Collections.sort(ret, BY_COUNT);
+		if (ret.size() > limit){
+			ret.subList(limit, ret.size()).clear();
+		}
+
+		return ret.toArray(new Facet[ret.size()]);
+	}
+
+	private static boolean isFilter(Facet f, Facet[] filters){
+		if (filters != null){
+			for (Facet filter : filters){
+				if (f.field.equals(filter.field) && f.value.equals(filter.value)){
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 *  @return the fuzzy index, building it the first time so loading stays fast
+	 */
+	private FuzzyIndex getFuzzyIndex(){
+		if (fuzzyIndex == null){
+			fuzzyIndex = new FuzzyIndex();
+			for (int id = 0; id < store.size(); id++){
+				Pipefile pipe = store.get(id);
+				if (pipe != null){
+					fuzzyIndex.add(id, pipe);
+				}
+			}
+		}
+
+		return fuzzyIndex;
+	}
+
+	private void index(int id, Pipefile pipe){
+		posting(byDirectory, store.getDirectoryID(id)).add(id);
+		if (pipe.contentHash != null){
+			posting(byContent, pipe.contentHash).add(id);
+		}
+		posting(byMetadata, ServerUtils.metadataHash(pipe)).add(id);
+		for (String field : FIELDS){
+			HashMap<String, CompressedBitmap> values = facets.get(field);
+			for (String value : values(field, pipe)){
+				if (field.equals(TAG) && values.containsKey(value) == false){
+					tagTrie.add(value);
+				}
+				posting(values, value).add(id);
+			}
+		}
+
+		if (fuzzyIndex != null){
+			fuzzyIndex.add(id, pipe);
+		}
+	}
+
+	private void unindex(int id, Pipefile pipe){
+		unpost(byDirectory, store.getDirectoryID(id), id);
+		if (pipe.contentHash != null){
+			unpost(byContent, pipe.contentHash, id);
+		}
+		unpost(byMetadata, ServerUtils.metadataHash(pipe), id);
+		for (String field : FIELDS){
+			HashMap<String, CompressedBitmap> values = facets.get(field);
+			for (String value : values(field, pipe)){
+				unpost(values, value, id);
+				if (field.equals(TAG) && values.containsKey(value) == false){
+					tagTrie.remove(value);
+				}
+			}
+		}
+
+		if (fuzzyIndex != null){
+			fuzzyIndex.remove(id, pipe);
+		}
+	}
+
+	/**
+	 *  @return the values of a facet field for a pipefile, tags and formats are normalized
+	 */
+	private static ArrayList<String> values(String field, Pipefile pipe){
+		ArrayList<String> ret;
+		if (field.equals(TAG)){
+			ret = ServerUtils.parseTags(pipe.tags);
+		} else if (field.equals(INPUT) || field.equals(OUTPUT)){
+			ret = ServerUtils.parseFormats(field.equals(INPUT) ? pipe.inputs : pipe.outputs);
+		} else {
+			ret = new ArrayList<String>(1);
+			String value = field.equals(TYPE) ? pipe.type : pipe.packageName;
+			if (value != null){
+				ret.add(value);
+			}
+		}
+
+		return ret;
+	}
+
+	private static <K> CompressedBitmap posting(HashMap<K, CompressedBitmap> index, K key){
+		CompressedBitmap postings = index.get(key);
+		if (postings == null){
+			postings = new CompressedBitmap();
+			index.put(key, postings);
+		}
+
+		return postings;
+	}
+
+	private static <K> void unpost(HashMap<K, CompressedBitmap> index, K key, int id){
+		CompressedBitmap postings = index.get(key);
+		if (postings != null){
+			postings.remove(id);
+			if (postings.isEmpty()){
+				index.remove(key);
+			}
+		}
+	}
+
+	private CompressedBitmap directory(int directoryID){
+		CompressedBitmap postings = byDirectory.get(directoryID);
+		return postings == null ? new CompressedBitmap() : postings;
+	}
+
+	private Pipefile[] toFiles(int[] ids){
+		Pipefile[] ret = new Pipefile[ids.length];
+		for (int i = 0; i < ids.length; i++){
+			ret[i] = store.get(ids[i]);
+		}
+
+		return ret;
+	}
+
+	private Pipefile[] toSummaries(int[] ids){
+		Pipefile[] ret = new Pipefile[ids.length];
+		for (int i = 0; i < ids.length; i++){
+			ret[i] = store.getSummary(ids[i]);
+		}
+
+		return ret;
+	}
+
+	private static Facet facet(String field, String value, int count){
+		Facet f = new Facet();
+		f.field = field;
+		f.value = value;
+		f.count = count;
+		return f;
+	}
+
+	/**
+	 *  @return a new pipefile with only the absolutePath, name, type and packageName, 
+	 *          which the lists show and sort by, and the access they are filtered by
+	 */
+	static Pipefile summary(Pipefile p){
+		Pipefile ret = new Pipefile();
+		ret.absolutePath = p.absolutePath;
+		ret.name = p.name;
+		ret.type = p.type;
+		ret.packageName = p.packageName;
+		ret.access = p.access;
+		return ret;
+	}
+
+	static Pipefile copy(Pipefile p){
+		Pipefile ret = new Pipefile();
+		ret.absolutePath = p.absolutePath;
+		ret.name = p.name;
+		ret.type = p.type;
+		ret.packageName = p.packageName;
+		ret.description = p.description;
+		ret.tags = p.tags;
+		ret.access = p.access;
+		ret.contentHash = p.contentHash;
+		ret.inputs = p.inputs;
+		ret.outputs = p.outputs;
+		ret.location = p.location;
+		ret.uri = p.uri;
+		return ret;
+	}
+}
@@ -0,0 +1,246 @@
+package edu.ucla.loni.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * Saves the catalog to a binary file and reads it back at startup
+ * <p>
+ * The snapshot is written every interval if the catalog changed (and on close), to a temporary
+ * file renamed over the old one. It is read through a memory-mapped FileChannel. The search
+ * postings are not stored, they are rebuilt from the files while reading, which costs less than
+ * decoding them would.
+ * <p>
+ * Format (big endian):<br>
+ * int MAGIC, int VERSION<br>
+ * int directories, then for each: int directoryID, string absolutePath<br>
+ * int files, then for each: int directoryID and the strings absolutePath, name, type,
+ * packageName, description, tags, access, location, uri, contentHash, inputs, outputs<br>
+ * A string is an int byte length (-1 for null) followed by UTF-8 bytes.
+ */
+public class CatalogSnapshot {
+	private static final int MAGIC = 0x534c4d43;	// "SLMC"
+	private static final int VERSION = 3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final LatencyHistogram readTime =
+		Metrics.histogram("slm_snapshot_read_seconds", "Time to read the catalog snapshot at startup");
+	private static final LatencyHistogram writeTime =
+		Metrics.histogram("slm_snapshot_write_seconds", "Time to write the catalog snapshot");
+
+	private final File file;
+
+	// Catalog to save, replaced when it is reloaded, and what was last written
+	private volatile Catalog catalog;
+	private Catalog written;
+	private int writtenModCount;
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r, "slm-catalog-snapshot");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public CatalogSnapshot(File file){
+		this.file = file;
+	}
+
+	/**
+	 *  Reads the catalog saved in the file
+	 *  @param into empty catalog to fill
+	 *  @return false if there is none or it cannot be read, into is then partly filled
+	 */
+	public boolean read(Catalog into){
+		if (file.exists() == false){
+			return false;
+		}
+
+		long start = System.nanoTime();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+				if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION){
+					return false;
+				}
+
+				int directories = buffer.getInt();
+				for (int i = 0; i < directories; i++){
+					int id = buffer.getInt();
+					into.setDirectory(getString(buffer), id);
+				}
+
+				int files = buffer.getInt();
+				for (int i = 0; i < files; i++){
+					int directoryID = buffer.getInt();
+
+					Pipefile p = new Pipefile();
+					p.absolutePath = getString(buffer);
+					p.name = getString(buffer);
+					p.type = getString(buffer);
+					p.packageName = getString(buffer);
+					p.description = getString(buffer);
+					p.tags = getString(buffer);
+					p.access = getString(buffer);
+					p.location = getString(buffer);
+					p.uri = getString(buffer);
+					p.contentHash = getString(buffer);
+					p.inputs = getString(buffer);
+					p.outputs = getString(buffer);
+
+					into.put(directoryID, p);
+				}
+
+				synchronized (this){
+					written = into;
+					writtenModCount = into.getModCount();
+				}
+				return true;
+			} finally {
+				raf.close();
+			}
+		} catch (Exception e){
+			// Truncated or corrupt, start from the database instead
+			e.printStackTrace();
+			return false;
+		} finally {
+			readTime.recordSince(start);
+		}
+	}
+
+	/**
+	 *  Writes the catalog every interval, if it changed
+	 */
+	public void start(long interval){
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run(){
+				try {
+					write();
+				} catch (Exception e){
+					e.printStackTrace();
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 *  Sets the catalog to save, when it is loaded or reloaded
+	 */
+	public void setCatalog(Catalog catalog){
+		this.catalog = catalog;
+	}
+
+	/**
+	 *  Writes the catalog now, if it changed, and stops the timer
+	 */
+	public void close() throws Exception {
+		timer.shutdownNow();
+		write();
+	}
+
+	/**
+	 *  Writes the catalog to a temporary file and renames it over the snapshot, if it changed
+	 */
+	private synchronized void write() throws Exception {
+		Catalog c = catalog;
+		if (c == null || (c == written && c.getModCount() == writtenModCount)){
+			return;
+		}
+
+		long start = System.nanoTime();
+		Catalog.Contents contents = c.contents();
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+
+		try {
+			FileOutputStream stream = new FileOutputStream(temp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+
+				out.writeInt(contents.directories.size());
+				for (Map.Entry<String, Integer> entry : contents.directories.entrySet()){
+					out.writeInt(entry.getValue());
+					putString(out, entry.getKey());
+				}
+
+				out.writeInt(contents.files.length);
+				for (int i = 0; i < contents.files.length; i++){
+					Pipefile p = contents.files[i];
+					out.writeInt(contents.directoryIDs[i]);
+					putString(out, p.absolutePath);
+					putString(out, p.name);
+					putString(out, p.type);
+					putString(out, p.packageName);
+					putString(out, p.description);
+					putString(out, p.tags);
+					putString(out, p.access);
+					putString(out, p.location);
+					putString(out, p.uri);
+					putString(out, p.contentHash);
+					putString(out, p.inputs);
+					putString(out, p.outputs);
+				}
+
+				out.flush();
+				stream.getFD().sync();
+			} finally {
+				out.close();
+			}
+
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			written = c;
+			writtenModCount = contents.modCount;
+		} finally {
+			temp.delete();
+			writeTime.recordSince(start);
+		}
+	}
+
+	private static void putString(DataOutputStream out, String s) throws Exception {
+		if (s == null){
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = s.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer){
+		int length = buffer.getInt();
+		if (length < 0){
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
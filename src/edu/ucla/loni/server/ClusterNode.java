@@ -0,0 +1,386 @@
+package edu.ucla.loni.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Lets several web nodes serve one library from a shared database, each with its own catalog
+ * <p>
+ * One node at a time is the indexer: it holds the lease row of cluster_lease, renewing it
+ * every third of the lease, and only it scans root directories as they are read. A node that is not
+ * the indexer asks for a scan instead, with a RESCAN change. If the indexer stops renewing
+ * (or closes), another node takes the lease once it has expired.
+ * <p>
+ * Every node writes its own changes to the shared tables and appends what it changed to
+ * catalog_change, the change feed. Each node polls the feed and hands the changes of the
+ * other nodes to its Listener, which reloads them from the shared tables. Changes are kept
+ * for RETENTION, a node that has fallen further behind reloads everything.
+ * <p>
+ * Changes are appended in autocommit, HSQLDB's table locks commit them in seq order.
+ */
+public class ClusterNode {
+	/**
+	 *  Kinds of change: a pipefile row, the groups, a request to scan a root
+	 */
+	public static final String FILE = "F";
+	public static final String GROUPS = "G";
+	public static final String RESCAN = "R";
+
+	/**
+	 *  Milliseconds a change is kept in the feed
+	 */
+	private static final long RETENTION = 60 * 60 * 1000;
+
+	/**
+	 *  Milliseconds during which a root is not asked to be scanned again
+	 */
+	private static final long RESCAN_INTERVAL = 30 * 1000;
+
+	private static final Metrics.Counter appliedChanges =
+		Metrics.counter("slm_cluster_changes_applied_total", "Changes of other nodes applied to the local catalog");
+	private static final Metrics.Counter takeovers =
+		Metrics.counter("slm_cluster_indexer_takeovers_total", "Times this node became the indexer");
+	private static final Metrics.Counter reloads =
+		Metrics.counter("slm_cluster_reloads_total", "Full catalog reloads after falling behind the change feed");
+
+	/**
+	 *  What a node does with the changes of the others
+	 */
+	public interface Listener {
+		/**
+		 *  A pipefile row was inserted, updated or deleted
+		 */
+		void fileChanged(String absolutePath) throws Exception;
+
+		void groupsChanged() throws Exception;
+
+		/**
+		 *  Called on the indexer only, should not wait for the scan
+		 */
+		void rescanRequested(String root) throws Exception;
+
+		/**
+		 *  Changes were missed, everything has to be read again
+		 */
+		void reload() throws Exception;
+	}
+
+	private final String node;
+	private final Listener listener;
+	private final long lease;
+	private final Connection con;
+	private final Thread poller;
+
+	private volatile boolean indexer = false;
+	// when the lease this node holds runs out, unless renewed
+	private volatile long expires = 0;
+	private volatile boolean closed = false;
+
+	private long lastSeq;
+	private long renewed = 0;
+	private long pruned = 0;
+
+	// root => when this node last asked for it to be scanned
+	private final HashMap<String, Long> rescans = new HashMap<String, Long>();
+
+	/**
+	 *  Connects to the shared database, creating the tables if needed, and starts polling
+	 *  <p>
+	 *  Changes appended from now on are passed to the listener, the caller loads its catalog
+	 *  afterwards.
+	 *  @param node name of this node, unique in the cluster
+	 *  @param pollInterval milliseconds between polls of the change feed
+	 *  @param lease milliseconds the indexer lease lasts without being renewed
+	 */
+	public ClusterNode(String url, String username, String password, String node,
+			Listener listener, final long pollInterval, long lease) throws SQLException {
+		this.node = node;
+		this.listener = listener;
+		this.lease = lease;
+
+		con = DriverManager.getConnection(url, username, password);
+		createTables();
+		lastSeq = maxSeq();
+		renew();
+
+		poller = new Thread("slm-cluster-" + node) {
+			public void run(){
+				while (closed == false){
+					try {
+						Thread.sleep(pollInterval);
+						poll();
+					} catch (InterruptedException e){
+						return;
+					} catch (Exception e){
+						// Tried again on the next poll
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		poller.setDaemon(true);
+		poller.start();
+	}
+
+	/**
+	 *  @return the name of this node
+	 */
+	public String getNode(){
+		return node;
+	}
+
+	/**
+	 *  @return true if this node holds the lease, so it scans the roots. 
+	 *          False once it has expired, even if renewing it is late.
+	 */
+	public boolean isIndexer(){
+		return indexer && System.currentTimeMillis() < expires;
+	}
+
+	/**
+	 *  Appends a change made by this node to the feed
+	 *  @param kind FILE, GROUPS or RESCAN
+	 *  @param path what changed, an absolute path or a root, "" for GROUPS
+	 */
+	public synchronized void publish(String kind, String path) throws SQLException {
+		PreparedStatement stmt = con.prepareStatement(
+			"INSERT INTO catalog_change (node, kind, path, changed) " +
+			"VALUES (?, ?, ?, ?)"
+		);
+		stmt.setString(1, node);
+		stmt.setString(2, kind);
+		stmt.setString(3, path);
+		stmt.setLong(4, System.currentTimeMillis());
+		stmt.executeUpdate();
+		stmt.close();
+	}
+
+	/**
+	 *  Asks the indexer to scan a root, unless this node asked within RESCAN_INTERVAL
+	 */
+	public void requestRescan(String root) throws SQLException {
+		long now = System.currentTimeMillis();
+		synchronized (rescans){
+			Long last = rescans.get(root);
+			if (last != null && now - last < RESCAN_INTERVAL){
+				return;
+			}
+			rescans.put(root, now);
+		}
+
+		publish(RESCAN, root);
+	}
+
+	/**
+	 *  Stops polling and gives up the lease, so another node takes over right away
+	 */
+	public void close(){
+		closed = true;
+		poller.interrupt();
+
+		synchronized (this){
+			try {
+				if (indexer){
+					PreparedStatement stmt = con.prepareStatement(
+						"UPDATE cluster_lease " +
+						"SET expires = 0 " +
+						"WHERE name = 'indexer' AND node = ?"
+					);
+					stmt.setString(1, node);
+					stmt.executeUpdate();
+					stmt.close();
+					indexer = false;
+				}
+				con.close();
+			} catch (SQLException e){
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 *  Renews or takes the lease when due, applies the new changes and prunes old ones
+	 */
+	private void poll() throws Exception {
+		long now = System.currentTimeMillis();
+		if (now - renewed >= lease / 3){
+			renew();
+		}
+
+		// Read with the lock, applied without it, the listener may publish
+		String[][] changes;
+		boolean behind;
+		synchronized (this){
+			if (closed){
+				return;
+			}
+
+			PreparedStatement stmt = con.prepareStatement(
+				"SELECT seq, node, kind, path " +
+				"FROM catalog_change " +
+				"WHERE seq > ? " +
+				"ORDER BY seq"
+			);
+			long from = lastSeq;
+			stmt.setLong(1, from);
+			ResultSet rs = stmt.executeQuery();
+
+			ArrayList<String[]> list = new ArrayList<String[]>();
+			long first = -1;
+			while (rs.next()){
+				long seq = rs.getLong(1);
+				if (first == -1){
+					first = seq;
+				}
+				list.add(new String[] {rs.getString(2), rs.getString(3), rs.getString(4)});
+				lastSeq = seq;
+			}
+			stmt.close();
+			changes = list.toArray(new String[list.size()][]);
+
+			// Seqs follow each other, a gap is changes pruned before this node read them
+			// (or a failed insert, which only costs a needless reload)
+			behind = first > from + 1;
+
+			if (isIndexer() && now - pruned > RETENTION / 10){
+				prune(now - RETENTION);
+				pruned = now;
+			}
+		}
+
+		if (behind){
+			reloads.inc();
+			listener.reload();
+			changes = new String[0][];
+		}
+
+		boolean groups = false;
+		for (String[] change : changes){
+			String from = change[0];
+			String kind = change[1];
+			String path = change[2];
+
+			if (RESCAN.equals(kind)){
+				if (isIndexer()){
+					listener.rescanRequested(path);
+				}
+			} else if (node.equals(from) == false){
+				if (GROUPS.equals(kind)){
+					groups = true;
+				} else {
+					listener.fileChanged(path);
+				}
+				appliedChanges.inc();
+			}
+		}
+
+		if (groups){
+			listener.groupsChanged();
+		}
+	}
+
+	/**
+	 *  Renews the lease if this node holds it, takes it if it has expired
+	 */
+	private synchronized void renew() throws SQLException {
+		long now = System.currentTimeMillis();
+		boolean was = indexer;
+		try {
+			PreparedStatement stmt = con.prepareStatement(
+				"UPDATE cluster_lease " +
+				"SET node = ?, expires = ? " +
+				"WHERE name = 'indexer' AND (node = ? OR expires < ?)"
+			);
+			stmt.setString(1, node);
+			stmt.setLong(2, now + lease);
+			stmt.setString(3, node);
+			stmt.setLong(4, now);
+			boolean holds = stmt.executeUpdate() == 1;
+			stmt.close();
+
+			if (holds == false){
+				holds = insertLease(now + lease);
+			}
+
+			expires = now + lease;
+			indexer = holds;
+			renewed = now;
+		} catch (SQLException e){
+			// Cannot tell whether the lease is still ours, stop scanning until it is renewed
+			indexer = false;
+			throw e;
+		}
+
+		if (indexer && was == false){
+			takeovers.inc();
+		}
+	}
+
+	/**
+	 *  Takes the lease if no node ever has
+	 *  @return false if another node holds it
+	 */
+	private boolean insertLease(long expires){
+		try {
+			PreparedStatement stmt = con.prepareStatement(
+				"INSERT INTO cluster_lease (name, node, expires) " +
+				"VALUES ('indexer', ?, ?)"
+			);
+			stmt.setString(1, node);
+			stmt.setLong(2, expires);
+			stmt.executeUpdate();
+			stmt.close();
+			return true;
+		} catch (SQLException e){
+			// The row exists, held by another node
+			return false;
+		}
+	}
+
+	private void prune(long before) throws SQLException {
+		PreparedStatement stmt = con.prepareStatement(
+			"DELETE FROM catalog_change " +
+			"WHERE changed < ?"
+		);
+		stmt.setLong(1, before);
+		stmt.executeUpdate();
+		stmt.close();
+	}
+
+	private long maxSeq() throws SQLException {
+		ResultSet rs = con.createStatement().executeQuery("SELECT MAX(seq) FROM catalog_change");
+		long ret = rs.next() ? rs.getLong(1) : 0;
+		rs.close();
+		return ret;
+	}
+
+	private void createTables() throws SQLException {
+		if (tableExists("cluster_lease") == false){
+			con.createStatement().executeUpdate(
+				"CREATE TABLE cluster_lease (" +
+					"name VARCHAR(64) PRIMARY KEY, node VARCHAR(256) NOT NULL, expires BIGINT NOT NULL)"
+			);
+		}
+
+		if (tableExists("catalog_change") == false){
+			con.createStatement().executeUpdate(
+				"CREATE TABLE catalog_change (" +
+					"seq BIGINT GENERATED BY DEFAULT AS IDENTITY (START WITH 1) PRIMARY KEY, node VARCHAR(256) NOT NULL, " +
+					"kind CHAR(1) NOT NULL, path VARCHAR(1024) NOT NULL, changed BIGINT NOT NULL)"
+			);
+		}
+	}
+
+	private boolean tableExists(String table) throws SQLException {
+		ResultSet rs = con.getMetaData().getTables(null, null, table.toUpperCase(), null);
+		boolean exists = rs.next();
+		rs.close();
+		return exists;
+	}
+}
@@ -0,0 +1,331 @@
+package edu.ucla.loni.server;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative ints (roaring style)
+ * <p>
+ * Values are split into chunks of 65536 by their high 16 bits. A chunk holding few values
+ * stores them as a sorted char[], a chunk holding more than ARRAY_MAX values switches to a
+ * 65536 bit long[] bitset. Sparse postings stay small and dense ones intersect a word at a time.
+ * <p>
+ * Not thread safe, callers synchronize.
+ */
+public class CompressedBitmap {
+	private static final int ARRAY_MAX = 4096;
+	private static final int WORDS = 1024;
+
+	// Sorted high 16 bits, and for each either a char[] (with its size in sizes) or a long[] bitset
+	private char[] keys = new char[0];
+	private Object[] chunks = new Object[0];
+	private int[] sizes = new int[0];
+
+	public void add(int value){
+		char key = (char) (value >>> 16);
+		char low = (char) value;
+
+		int i = Arrays.binarySearch(keys, key);
+		if (i < 0){
+			i = -i - 1;
+			insertChunk(i, key, new char[4], 0);
+		}
+
+		if (chunks[i] instanceof long[]){
+			long[] bits = (long[]) chunks[i];
+			long mask = 1L << low;
+			if ((bits[low >>> 6] & mask) == 0){
+				bits[low >>> 6] |= mask;
+				sizes[i]++;
+			}
+			return;
+		}
+
+		char[] values = (char[]) chunks[i];
+		int size = sizes[i];
+		int j = Arrays.binarySearch(values, 0, size, low);
+		if (j >= 0){
+			return;
+		}
+		j = -j - 1;
+
+		if (size == ARRAY_MAX){
+			long[] bits = new long[WORDS];
+			for (int k = 0; k < size; k++){
+				bits[values[k] >>> 6] |= 1L << values[k];
+			}
+			bits[low >>> 6] |= 1L << low;
+			chunks[i] = bits;
+			sizes[i] = size + 1;
+			return;
+		}
+
+		if (size == values.length){
+			values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+			chunks[i] = values;
+		}
+		System.arraycopy(values, j, values, j + 1, size - j);
+		values[j] = low;
+		sizes[i] = size + 1;
+	}
+
+	public void remove(int value){
+		char key = (char) (value >>> 16);
+		char low = (char) value;
+
+		int i = Arrays.binarySearch(keys, key);
+		if (i < 0){
+			return;
+		}
+
+		if (chunks[i] instanceof long[]){
+			long[] bits = (long[]) chunks[i];
+			long mask = 1L << low;
+			if ((bits[low >>> 6] & mask) != 0){
+				bits[low >>> 6] &= ~mask;
+				sizes[i]--;
+			}
+		} else {
+			char[] values = (char[]) chunks[i];
+			int j = Arrays.binarySearch(values, 0, sizes[i], low);
+			if (j >= 0){
+				System.arraycopy(values, j + 1, values, j, sizes[i] - j - 1);
+				sizes[i]--;
+			}
+		}
+
+		if (sizes[i] == 0){
+			removeChunk(i);
+		}
+	}
+
+	public boolean contains(int value){
+		int i = Arrays.binarySearch(keys, (char) (value >>> 16));
+		if (i < 0){
+			return false;
+		}
+
+		char low = (char) value;
+		if (chunks[i] instanceof long[]){
+			return (((long[]) chunks[i])[low >>> 6] & (1L << low)) != 0;
+		}
+		return Arrays.binarySearch((char[]) chunks[i], 0, sizes[i], low) >= 0;
+	}
+
+	public int cardinality(){
+		int n = 0;
+		for (int size : sizes){
+			n += size;
+		}
+		return n;
+	}
+
+	public boolean isEmpty(){
+		return keys.length == 0;
+	}
+
+	/**
+	 * @return a new bitmap holding the values in both
+	 */
+	public CompressedBitmap and(CompressedBitmap other){
+		CompressedBitmap ret = new CompressedBitmap();
+
+		int i = 0, j = 0;
+		while (i < keys.length && j < other.keys.length){
+			if (keys[i] < other.keys[j]){
+				i++;
+			} else if (keys[i] > other.keys[j]){
+				j++;
+			} else {
+				int[] values = intersect(i, other, j);
+				for (int v : values){
+					ret.add((keys[i] << 16) | v);
+				}
+				i++;
+				j++;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * @return number of values in both, without building the intersection
+	 */
+	public int andCardinality(CompressedBitmap other){
+		int n = 0;
+
+		int i = 0, j = 0;
+		while (i < keys.length && j < other.keys.length){
+			if (keys[i] < other.keys[j]){
+				i++;
+			} else if (keys[i] > other.keys[j]){
+				j++;
+			} else {
+				if (chunks[i] instanceof long[] && other.chunks[j] instanceof long[]){
+					long[] a = (long[]) chunks[i];
+					long[] b = (long[]) other.chunks[j];
+					for (int w = 0; w < WORDS; w++){
+						n += Long.bitCount(a[w] & b[w]);
+					}
+				} else {
+					n += intersect(i, other, j).length;
+				}
+				i++;
+				j++;
+			}
+		}
+
+		return n;
+	}
+
+	/**
+	 * @return a new bitmap holding the values in either
+	 */
+	public CompressedBitmap or(CompressedBitmap other){
+		CompressedBitmap ret = copy();
+		for (int v : other.toArray()){
+			ret.add(v);
+		}
+		return ret;
+	}
+
+	public CompressedBitmap copy(){
+		CompressedBitmap ret = new CompressedBitmap();
+		ret.keys = keys.clone();
+		ret.sizes = sizes.clone();
+		ret.chunks = new Object[chunks.length];
+		for (int i = 0; i < chunks.length; i++){
+			ret.chunks[i] = chunks[i] instanceof long[] ? ((long[]) chunks[i]).clone() : ((char[]) chunks[i]).clone();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the values in increasing order
+	 */
+	public int[] toArray(){
+		int[] ret = new int[cardinality()];
+		int n = 0;
+
+		for (int i = 0; i < keys.length; i++){
+			int high = keys[i] << 16;
+			for (int low : lows(i)){
+				ret[n++] = high | low;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * @return the low 16 bits of chunk i, in increasing order
+	 */
+	private int[] lows(int i){
+		int[] ret = new int[sizes[i]];
+
+		if (chunks[i] instanceof long[]){
+			long[] bits = (long[]) chunks[i];
+			int n = 0;
+			for (int w = 0; w < WORDS; w++){
+				long word = bits[w];
+				while (word != 0){
+					ret[n++] = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+		} else {
+			char[] values = (char[]) chunks[i];
+			for (int k = 0; k < ret.length; k++){
+				ret[k] = values[k];
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * @return low 16 bits present in both chunk i of this and chunk j of other
+	 */
+	private int[] intersect(int i, CompressedBitmap other, int j){
+		if (chunks[i] instanceof long[] && other.chunks[j] instanceof long[]){
+			long[] a = (long[]) chunks[i];
+			long[] b = (long[]) other.chunks[j];
+			int[] ret = new int[Math.min(sizes[i], other.sizes[j])];
+			int n = 0;
+			for (int w = 0; w < WORDS; w++){
+				long word = a[w] & b[w];
+				while (word != 0){
+					ret[n++] = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return Arrays.copyOf(ret, n);
+		}
+
+		// Walk the smaller side and probe the other
+		boolean thisSmaller = sizes[i] <= other.sizes[j];
+		int[] probe = thisSmaller ? lows(i) : other.lows(j);
+		CompressedBitmap target = thisSmaller ? other : this;
+		int chunk = thisSmaller ? j : i;
+
+		int[] ret = new int[probe.length];
+		int n = 0;
+		for (int low : probe){
+			if (target.chunkContains(chunk, (char) low)){
+				ret[n++] = low;
+			}
+		}
+		return Arrays.copyOf(ret, n);
+	}
+
+	private boolean chunkContains(int i, char low){
+		if (chunks[i] instanceof long[]){
+			return (((long[]) chunks[i])[low >>> 6] & (1L << low)) != 0;
+		}
+		return Arrays.binarySearch((char[]) chunks[i], 0, sizes[i], low) >= 0;
+	}
+
+	private void insertChunk(int i, char key, Object chunk, int size){
+		keys = insert(keys, i, key);
+		sizes = insert(sizes, i, size);
+
+		Object[] c = new Object[chunks.length + 1];
+		System.arraycopy(chunks, 0, c, 0, i);
+		c[i] = chunk;
+		System.arraycopy(chunks, i, c, i + 1, chunks.length - i);
+		chunks = c;
+	}
+
+	private void removeChunk(int i){
+		char[] k = new char[keys.length - 1];
+		System.arraycopy(keys, 0, k, 0, i);
+		System.arraycopy(keys, i + 1, k, i, k.length - i);
+		keys = k;
+
+		int[] s = new int[sizes.length - 1];
+		System.arraycopy(sizes, 0, s, 0, i);
+		System.arraycopy(sizes, i + 1, s, i, s.length - i);
+		sizes = s;
+
+		Object[] c = new Object[chunks.length - 1];
+		System.arraycopy(chunks, 0, c, 0, i);
+		System.arraycopy(chunks, i + 1, c, i, c.length - i);
+		chunks = c;
+	}
+
+	private static char[] insert(char[] a, int i, char v){
+		char[] ret = new char[a.length + 1];
+		System.arraycopy(a, 0, ret, 0, i);
+		ret[i] = v;
+		System.arraycopy(a, i, ret, i + 1, a.length - i);
+		return ret;
+	}
+
+	private static int[] insert(int[] a, int i, int v){
+		int[] ret = new int[a.length + 1];
+		System.arraycopy(a, 0, ret, 0, i);
+		ret[i] = v;
+		System.arraycopy(a, i, ret, i + 1, a.length - i);
+		return ret;
+	}
+}
@@ -0,0 +1,251 @@
+package edu.ucla.loni.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * In-memory index of which workflows use which pipefiles
+ * <p>
+ * A workflow references the modules (and nested groups) it contains by a key:
+ * "uri:" + uri when the reference has one, else "location:" + location, else "name:" + package/name.
+ * The data modules it contains are referenced by "name:" + package/name.
+ * A pipefile is identified by every key it could be referenced by.
+ * Pipefiles are numbered and both directions are kept as key => sorted int[] of pipefile numbers,
+ * so "who uses X" is a few hash lookups and the transitive closure a breadth first search over int arrays.
+ */
+public class DependencyGraph {
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final ArrayList<String> paths = new ArrayList<String>();
+
+	// pipefile number => keys, key => pipefile numbers
+	private final HashMap<Integer, String[]> identities = new HashMap<Integer, String[]>();
+	private final HashMap<String, int[]> identified = new HashMap<String, int[]>();
+
+	// workflow number => keys it references, key => workflow numbers
+	private final HashMap<Integer, String[]> references = new HashMap<Integer, String[]>();
+	private final HashMap<String, int[]> referencedBy = new HashMap<String, int[]>();
+
+	/**
+	 * @return the key a module reference inside a workflow is matched by
+	 */
+	public static String referenceKey(String uri, String location, String packageName, String name){
+		if (uri != null && uri.length() > 0){
+			return "uri:" + uri;
+		} else if (location != null && location.length() > 0){
+			return "location:" + location;
+		} else {
+			return "name:" + packageName + "/" + name;
+		}
+	}
+
+	/**
+	 * @return every key the pipefile can be referenced by
+	 */
+	public static String[] identityKeys(Pipefile pipe){
+		ArrayList<String> keys = new ArrayList<String>();
+		if (pipe.uri != null && pipe.uri.length() > 0){
+			keys.add("uri:" + pipe.uri);
+		}
+		if (pipe.location != null && pipe.location.length() > 0){
+			keys.add("location:" + pipe.location);
+		}
+		keys.add("name:" + pipe.packageName + "/" + pipe.name);
+
+		return keys.toArray(new String[keys.size()]);
+	}
+
+	/**
+	 * Sets the keys a pipefile is known by, replacing the old ones
+	 */
+	public synchronized void setIdentity(String absolutePath, String[] keys){
+		int id = id(absolutePath);
+		unlink(identities.remove(id), identified, id);
+		identities.put(id, keys);
+		link(keys, identified, id);
+	}
+
+	/**
+	 * Sets the keys a workflow references, replacing the old ones
+	 */
+	public synchronized void setReferences(String absolutePath, String[] keys){
+		int id = id(absolutePath);
+		unlink(references.remove(id), referencedBy, id);
+		if (keys.length > 0){
+			references.put(id, keys);
+			link(keys, referencedBy, id);
+		}
+	}
+
+	/**
+	 * @return the keys a workflow references, empty if it is not known or references nothing
+	 */
+	public synchronized String[] references(String absolutePath){
+		Integer id = ids.get(absolutePath);
+		String[] keys = id == null ? null : references.get(id);
+		return keys == null ? new String[0] : keys.clone();
+	}
+
+	/**
+	 * Forgets a removed pipefile
+	 */
+	public synchronized void remove(String absolutePath){
+		Integer id = ids.remove(absolutePath);
+		if (id != null){
+			unlink(identities.remove(id), identified, id);
+			unlink(references.remove(id), referencedBy, id);
+			paths.set(id, null);
+		}
+	}
+
+	/**
+	 * Moves a pipefile, its references and identity go with it
+	 */
+	public synchronized void rename(String oldPath, String newPath){
+		Integer id = ids.remove(oldPath);
+		if (id != null){
+			ids.put(newPath, id);
+			paths.set(id, newPath);
+		}
+	}
+
+	/**
+	 * @return absolute paths of the workflows directly referencing the pipefile
+	 */
+	public synchronized String[] dependents(String absolutePath){
+		Integer id = ids.get(absolutePath);
+		if (id == null){
+			return new String[0];
+		}
+
+		return toPaths(users(id), id);
+	}
+
+	/**
+	 * @return absolute paths of the workflows referencing the pipefile directly or through other workflows
+	 */
+	public synchronized String[] transitiveDependents(String absolutePath){
+		Integer start = ids.get(absolutePath);
+		if (start == null){
+			return new String[0];
+		}
+
+		boolean[] seen = new boolean[paths.size()];
+		seen[start] = true;
+
+		int[] queue = new int[paths.size()];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = start;
+
+		while (head < tail){
+			for (int user : users(queue[head++])){
+				if (seen[user] == false){
+					seen[user] = true;
+					queue[tail++] = user;
+				}
+			}
+		}
+
+		return toPaths(Arrays.copyOfRange(queue, 1, tail), start);
+	}
+
+	/**
+	 * @return numbers of the workflows referencing any key of the pipefile
+	 */
+	private int[] users(int id){
+		String[] keys = identities.get(id);
+		if (keys == null){
+			return new int[0];
+		}
+
+		int[] ret = new int[0];
+		for (String key : keys){
+			int[] workflows = referencedBy.get(key);
+			if (workflows != null){
+				ret = union(ret, workflows);
+			}
+		}
+
+		return ret;
+	}
+
+	private String[] toPaths(int[] workflows, int self){
+		ArrayList<String> ret = new ArrayList<String>(workflows.length);
+		for (int w : workflows){
+			if (w != self && paths.get(w) != null){
+				ret.add(paths.get(w));
+			}
+		}
+
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	private int id(String absolutePath){
+		Integer id = ids.get(absolutePath);
+		if (id == null){
+			id = paths.size();
+			paths.add(absolutePath);
+			ids.put(absolutePath, id);
+		}
+
+		return id;
+	}
+
+	private static void link(String[] keys, HashMap<String, int[]> index, int id){
+		for (String key : keys){
+			int[] list = index.get(key);
+			index.put(key, list == null ? new int[] {id} : union(list, new int[] {id}));
+		}
+	}
+
+	private static void unlink(String[] keys, HashMap<String, int[]> index, int id){
+		if (keys == null){
+			return;
+		}
+
+		for (String key : keys){
+			int[] list = index.get(key);
+			if (list == null){
+				continue;
+			}
+
+			int i = Arrays.binarySearch(list, id);
+			if (i >= 0){
+				if (list.length == 1){
+					index.remove(key);
+				} else {
+					int[] smaller = new int[list.length - 1];
+					System.arraycopy(list, 0, smaller, 0, i);
+					System.arraycopy(list, i + 1, smaller, i, list.length - i - 1);
+					index.put(key, smaller);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges two sorted arrays without duplicates
+	 */
+	private static int[] union(int[] a, int[] b){
+		int[] ret = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+
+		while (i < a.length || j < b.length){
+			int next;
+			if (j == b.length || (i < a.length && a[i] <= b[j])){
+				next = a[i++];
+			} else {
+				next = b[j++];
+			}
+
+			if (n == 0 || ret[n - 1] != next){
+				ret[n++] = next;
+			}
+		}
+
+		return n == ret.length ? ret : Arrays.copyOf(ret, n);
+	}
+}
@@ -0,0 +1,157 @@
+package edu.ucla.loni.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds all pipefiles under a root directory
+ * <p>
+ * Each entry is stat'ed once: the attributes handed to the visitor give both
+ * the type and the lastModified, so the database check needs no further calls.
+ * The subdirectories of the root (the packages) are walked in parallel, which
+ * hides most of the latency of network file systems.
+ */
+public class DirectoryWalker {
+	/**
+	 * A pipefile found by the walk
+	 */
+	public static class Entry {
+		public final String absolutePath;
+		public final long lastModified;
+
+		Entry(Path path, BasicFileAttributes attrs){
+			this.absolutePath = path.toAbsolutePath().toString();
+			this.lastModified = attrs.lastModifiedTime().toMillis();
+		}
+	}
+
+	/**
+	 * Directory names that are never walked, set with edu.ucla.loni.scan.exclude (comma separated),
+	 * hidden directories are always skipped
+	 */
+	private static final HashSet<String> excluded = new HashSet<String>();
+	static {
+		for (String name : System.getProperty("edu.ucla.loni.scan.exclude", "CVS,lost+found").split(",")){
+			excluded.add(name.trim());
+		}
+	}
+
+	/**
+	 * Threads walking subtrees, set with edu.ucla.loni.scan.threads
+	 */
+	private static final ExecutorService pool = Executors.newFixedThreadPool(
+		Integer.getInteger("edu.ucla.loni.scan.threads", 4),
+		new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "slm-walk-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}
+	);
+
+	/**
+	 * @param root the root directory
+	 * @return all pipefiles under root, in no particular order
+	 */
+	public static ArrayList<Entry> walk(File root) throws Exception {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		ArrayList<Future<ArrayList<Entry>>> subtrees = new ArrayList<Future<ArrayList<Entry>>>();
+
+		DirectoryStream<Path> stream = Files.newDirectoryStream(root.toPath());
+		try {
+			for (final Path child : stream){
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(child, BasicFileAttributes.class);
+				} catch (IOException e){
+					continue; // Dangling link or removed while walking
+				}
+
+				if (attrs.isDirectory()){
+					if (isExcluded(child) == false){
+						subtrees.add(pool.submit(new Callable<ArrayList<Entry>>() {
+							public ArrayList<Entry> call() throws IOException {
+								return walkSubtree(child);
+							}
+						}));
+					}
+				} else if (isPipefile(child, attrs)){
+					entries.add(new Entry(child, attrs));
+				}
+			}
+		} finally {
+			stream.close();
+		}
+
+		try {
+			for (Future<ArrayList<Entry>> subtree : subtrees){
+				entries.addAll(subtree.get());
+			}
+		} catch (ExecutionException e){
+			if (e.getCause() instanceof Exception){
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Walks one subtree on the calling thread
+	 */
+	private static ArrayList<Entry> walkSubtree(Path dir) throws IOException {
+		final ArrayList<Entry> entries = new ArrayList<Entry>();
+
+		Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs){
+				return isExcluded(d) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs){
+				if (isPipefile(file, attrs)){
+					entries.add(new Entry(file, attrs));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFileFailed(Path file, IOException e){
+				// Unreadable entries (and link cycles) are skipped, not fatal
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		return entries;
+	}
+
+	private static boolean isExcluded(Path dir){
+		String name = dir.getFileName().toString();
+		return name.startsWith(".") || excluded.contains(name);
+	}
+
+	private static boolean isPipefile(Path file, BasicFileAttributes attrs){
+		return attrs.isRegularFile() && file.getFileName().toString().endsWith(".pipe");
+	}
+}
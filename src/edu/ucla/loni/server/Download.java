@@ -13,7 +13,30 @@ import javax.servlet.http.HttpServletResponse;
 
 @SuppressWarnings("serial")
 public class Download extends HttpServlet{
+	private static final LatencyHistogram downloadTime = 
+		Metrics.histogram("slm_download_seconds", "Time to serve a download request");
+	private static final Metrics.Counter downloadBytes = 
+		Metrics.counter("slm_download_bytes_total", "Bytes sent by the download servlet");
+	
 	public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException { 
+		AdmissionControl.Permit permit;
+		try {
+			permit = AdmissionControl.get().acquire("download", AdmissionControl.sessionOf(request));
+		} catch (AdmissionControl.Rejected e){
+			e.send(response);
+			return;
+		}
+		
+		long start = System.nanoTime();
+		try {
+			download(request, response);
+		} finally {
+			permit.release();
+			downloadTime.recordSince(start);
+		}
+	}
+	
+	private void download(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException { 
 		// TODO
 		// Create API for how this works
 		boolean single = true;
@@ -38,6 +61,7 @@ public class Download extends HttpServlet{
 	            
 	            while ((length = buf_in.read(buffer)) != -1){
 	            	buf_out.write(buffer, 0, length);
+	            	downloadBytes.add(length);
 	            }
 	            
 	            // Close and flush the streams
@@ -0,0 +1,186 @@
+package edu.ucla.loni.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * Runs a query against several root directories at once, on a bounded executor, and merges
+ * the results of each root into one sorted list
+ * <p>
+ * Each root's results are sorted on the executor thread that produced them, then merged
+ * k ways (a heap of one cursor per root), so the merge costs n log k instead of sorting
+ * everything again. Files under two roots (one root inside the other) are listed once.
+ * <p>
+ * Roots that have not answered by the deadline, or whose task was rejected because the
+ * executor is full, are reported late and left out. Their queries keep running, a scan
+ * cut off this way has usually caught up by the next request.
+ */
+public class Federation {
+	/**
+	 * The query run for each root
+	 */
+	public interface RootQuery {
+		/**
+		 * @return the root's files, null for none
+		 */
+		Pipefile[] run(String root) throws Exception;
+	}
+
+	/**
+	 * Merged files, with the roots that are missing from them
+	 */
+	public static class Result {
+		public Pipefile[] files;
+		public final ArrayList<String> late = new ArrayList<String>();
+		public final ArrayList<String> failed = new ArrayList<String>();
+	}
+
+	private static final LatencyHistogram federatedTime =
+		Metrics.histogram("slm_federated_seconds", "Time to query and merge every root of a federated request");
+	private static final Metrics.Counter lateRoots =
+		Metrics.counter("slm_federated_late_roots_total", "Roots left out of a federated result for missing the deadline");
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param threads number of roots queried at the same time, across all requests
+	 * @param queue number of root queries that can wait for a thread
+	 */
+	public Federation(int threads, int queue){
+		executor = new ThreadPoolExecutor(
+			threads, threads, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(queue),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "slm-federation-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			}
+		);
+	}
+
+	/**
+	 * Queries every root and merges what arrives before the deadline
+	 * @param order how the merged files are sorted, as ServerUtils.pipefileOrder
+	 * @param timeout milliseconds to wait for the roots
+	 */
+	public Result query(String[] roots, final RootQuery query, final Comparator<Pipefile> order, long timeout)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		Result ret = new Result();
+		ArrayList<Future<Pipefile[]>> futures = new ArrayList<Future<Pipefile[]>>();
+		for (final String root : roots){
+			try {
+				futures.add(executor.submit(new Callable<Pipefile[]>() {
+					public Pipefile[] call() throws Exception {
+						Pipefile[] files = query.run(root);
+						if (files == null){
+							return new Pipefile[0];
+						}
+
+						files = files.clone();
+						Arrays.sort(files, order);
+						return files;
+					}
+				}));
+			}
+			catch (RejectedExecutionException e){
+				futures.add(null);
+			}
+		}
+
+		ArrayList<Pipefile[]> sorted = new ArrayList<Pipefile[]>();
+		for (int i = 0; i < roots.length; i++){
+			Future<Pipefile[]> future = futures.get(i);
+			if (future == null){
+				ret.late.add(roots[i]);
+				continue;
+			}
+
+			try {
+				sorted.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+			}
+			catch (TimeoutException e){
+				ret.late.add(roots[i]);
+			}
+			catch (ExecutionException e){
+				e.getCause().printStackTrace();
+				ret.failed.add(roots[i]);
+			}
+		}
+
+		ret.files = merge(sorted, order);
+
+		lateRoots.add(ret.late.size());
+		federatedTime.recordSince(start);
+		return ret;
+	}
+
+	/**
+	 * Stops the threads, queries still running are abandoned
+	 */
+	public void shutdown(){
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Merges lists each sorted by the order, dropping repeats of an absolutePath
+	 * (the order ends with absolutePath, so repeats are next to each other)
+	 */
+	static Pipefile[] merge(ArrayList<Pipefile[]> sorted, final Comparator<Pipefile> order){
+		int total = 0;
+		for (Pipefile[] files : sorted){
+			total += files.length;
+		}
+
+		// {list, position in it}, the list whose next file comes first on top
+		final ArrayList<Pipefile[]> lists = sorted;
+		PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, sorted.size()), new Comparator<int[]>() {
+			public int compare(int[] a, int[] b){
+				return order.compare(lists.get(a[0])[a[1]], lists.get(b[0])[b[1]]);
+			}
+		});
+		for (int i = 0; i < sorted.size(); i++){
+			if (sorted.get(i).length > 0){
+				heads.add(new int[] {i, 0});
+			}
+		}
+
+		ArrayList<Pipefile> ret = new ArrayList<Pipefile>(total);
+		while (heads.isEmpty() == false){
+			int[] head = heads.poll();
+			Pipefile[] files = sorted.get(head[0]);
+			Pipefile p = files[head[1]];
+
+			if (ret.isEmpty() || ret.get(ret.size() - 1).absolutePath.equals(p.absolutePath) == false){
+				ret.add(p);
+			}
+
+			head[1]++;
+			if (head[1] < files.length){
+				heads.add(head);
+			}
+		}
+
+		return ret.toArray(new Pipefile[ret.size()]);
+	}
+}
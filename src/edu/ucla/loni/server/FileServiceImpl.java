@@ -1,6 +1,15 @@
 package edu.ucla.loni.server;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.InetAddress;
+import java.net.URL;
+
 
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -9,17 +18,34 @@ import java.sql.ResultSet;
 import java.sql.Timestamp;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import edu.ucla.loni.client.FileService;
 import edu.ucla.loni.shared.*;
 
+import com.google.gwt.user.client.rpc.IncompatibleRemoteServiceException;
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.server.rpc.RPC;
+import com.google.gwt.user.server.rpc.RPCRequest;
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 
+import javax.servlet.ServletException;
+
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
@@ -31,40 +57,494 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 	// Private Variables
 	////////////////////////////////////////////////////////////
 	private Connection db_connection;
-	private String db_name = "jdbc:hsqldb:hsql://localhost/xdb";
+	private String db_name = System.getProperty("edu.ucla.loni.db.url", "jdbc:hsqldb:hsql://localhost/xdb");
 	private String db_username = "SA";
 	private String db_password = "";
 	
+	/**
+	 *  Runs scans and bulk file operations off the request threads
+	 */
+	private final JobManager jobs = new JobManager(Integer.getInteger("edu.ucla.loni.jobs.threads", 2), 100);
+	
+	/**
+	 *  Queries the roots of a federated request in parallel
+	 */
+	private final Federation federation = new Federation(Integer.getInteger("edu.ucla.loni.federation.threads", 4), 64);
+	
+	/**
+	 *  Milliseconds a federated request waits for its roots, the slower ones are left out
+	 */
+	private static final long FEDERATION_TIMEOUT = Long.getLong("edu.ucla.loni.federation.timeout", 5000);
+	
+	/**
+	 *  Fetches the URLs of URL imports, a few connections per host
+	 */
+	private final UrlFetcher fetcher = new UrlFetcher(
+		Integer.getInteger("edu.ucla.loni.fetch.threads", 8), 256,
+		Integer.getInteger("edu.ucla.loni.fetch.perHost", 2),
+		Integer.getInteger("edu.ucla.loni.fetch.connectTimeout", 10000),
+		Integer.getInteger("edu.ucla.loni.fetch.readTimeout", 30000),
+		Integer.getInteger("edu.ucla.loni.fetch.retries", 2), 500);
+	
+	/**
+	 *  Coalesces concurrent scans of the same root
+	 */
+	private final ScanCoordinator scans = new ScanCoordinator();
+	
+	/**
+	 *  Compiled groups and access expressions, null until first needed and after groups change
+	 */
+	private volatile AccessControl accessControl;
+	
+	/**
+	 *  Access restrictions file for the Pipeline server, null until first needed
+	 */
+	private AccessFileWriter accessFile;
+	
+	/**
+	 *  Which workflows use which pipefiles, null until first needed
+	 */
+	private DependencyGraph dependencyGraph;
+	
+	/**
+	 *  In-memory copy of the pipefile table with facet postings, null until first needed
+	 */
+	private Catalog catalog;
+	
+	/**
+	 *  Saves the catalog for the next startup, null unless edu.ucla.loni.catalog.snapshot is set
+	 */
+	private CatalogSnapshot snapshot;
+	
+	/**
+	 *  Roots restored from the snapshot that have not been rescanned yet, 
+	 *  they are served from the catalog as they are
+	 */
+	private final Set<String> restoredRoots = Collections.synchronizedSet(new HashSet<String>());
+	
+	/**
+	 *  Prior versions of the pipefiles, recorded before they are overwritten, moved or removed
+	 */
+	private final VersionHistory history = new VersionHistory(new File(System.getProperty("edu.ucla.loni.history.dir", 
+		new File(System.getProperty("user.home"), ".slm-history").getPath())));
+	
+	/**
+	 *  When this servlet was created, versions handed out by an earlier process never match
+	 */
+	private final long started = System.currentTimeMillis();
+	
+	/**
+	 *  This node's part in a cluster sharing the database, null unless edu.ucla.loni.cluster is set
+	 *  <p>
+	 *  Set in: getDatabaseConnection
+	 */
+	private volatile ClusterNode cluster;
+	
+	/**
+	 *  Intent and completion of the file operations, null if it could not be opened
+	 */
+	private OperationJournal journal;
+	
+	/**
+	 *  Most search results kept for paging, by query and sort order
+	 */
+	private static final int SEARCH_CACHE_SIZE = 32;
+	
+	/**
+	 *  Most files getPipefileDetails returns at once
+	 */
+	private static final int MAX_DETAILS = 500;
+	
+	/**
+	 *  Search key => {catalog version, SearchResult}, least recently used first
+	 */
+	private final LinkedHashMap<String, Object[]> searches = new LinkedHashMap<String, Object[]>(SEARCH_CACHE_SIZE, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Object[]> eldest){
+			return size() > SEARCH_CACHE_SIZE;
+		}
+	};
+	
+	/**
+	 *  RPC method => AdmissionControl operation, the methods not listed 
+	 *  (getRoots, getGroups and getJob) are not limited, they only read a few rows
+	 */
+	private static final HashMap<String, String> OPERATIONS = new HashMap<String, String>();
+	static {
+		for (String method : new String[] {"getFiles", "getFederatedFiles", "startScan", "startRefresh"}){
+			OPERATIONS.put(method, "scan");
+		}
+		for (String method : new String[] {"getSearchResults", "getSearchPage", "getFederatedSearch", "getTags",
+				"getDuplicates", "getDependents", "getTransitiveDependents", "getPipefileDetails", "getVersions"}){
+			OPERATIONS.put(method, "search");
+		}
+		for (String method : new String[] {"updateFile", "removeFiles", "copyFiles", "moveFiles",
+				"startRemove", "startCopy", "startMove", "startImport", "startUrlImport", "restoreVersion", "updateGroup"}){
+			OPERATIONS.put(method, "write");
+		}
+	}
+	
+	////////////////////////////////////////////////////////////
+	// Metrics
+	////////////////////////////////////////////////////////////
+	private static final LatencyHistogram scanTime = 
+		Metrics.histogram("slm_scan_seconds", "Time to bring the database up-to-date with a root directory");
+	private static final LatencyHistogram walkTime = 
+		Metrics.histogram("slm_scan_walk_seconds", "Time to walk a root directory for pipefiles");
+	private static final Metrics.Counter walkedFiles = 
+		Metrics.counter("slm_scan_files_total", "Pipefiles found while walking root directories");
+	private static final Metrics.Counter parsedFiles = 
+		Metrics.counter("slm_scan_parsed_files_total", "Pipefiles re-parsed because they were new or modified");
+	private static final Metrics.Counter reusedFiles = 
+		Metrics.counter("slm_scan_reused_files_total", "New or modified pipefiles not parsed because a file with the same content was");
+	private static final LatencyHistogram queryTime = 
+		Metrics.histogram("slm_db_seconds", "Time spent in database calls", "statement", "query");
+	private static final LatencyHistogram updateTime = 
+		Metrics.histogram("slm_db_seconds", "Time spent in database calls", "statement", "update");
+	
+	////////////////////////////////////////////////////////////
+	// RPC Dispatch
+	////////////////////////////////////////////////////////////
+	
+	/**
+	 *  Same as RemoteServiceServlet.processCall, but records the latency of each RPC by method name
+	 *  and runs it within the limits of AdmissionControl
+	 *  <p>
+	 *  GWT RPC answers every call with 200, a call turned away fails with ServerBusyException instead.
+	 */
+	@Override
+	public String processCall(String payload) throws SerializationException {
+		checkPermutationStrongName();
+		
+		try {
+			RPCRequest rpcRequest = RPC.decodeRequest(payload, getClass(), this);
+			String method = rpcRequest.getMethod().getName();
+			
+			AdmissionControl.Permit permit;
+			try {
+				permit = AdmissionControl.get().acquire(OPERATIONS.get(method), 
+					AdmissionControl.sessionOf(getThreadLocalRequest()));
+			} catch (AdmissionControl.Rejected e){
+				ServerBusyException busy = new ServerBusyException(e.getMessage(), 
+					e.status == AdmissionControl.TOO_MANY_REQUESTS, e.retryAfter);
+				return RPC.encodeResponseForFailure(rpcRequest.getMethod(), busy, 
+					rpcRequest.getSerializationPolicy(), rpcRequest.getFlags());
+			}
+			
+			long start = System.nanoTime();
+			try {
+				return RPC.invokeAndEncodeResponse(this, rpcRequest.getMethod(), rpcRequest.getParameters(), 
+					rpcRequest.getSerializationPolicy(), rpcRequest.getFlags());
+			} finally {
+				permit.release();
+				Metrics.histogram("slm_rpc_seconds", "Latency of FileService RPCs", "method", method).recordSince(start);
+			}
+		} 
+		catch (IncompatibleRemoteServiceException ex) {
+			log("An IncompatibleRemoteServiceException was thrown while processing this call.", ex);
+			return RPC.encodeResponseForFailure(null, ex);
+		}
+	}
+	
+	/**
+	 *  Restores the catalog from its snapshot, if one is configured, 
+	 *  then finishes or undoes the file operations a crash left incomplete
+	 */
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		
+		// Found by the Bootstrap servlet
+		getServletContext().setAttribute(FileServiceImpl.class.getName(), this);
+		
+		String path = System.getProperty("edu.ucla.loni.catalog.snapshot");
+		if (path != null){
+			snapshot = new CatalogSnapshot(new File(path));
+			restoreCatalog();
+			snapshot.start(1000L * Integer.getInteger("edu.ucla.loni.catalog.snapshot.interval", 60));
+		}
+		
+		try {
+			journal = new OperationJournal(new File(System.getProperty("edu.ucla.loni.journal", 
+				new File(System.getProperty("user.home"), ".slm-journal").getPath())));
+			recoverOperations();
+		} catch (Exception e){
+			// Operations still work, they are not journaled
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public void destroy(){
+		jobs.shutdown();
+		federation.shutdown();
+		fetcher.shutdown();
+		
+		if (cluster != null){
+			cluster.close();
+		}
+		
+		try {
+			if (journal != null){
+				journal.close();
+			}
+		} catch (Exception e){
+			e.printStackTrace();
+		}
+		
+		try {
+			if (snapshot != null){
+				snapshot.close();
+			}
+		} catch (Exception e){
+			e.printStackTrace();
+		}
+		
+		try {
+			if (accessFile != null){
+				accessFile.close();
+			}
+		} catch (Exception e){
+			e.printStackTrace();
+		}
+		
+		synchronized (this){
+			if (catalog != null){
+				catalog.close();
+			}
+		}
+		
+		super.destroy();
+	}
+	
 	////////////////////////////////////////////////////////////
 	// Private Database Functions
 	////////////////////////////////////////////////////////////
 	/**
-	 *  Returns a connection to the database
+	 *  Returns a connection to the database, opening it (and joining the cluster) the first time
+	 *  <p>
+	 *  Synchronized, it is first needed by jobs, pollers and requests at once
 	 */
-	private Connection getDatabaseConnection() throws Exception {
+	private synchronized Connection getDatabaseConnection() throws Exception {
 		if (db_connection == null){
 			db_connection = DriverManager.getConnection(db_name, db_username, db_password);
+			createTables(db_connection);
+			
+			if (Boolean.getBoolean("edu.ucla.loni.cluster")){
+				joinCluster();
+			}
 		}
 		
 		return db_connection;
 	}
 	
 	/**
-	 *  Recursively get all pipefiles
+	 *  Starts following the changes the other nodes make to the shared database, 
+	 *  before the catalog is loaded so none are missed
+	 *  <p>
+	 *  Settings: edu.ucla.loni.cluster.node (default: host name and a random number),
+	 *  edu.ucla.loni.cluster.poll and edu.ucla.loni.cluster.lease in milliseconds 
+	 *  (default: 1000 and 15000)
+	 */
+	private void joinCluster() throws Exception {
+		String node = System.getProperty("edu.ucla.loni.cluster.node");
+		if (node == null){
+			node = InetAddress.getLocalHost().getHostName() + "-" + Long.toHexString(new Random().nextLong());
+		}
+		
+		cluster = new ClusterNode(db_name, db_username, db_password, node, 
+			new ClusterNode.Listener() {
+				public void fileChanged(String absolutePath) throws Exception {
+					reloadFile(absolutePath);
+				}
+				
+				public void groupsChanged(){
+					synchronized (FileServiceImpl.this){
+						accessControl = null;
+					}
+				}
+				
+				public void rescanRequested(final String root) throws Exception {
+					jobs.submit(new Job("scan") {
+						protected Pipefile[] execute() throws Exception {
+							File rootDir = new File(root);
+							if (rootDir.isDirectory()){
+								scan(rootDir, null);
+							}
+							return null;
+						}
+					});
+				}
+				
+				public void reload() throws Exception {
+					synchronized (FileServiceImpl.this){
+						if (catalog == null){
+							return; // Loaded up-to-date when first needed
+						}
+						accessControl = null;
+						dependencyGraph = null;
+					}
+					reloadCatalog();
+				}
+			},
+			Long.getLong("edu.ucla.loni.cluster.poll", 1000), 
+			Long.getLong("edu.ucla.loni.cluster.lease", 15000)
+		);
+	}
+	
+	/**
+	 *  Reads a pipefile row changed by another node into the catalog
+	 */
+	private void reloadFile(String absolutePath) throws Exception {
+		synchronized (this){
+			if (catalog == null){
+				return; // Loaded up-to-date when first needed
+			}
+			// Rebuilt from the dependency table when next needed
+			dependencyGraph = null;
+		}
+		
+		PreparedStatement stmt = getDatabaseConnection().prepareStatement(
+			"SELECT * " +
+			"FROM pipefile " +
+			"WHERE absolutePath = ?"
+		);
+		stmt.setString(1, absolutePath);
+		ResultSet rs = executeQuery(stmt);
+		
+		if (rs.next()){
+			Pipefile pipe = resultSetToPipefile(rs);
+			getCatalog().put(rs.getInt(1), pipe);
+			if (accessFile != null){
+				getAccessFile().put(absolutePath, pipe.access);
+			}
+		} else {
+			getCatalog().remove(absolutePath);
+			if (accessFile != null){
+				getAccessFile().remove(absolutePath);
+			}
+		}
+	}
+	
+	/**
+	 *  Tells the other nodes of the cluster that the row of a pipefile changed, does nothing unless clustered
+	 */
+	private void publishChange(String absolutePath) throws Exception {
+		if (cluster != null){
+			cluster.publish(ClusterNode.FILE, absolutePath);
+		}
+	}
+	
+	/**
+	 *  Creates any table that does not exist yet, so an empty (or embedded) database can be used
+	 */
+	private void createTables(Connection con) throws Exception {
+		if (tableExists(con, "directory") == false){
+			con.createStatement().executeUpdate(
+				"CREATE TABLE directory (" +
+					"directoryID INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+					"absolutePath VARCHAR(1024) NOT NULL UNIQUE)"
+			);
+		}
+		
+		if (tableExists(con, "pipefile") == false){
+			con.createStatement().executeUpdate(
+				"CREATE TABLE pipefile (" +
+					"directoryID INTEGER, absolutePath VARCHAR(1024) NOT NULL UNIQUE, lastModified TIMESTAMP, " +
+					"name VARCHAR(256), type VARCHAR(16), packageName VARCHAR(256), " +
+					"description LONGVARCHAR, tags LONGVARCHAR, " +
+					"location VARCHAR(1024), uri VARCHAR(1024), access LONGVARCHAR, contentHash VARCHAR(40), " +
+					"inputs LONGVARCHAR, outputs LONGVARCHAR)"
+			);
+		} else {
+			if (columnExists(con, "pipefile", "contentHash") == false){
+				// Stored before content hashing, the next scans fill it in
+				con.createStatement().executeUpdate(
+					"ALTER TABLE pipefile ADD COLUMN contentHash VARCHAR(40)"
+				);
+			}
+			
+			if (columnExists(con, "pipefile", "inputs") == false){
+				con.createStatement().executeUpdate(
+					"ALTER TABLE pipefile ADD COLUMN inputs LONGVARCHAR"
+				);
+				con.createStatement().executeUpdate(
+					"ALTER TABLE pipefile ADD COLUMN outputs LONGVARCHAR"
+				);
+				
+				// Stored before parameters were parsed, the next scans parse every file again 
+				// (without a contentHash a file is not copied from its own stale parse)
+				PreparedStatement stmt = con.prepareStatement(
+					"UPDATE pipefile " +
+					"SET lastModified = ?, contentHash = NULL"
+				);
+				stmt.setTimestamp(1, new Timestamp(0));
+				stmt.executeUpdate();
+				stmt.close();
+			}
+		}
+		
+		if (tableExists(con, "dependency") == false){
+			con.createStatement().executeUpdate(
+				"CREATE TABLE dependency (" +
+					"absolutePath VARCHAR(1024) NOT NULL, reference VARCHAR(2048) NOT NULL)"
+			);
+			con.createStatement().executeUpdate(
+				"CREATE INDEX dependency_path ON dependency (absolutePath)"
+			);
+		}
+		
+		if (tableExists(con, "usergroup") == false){
+			con.createStatement().executeUpdate(
+				"CREATE TABLE usergroup (" +
+					"name VARCHAR(256) PRIMARY KEY, users LONGVARCHAR)"
+			);
+		}
+	}
+	
+	/**
+	 *  @return true if the table exists in the database (names are compared case insensitive)
+	 */
+	private boolean tableExists(Connection con, String table) throws Exception {
+		ResultSet rs = con.getMetaData().getTables(null, null, table.toUpperCase(), null);
+		boolean exists = rs.next();
+		rs.close();
+		
+		return exists;
+	}
+	
+	/**
+	 *  @return true if the table has the column (names are compared case insensitive)
+	 */
+	private boolean columnExists(Connection con, String table, String column) throws Exception {
+		ResultSet rs = con.getMetaData().getColumns(null, null, table.toUpperCase(), column.toUpperCase());
+		boolean exists = rs.next();
+		rs.close();
+		
+		return exists;
+	}
+	
+	/**
+	 *  Executes a query, recording how long the database took
+	 */
+	private ResultSet executeQuery(PreparedStatement stmt) throws Exception {
+		long start = System.nanoTime();
+		try {
+			return stmt.executeQuery();
+		} finally {
+			queryTime.recordSince(start);
+		}
+	}
+	
+	/**
+	 *  Executes an INSERT, UPDATE or DELETE, recording how long the database took
 	 */
-	private ArrayList<File> getAllPipefiles(ArrayList<File> files, File dir){
-	    if (dir.isDirectory()){
-	    	for (File file : dir.listFiles()){
-	    		getAllPipefiles(files, file);
-	    	}
-	    } else {
-	    	String name = dir.getName();
-	    	if (name.endsWith(".pipe")){
-	    		files.add(dir);	
-	    	}
-	    }
-	    
-	    return files;
+	private int executeUpdate(PreparedStatement stmt) throws Exception {
+		long start = System.nanoTime();
+		try {
+			return stmt.executeUpdate();
+		} finally {
+			updateTime.recordSince(start);
+		}
 	}
 	
 	/** 
@@ -74,12 +554,18 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 	 * @param absolutePath absolute path of the root directory  
 	 * @return directoryID of the root directory
 	 */
-	private int getDirectoryId(String absolutePath) throws Exception{
+	private synchronized int getDirectoryId(String absolutePath) throws Exception{
+		Integer known = getCatalog().getDirectoryId(absolutePath);
+		if (known != null){
+			return known;
+		}
+		
 		int ret = selectDirectoryId(absolutePath);
 		if(ret == -1){
 			insertDirectoryId(absolutePath);
 			ret = selectDirectoryId(absolutePath);
 		}
+		getCatalog().setDirectory(absolutePath, ret);
 		return ret;
 	}
 	
@@ -96,7 +582,7 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 			"WHERE absolutePath = ?"		
 		);
 		stmt.setString(1, absolutePath);
-		ResultSet rs = stmt.executeQuery();
+		ResultSet rs = executeQuery(stmt);
 		
 		if (rs.next()){
 			return rs.getInt(1);
@@ -119,201 +605,693 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 			"VALUES (?)" 		
 		);
 		stmt.setString(1, absolutePath);
-		stmt.executeUpdate();
+		executeUpdate(stmt);
 	}
 	
 	/**
-	 * ResultSet is from a query with the following form 
+	 * ResultSet is positioned on a row of a query with the following form 
 	 *   SELECT * FROM pipefile WHERE ...
 	 */
-	private Pipefile[] resultSetToPipefileArray(ResultSet rs) throws Exception{
-		ArrayList<Pipefile> list = new ArrayList<Pipefile>();
-		while (rs.next()) {
-			Pipefile p = new Pipefile();
-			
-			// directoryID at index 1
-			p.absolutePath = rs.getString(2);
-			// lastModified at index 3
-			p.name = rs.getString(4);
-			p.type = rs.getString(5);
-			p.packageName = rs.getString(6);
-			p.description = rs.getString(7);
-			p.tags = rs.getString(8);
-			p.location = rs.getString(9);
-			p.uri = rs.getString(10);
-			
-			p.access = rs.getString(11);
-			
-			list.add(p);
-		}
+	private Pipefile resultSetToPipefile(ResultSet rs) throws Exception{
+		Pipefile p = new Pipefile();
 		
-		Pipefile[] ret = new Pipefile[list.size()];
-		return list.toArray(ret);
+		// directoryID at index 1
+		p.absolutePath = rs.getString(2);
+		// lastModified at index 3
+		p.name = rs.getString(4);
+		p.type = rs.getString(5);
+		p.packageName = rs.getString(6);
+		p.description = rs.getString(7);
+		p.tags = rs.getString(8);
+		p.location = rs.getString(9);
+		p.uri = rs.getString(10);
+		
+		p.access = rs.getString(11) == null ? "" : rs.getString(11);
+		p.contentHash = rs.getString(12);
+		p.inputs = rs.getString(13);
+		p.outputs = rs.getString(14);
+		
+		return p;
 	}
 	
 	/**
-	 *  Update the database for this root folder 
-	 *  @param root absolute path of the root directory
+	 *  Returns the dependency graph, loading it from the database the first time
 	 */
-	private void updateDatabase(File rootDir) throws Exception {
-		// Get all pipefiles recursively under this folder
-		ArrayList<File> files = getAllPipefiles(new ArrayList<File>(), rootDir);
-		
-		if (files.size() > 0){
+	private synchronized DependencyGraph getDependencyGraph() throws Exception {
+		if (dependencyGraph == null){
+			DependencyGraph graph = new DependencyGraph();
 			Connection con = getDatabaseConnection();
-			 
-			int dirID = getDirectoryId(rootDir.getAbsolutePath());
 			
-			// For each pipefile
-			for (File file : files){			    
-			    // Get the lastModified of this pipefile to determine if database is up-to-date
-			    PreparedStatement stmt = con.prepareStatement(
-			    	"SELECT lastModified " +
-					"FROM pipefile " +
-					"WHERE absolutePath = ?" 		
-				);
-			    stmt.setString(1, file.getAbsolutePath());
-				ResultSet rs = stmt.executeQuery();
-			    
-				// Determine if the row needs to be updated or inserted
-			    boolean update = false;
-			    boolean insert = true;
-			    
-			    Timestamp fs_lastModified = new Timestamp(file.lastModified());
+			PreparedStatement stmt = con.prepareStatement(
+				"SELECT absolutePath, name, packageName, location, uri " +
+				"FROM pipefile"
+			);
+			ResultSet rs = executeQuery(stmt);
+			while (rs.next()){
+				Pipefile p = new Pipefile();
+				p.absolutePath = rs.getString(1);
+				p.name = rs.getString(2);
+				p.packageName = rs.getString(3);
+				p.location = rs.getString(4);
+				p.uri = rs.getString(5);
 				
-			    if (rs.next()){
-					insert = false;
-					
-					Timestamp db_lastModified = rs.getTimestamp(1);
-					
-					// If file has been modified
-					if (db_lastModified.equals(fs_lastModified) == false){
-						update = true;
+				graph.setIdentity(p.absolutePath, DependencyGraph.identityKeys(p));
+			}
+			
+			stmt = con.prepareStatement(
+				"SELECT absolutePath, reference " +
+				"FROM dependency " +
+				"ORDER BY absolutePath"
+			);
+			rs = executeQuery(stmt);
+			
+			String current = null;
+			ArrayList<String> references = new ArrayList<String>();
+			while (rs.next()){
+				String path = rs.getString(1);
+				if (path.equals(current) == false){
+					if (current != null){
+						graph.setReferences(current, references.toArray(new String[references.size()]));
 					}
+					current = path;
+					references.clear();
 				}
-				
-				// If we need to update or insert a row
-			    if (update || insert){			    	
-			    	Pipefile pipe = ServerUtils.parseFile(file);
-					
-					if (insert){
-						/*
-						 * database schema for pipefile
-						 */
-						
-						stmt = con.prepareStatement(
-							"INSERT INTO pipefile (" +
-								"directoryID, absolutePath, lastModified, " +
-								"name, type, packageName, description, tags, " +
-								"location, uri, access) " +
-							"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-						);
-						stmt.setInt(1, dirID);
-						stmt.setString(2, pipe.absolutePath);
-						stmt.setTimestamp(3, fs_lastModified);
-						stmt.setString(4, pipe.name);
-						stmt.setString(5, pipe.type);
-						stmt.setString(6, pipe.packageName);
-						stmt.setString(7, pipe.description);
-						stmt.setString(8, pipe.tags);
-						stmt.setString(9, pipe.location);
-						stmt.setString(10, pipe.uri);
-						stmt.setString(11, ""); // access
-					} else {
-						// directoryID and access are not based on the file in the system
-						stmt = con.prepareStatement(
-							"UPDATE pipefile " +
-						    "SET name = ?, type = ?, packageName = ?, description = ?, tags = ?, " +
-						    "location = ?, uri = ?, lastModified = ? " +
-							"WHERE absolutePath = ?"
-						);
-						stmt.setString(1, pipe.name);
-						stmt.setString(2, pipe.type);
-						stmt.setString(3, pipe.packageName);
-						stmt.setString(4, pipe.description);
-						stmt.setString(5, pipe.tags);
-						stmt.setString(6, pipe.location);
-						stmt.setString(7, pipe.uri);
-						stmt.setTimestamp(8, fs_lastModified);
-						stmt.setString(9, pipe.absolutePath);
-					}
-					stmt.executeUpdate();
-	 		    }
+				references.add(rs.getString(2));
 			}
+			if (current != null){
+				graph.setReferences(current, references.toArray(new String[references.size()]));
+			}
+			
+			dependencyGraph = graph;
 		}
+		
+		return dependencyGraph;
 	}
 	
-	////////////////////////////////////////////////////////////
-	// Public Functions
-	////////////////////////////////////////////////////////////
-	
 	/**
-	 *  Returns a FileTree that represents the root directory
-	 *  <br>
-	 *  Thus the children are the packages
-	 *  @param root the absolute path of the root directory
+	 *  Returns the catalog, loading it from the database the first time
 	 */
-	public Pipefile[] getFiles(String root) throws Exception {
-		try {
-			File rootDir = new File(root);
-			if (rootDir.exists() && rootDir.isDirectory()){
-				updateDatabase(rootDir);
-				
-				int dirID = getDirectoryId(root);
-				
-				Connection con = getDatabaseConnection();
-				PreparedStatement stmt = con.prepareStatement(
-			    	"SELECT * " +
-					"FROM pipefile " +
-					"WHERE directoryID = ?" 		
-				);
-			    stmt.setInt(1, dirID);
-				ResultSet rs = stmt.executeQuery();
-				
-				return resultSetToPipefileArray(rs);
-			} else {
-				return null;
+	private synchronized Catalog getCatalog() throws Exception {
+		if (catalog == null){
+			catalog = loadCatalog();
+			if (snapshot != null){
+				snapshot.setCatalog(catalog);
 			}
-		} 
-		catch (Exception e) {
-			e.printStackTrace();
-			throw new Exception(e.getMessage());
 		}
+		
+		return catalog;
 	}
 	
 	/**
-	 *  Returns a FileTree where the children are all files and are the search results
-	 *  @param root the absolute path of the root directory
-	 *  @param query what the user is searching for
+	 *  Returns an empty catalog, kept in memory-mapped files under edu.ucla.loni.catalog.store
+	 *  if it is set, on the heap otherwise
 	 */
-	public Pipefile[] getSearchResults(String root, String query) throws Exception{
-		try {
-			// Convert to lower case so can test case insensitive
-			query = query.toLowerCase();
+	private Catalog newCatalog() throws Exception {
+		String path = System.getProperty("edu.ucla.loni.catalog.store");
+		if (path == null){
+			return new Catalog();
+		}
+		
+		return new Catalog(new MappedPipefileStore(new File(path)));
+	}
+	
+	/**
+	 *  Reads the directory and pipefile tables into a new catalog
+	 */
+	private Catalog loadCatalog() throws Exception {
+		Catalog c = newCatalog();
+		Connection con = getDatabaseConnection();
+		
+		PreparedStatement stmt = con.prepareStatement(
+			"SELECT directoryID, absolutePath " +
+			"FROM directory"
+		);
+		ResultSet rs = executeQuery(stmt);
+		while (rs.next()){
+			c.setDirectory(rs.getString(2), rs.getInt(1));
+		}
+		
+		stmt = con.prepareStatement(
+			"SELECT * " +
+			"FROM pipefile"
+		);
+		rs = executeQuery(stmt);
+		while (rs.next()){
+			c.put(rs.getInt(1), resultSetToPipefile(rs));
+		}
+		
+		return c;
+	}
+	
+	/**
+	 *  Serves the catalog from the snapshot right away, then brings it up-to-date in the background:
+	 *  reloads it from the database (the snapshot may be a little older) and rescans its roots
+	 */
+	private void restoreCatalog(){
+		final Catalog restored;
+		try {
+			restored = newCatalog();
+		} catch (Exception e){
+			e.printStackTrace();
+			return;
+		}
+		
+		if (snapshot.read(restored) == false){
+			restored.close();
+			return;
+		}
+		
+		synchronized (this){
+			catalog = restored;
+			restoredRoots.addAll(restored.contents().directories.keySet());
+		}
+		
+		try {
+			jobs.submit(new Job("revalidate") {
+				protected Pipefile[] execute() throws Exception {
+					reloadCatalog();
+					
+					String[] roots = restoredRoots.toArray(new String[0]);
+					setTotal(roots.length);
+					for (String root : roots){
+						try {
+							File rootDir = new File(root);
+							if (rootDir.isDirectory()){
+								scan(rootDir, null);
+							}
+						} finally {
+							restoredRoots.remove(root);
+							progress();
+						}
+					}
+					
+					return null;
+				}
+			});
+		} catch (Exception e){
+			// Queue full, the roots are rescanned as they are requested
+			e.printStackTrace();
+			restoredRoots.clear();
+		}
+	}
+	
+	/**
+	 *  Replaces the catalog with a fresh copy of the database, 
+	 *  retrying if the catalog changes while the copy is read
+	 */
+	private void reloadCatalog() throws Exception {
+		for (int attempt = 1; ; attempt++){
+			Catalog old;
+			int before;
+			synchronized (this){
+				old = catalog;
+				before = old.getModCount();
+			}
 			
+			Catalog fresh = loadCatalog();
+			
+			synchronized (this){
+				if (catalog == old && old.getModCount() == before){
+					catalog = fresh;
+				} else if (attempt == 3){
+					// Changes keep coming, read it again without letting them in
+					fresh.close();
+					catalog = loadCatalog();
+				} else {
+					fresh.close();
+					continue;
+				}
+				old.close();
+				
+				if (snapshot != null){
+					snapshot.setCatalog(catalog);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 *  Stores the references of a (re-)parsed pipefile and updates the graph if it is loaded
+	 *  @param replace true if the pipefile may already have references stored
+	 */
+	private void updateDependencies(Pipefile pipe, ArrayList<String> references, boolean replace) throws Exception {
+		Connection con = getDatabaseConnection();
+		
+		if (replace){
+			PreparedStatement stmt = con.prepareStatement(
+				"DELETE FROM dependency " +
+				"WHERE absolutePath = ?"
+			);
+			stmt.setString(1, pipe.absolutePath);
+			executeUpdate(stmt);
+		}
+		
+		if (references.size() > 0){
+			PreparedStatement stmt = con.prepareStatement(
+				"INSERT INTO dependency (absolutePath, reference) " +
+				"VALUES (?, ?)"
+			);
+			for (String reference : references){
+				stmt.setString(1, pipe.absolutePath);
+				stmt.setString(2, reference);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+		
+		synchronized (this){
+			if (dependencyGraph != null){
+				dependencyGraph.setIdentity(pipe.absolutePath, DependencyGraph.identityKeys(pipe));
+				dependencyGraph.setReferences(pipe.absolutePath, references.toArray(new String[references.size()]));
+			}
+		}
+	}
+	
+	/**
+	 *  Update the database for this root folder 
+	 *  @param root absolute path of the root directory
+	 *  @param job job to report progress to, null if not running as a job
+	 */
+	private void updateDatabase(File rootDir, Job job) throws Exception {
+		long scanStart = System.nanoTime();
+		try {
+			// Get all pipefiles recursively under this folder
+			long walkStart = System.nanoTime();
+			ArrayList<DirectoryWalker.Entry> files = DirectoryWalker.walk(rootDir);
+			walkTime.recordSince(walkStart);
+			walkedFiles.add(files.size());
+			if (job != null){
+				job.setTotal(files.size());
+			}
+		
+			if (files.size() > 0){
+				Connection con = getDatabaseConnection();
+			 
+				int dirID = getDirectoryId(rootDir.getAbsolutePath());
+			
+				// For each pipefile
+				for (DirectoryWalker.Entry file : files){
+					if (job != null){
+						job.progress();
+					}
+					
+				    // Get the lastModified of this pipefile to determine if database is up-to-date
+				    PreparedStatement stmt = con.prepareStatement(
+				    	"SELECT lastModified, contentHash " +
+						"FROM pipefile " +
+						"WHERE absolutePath = ?" 		
+					);
+				    stmt.setString(1, file.absolutePath);
+					ResultSet rs = executeQuery(stmt);
+			    
+					// Determine if the row needs to be updated or inserted
+				    boolean update = false;
+				    boolean insert = true;
+				    String db_contentHash = null;
+			    
+				    Timestamp fs_lastModified = new Timestamp(file.lastModified);
+				
+				    if (rs.next()){
+						insert = false;
+					
+						Timestamp db_lastModified = rs.getTimestamp(1);
+						db_contentHash = rs.getString(2);
+					
+						// If file has been modified
+						if (db_lastModified.equals(fs_lastModified) == false){
+							update = true;
+						}
+					}
+				
+					// If we need to update or insert a row
+				    if (update || insert){			    	
+				    	ArrayList<String> references = new ArrayList<String>();
+				    	Pipefile pipe = parseOrReuse(new File(file.absolutePath), references);
+				    	
+				    	if (pipe == null){
+				    		continue; // Not a pipefile we understand
+				    	}
+					
+						if (insert){
+							/*
+							 * database schema for pipefile
+							 */
+						
+							stmt = con.prepareStatement(
+								"INSERT INTO pipefile (" +
+									"directoryID, absolutePath, lastModified, " +
+									"name, type, packageName, description, tags, " +
+									"location, uri, access, contentHash, inputs, outputs) " +
+								"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+							);
+							stmt.setInt(1, dirID);
+							stmt.setString(2, pipe.absolutePath);
+							stmt.setTimestamp(3, fs_lastModified);
+							stmt.setString(4, pipe.name);
+							stmt.setString(5, pipe.type);
+							stmt.setString(6, pipe.packageName);
+							stmt.setString(7, pipe.description);
+							stmt.setString(8, pipe.tags);
+							stmt.setString(9, pipe.location);
+							stmt.setString(10, pipe.uri);
+							stmt.setString(11, ""); // access
+							stmt.setString(12, pipe.contentHash);
+							stmt.setString(13, pipe.inputs);
+							stmt.setString(14, pipe.outputs);
+							pipe.access = "";
+						} else {
+							// directoryID and access are not based on the file in the system
+							stmt = con.prepareStatement(
+								"UPDATE pipefile " +
+							    "SET name = ?, type = ?, packageName = ?, description = ?, tags = ?, " +
+							    "location = ?, uri = ?, lastModified = ?, contentHash = ?, inputs = ?, outputs = ? " +
+								"WHERE absolutePath = ?"
+							);
+							stmt.setString(1, pipe.name);
+							stmt.setString(2, pipe.type);
+							stmt.setString(3, pipe.packageName);
+							stmt.setString(4, pipe.description);
+							stmt.setString(5, pipe.tags);
+							stmt.setString(6, pipe.location);
+							stmt.setString(7, pipe.uri);
+							stmt.setTimestamp(8, fs_lastModified);
+							stmt.setString(9, pipe.contentHash);
+							stmt.setString(10, pipe.inputs);
+							stmt.setString(11, pipe.outputs);
+							stmt.setString(12, pipe.absolutePath);
+						}
+						executeUpdate(stmt);
+						
+						// access is null on update, the catalog keeps the stored one
+						getCatalog().put(dirID, pipe);
+						publishChange(pipe.absolutePath);
+						updateDependencies(pipe, references, update);
+		 		    } else if (db_contentHash == null){
+		 		    	// Stored before content hashing, hashed once without re-parsing
+		 		    	storeContentHash(dirID, file.absolutePath);
+		 		    }
+				}
+			}
+		} finally {
+			scanTime.recordSince(scanStart);
+		}
+	}
+	
+	/**
+	 *  Parses a new or modified pipefile, or copies the parse of a file with the same content
+	 *  @param references filled with the DependencyGraph keys of the modules, data modules and groups a workflow contains
+	 *  @return the pipefile with its contentHash and a null access, 
+	 *          or null if it cannot be read or is not a pipefile
+	 */
+	private Pipefile parseOrReuse(File f, ArrayList<String> references) throws Exception {
+		String contentHash;
+		try {
+			contentHash = ServerUtils.contentHash(f);
+		} catch (IOException e){
+			return null; // Removed or unreadable since the walk
+		}
+		
+		Pipefile pipe;
+		Pipefile same = getCatalog().findByHash(contentHash);
+		if (same != null){
+			pipe = Catalog.copy(same);
+			pipe.absolutePath = f.getAbsolutePath();
+			pipe.access = null;
+			if ("Workflows".equals(pipe.type)){
+				Collections.addAll(references, getDependencyGraph().references(same.absolutePath));
+			}
+			reusedFiles.inc();
+		} else {
+			pipe = ServerUtils.parseFile(f, references);
+			parsedFiles.inc();
+			if (pipe == null){
+				return null;
+			}
+		}
+		
+		pipe.contentHash = contentHash;
+		return pipe;
+	}
+	
+	/**
+	 *  Hashes an unmodified pipefile stored without its contentHash
+	 */
+	private void storeContentHash(int dirID, String absolutePath) throws Exception {
+		String contentHash;
+		try {
+			contentHash = ServerUtils.contentHash(new File(absolutePath));
+		} catch (IOException e){
+			return; // Hashed by a later scan
+		}
+		
+		PreparedStatement stmt = getDatabaseConnection().prepareStatement(
+			"UPDATE pipefile " +
+			"SET contentHash = ? " +
+			"WHERE absolutePath = ?"
+		);
+		stmt.setString(1, contentHash);
+		stmt.setString(2, absolutePath);
+		executeUpdate(stmt);
+		
+		Pipefile pipe = getCatalog().get(absolutePath);
+		if (pipe != null){
+			pipe = Catalog.copy(pipe);
+			pipe.contentHash = contentHash;
+			getCatalog().put(dirID, pipe);
+		}
+		publishChange(absolutePath);
+	}
+	
+	/**
+	 *  Returns the access-control evaluator, building it from the groups in the database if needed
+	 */
+	private AccessControl getAccessControl() throws Exception {
+		AccessControl acl = accessControl;
+		if (acl == null){
+			synchronized (this){
+				if (accessControl == null){
+					accessControl = new AccessControl(getGroups());
+				}
+				acl = accessControl;
+			}
+		}
+		
+		return acl;
+	}
+	
+	/**
+	 *  Returns the access restrictions file writer, loading its model from the database the first time
+	 *  <p>
+	 *  The file is set with edu.ucla.loni.access.file, without it only the in-memory model is kept
+	 */
+	private synchronized AccessFileWriter getAccessFile() throws Exception {
+		if (accessFile == null){
 			Connection con = getDatabaseConnection();
-			int dirID = getDirectoryId(root);
 			PreparedStatement stmt = con.prepareStatement(
-				"SELECT * " +
+				"SELECT absolutePath, access " +
 				"FROM pipefile " +
-				"WHERE directoryID = ? " +
-					"AND (LCASE(name) LIKE '%" + query + "%' " +
-					     "OR LCASE(packageName) LIKE '%" + query + "%'" +
-					     "OR LCASE(description) LIKE '%" + query + "%'" +
-					     "OR LCASE(tags) LIKE '%" + query + "%')" 
-					//DO NOT CHANGE
-					//for some reason on my computer making later setString substitution
-					//was not producing the right result, i.e. not finding items in
-					//database. My guess the setString was not formatting correctly.
-					     
-					// setString should now have single quotes surrounding it
-					// Right now this code is subject to SQL injection, need to use setString
+				"WHERE access <> ''"
 			);
-			stmt.setInt(1, dirID);
-			//stmt.setString(2, "'%" + query + "%'");
-			ResultSet rs = stmt.executeQuery();
+			ResultSet rs = executeQuery(stmt);
 			
-			return resultSetToPipefileArray(rs);
+			HashMap<String, String> initial = new HashMap<String, String>();
+			while (rs.next()){
+				initial.put(rs.getString(1), rs.getString(2));
+			}
+			
+			String path = System.getProperty("edu.ucla.loni.access.file");
+			accessFile = new AccessFileWriter(path == null ? null : new File(path), initial);
+		}
+		
+		return accessFile;
+	}
+	
+	/**
+	 *  Removes the files the caller cannot access
+	 *  <p>
+	 *  Without container authentication (no remote user) every file is returned
+	 */
+	private Pipefile[] filterByAccess(Pipefile[] files) throws Exception {
+		if (files == null || getThreadLocalRequest() == null){
+			return files;
+		}
+		
+		String user = getThreadLocalRequest().getRemoteUser();
+		if (user == null){
+			return files;
+		}
+		
+		return getAccessControl().filter(files, user);
+	}
+	
+	/**
+	 *  Logs the intent of a file operation before it changes anything
+	 *  @param args what recovery needs to finish or undo it
+	 *  @return id to pass to journalCommit, 0 without a journal
+	 */
+	private long journalBegin(String type, String... args) throws Exception {
+		return journal == null ? 0 : journal.begin(type, args);
+	}
+	
+	/**
+	 *  Logs the completion of a file operation, once nothing is left to do for it
+	 */
+	private void journalCommit(long op) throws Exception {
+		if (journal != null){
+			journal.commit(op);
+		}
+	}
+	
+	/**
+	 *  Resolves the operations left between intent and completion: the file system says
+	 *  whether the change happened, if it did the rest is done again, if not there is nothing to undo
+	 *  <p>
+	 *  One that fails is left in the journal for the next startup
+	 */
+	private void recoverOperations(){
+		for (OperationJournal.Operation op : journal.incomplete()){
+			try {
+				if (op.type.equals("remove")){
+					if (new File(op.args[0]).exists() == false){
+						finishRemove(op.args[0]);
+					}
+				} else if (op.type.equals("move")){
+					File source = new File(op.args[0]);
+					File dest = new File(op.args[1]);
+					// Moved, over another file or not, finishMove forgets the one replaced
+					if (source.exists() == false && dest.exists()){
+						finishMove(op.args[0], dest, op.args[2]);
+					}
+				} else if (op.type.equals("copy")){
+					File dest = new File(op.args[1]);
+					if (dest.exists()){
+						finishCopy(op.args[0], dest);
+					}
+				} else if (op.type.equals("restore")){
+					File restored = new File(op.args[1]);
+					if (restored.exists()){
+						finishRestore(op.args[0], restored);
+					}
+				} else if (op.type.equals("update")){
+					finishUpdate(op.args[0], op.args[1]);
+				}
+				
+				journal.commit(op.id);
+			} catch (Exception e){
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 *  Brings the database up-to-date with the root directory, 
+	 *  joining a scan of the same root that is already running
+	 *  @param job job to report progress to, null if not running as a job
+	 */
+	private void scan(final File rootDir, final Job job) throws Exception {
+		scans.scan(rootDir.getAbsolutePath(), new ScanCoordinator.Scan() {
+			public void run() throws Exception {
+				updateDatabase(rootDir, job);
+			}
+		});
+	}
+	
+	/**
+	 *  Brings the database up-to-date with the root directory, unless it was restored from the 
+	 *  snapshot and has not been rescanned yet: it is served as it is until then. 
+	 *  In a cluster only the indexer scans, the other nodes ask it to.
+	 *  @param job job to report progress to, null if not running as a job
+	 */
+	private void refreshRoot(File rootDir, Job job) throws Exception {
+		if (restoredRoots.contains(rootDir.getAbsolutePath())){
+			return;
+		}
+		
+		getDatabaseConnection();
+		ClusterNode c = cluster;
+		if (c != null && c.isIndexer() == false){
+			// Scanned by the indexer, its changes come back through the change feed
+			c.requestRescan(rootDir.getAbsolutePath());
+			return;
+		}
+		
+		scan(rootDir, job);
+	}
+	
+	/**
+	 *  Brings the database up-to-date with the root directory and returns its files
+	 *  @param rootDir the root directory
+	 *  @param job job to report progress to, null if not running as a job
+	 *  @return the files, or null if the root is not a directory
+	 */
+	private Pipefile[] scanFiles(File rootDir, Job job) throws Exception {
+		if (rootDir.exists() && rootDir.isDirectory()){
+			refreshRoot(rootDir, job);
+			
+			int dirID = getDirectoryId(rootDir.getAbsolutePath());
+			
+			return getCatalog().getFiles(dirID);
+		} else {
+			return null;
+		}
+	}
+	
+	/**
+	 *  Files of a root directory as the catalog has them, without scanning, 
+	 *  for the Bootstrap servlet
+	 *  @param user the remote user, null to return every file
+	 *  @return the files, or null if the root has not been scanned
+	 */
+	public Pipefile[] getCatalogFiles(String root, String user) throws Exception {
+		Catalog c = getCatalog();
+		Integer dirID = c.getDirectoryId(root);
+		if (dirID == null && cluster != null){
+			// Scanned by the indexer, whose rows came through the change feed without the directory
+			int known = selectDirectoryId(root);
+			if (known != -1){
+				c.setDirectory(root, known);
+				dirID = known;
+			}
+		}
+		if (dirID == null){
+			return null;
+		}
+		
+		Pipefile[] files = c.getFiles(dirID);
+		return user == null ? files : getAccessControl().filter(files, user);
+	}
+	
+	/**
+	 *  @return a string that changes whenever getCatalogFiles could return something else
+	 */
+	public String getCatalogVersion() throws Exception {
+		Catalog c = getCatalog();
+		return started + ":" + System.identityHashCode(c) + ":" + c.getModCount() + ":" + System.identityHashCode(accessControl);
+	}
+	
+	/**
+	 *  @return true if this node scans the roots: it is the indexer of its cluster, or not clustered
+	 */
+	public boolean isIndexer() throws Exception {
+		getDatabaseConnection();
+		return cluster == null || cluster.isIndexer();
+	}
+	
+	////////////////////////////////////////////////////////////
+	// Public Functions
+	////////////////////////////////////////////////////////////
+	
+	/**
+	 *  Returns a FileTree that represents the root directory
+	 *  <br>
+	 *  Thus the children are the packages
+	 *  @param root the absolute path of the root directory
+	 *  @return summaries of the files, getPipefileDetails has the rest
+	 */
+	public Pipefile[] getFiles(String root) throws Exception {
+		try {
+			return filterByAccess(scanFiles(new File(root), null));
 		} 
 		catch (Exception e) {
 			e.printStackTrace();
@@ -322,34 +1300,305 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 	}
 	
 	/**
-	 *  Updates the file on the server
-	 *  @param pipe Pipefile representing the updated file
+	 *  Everything known about files listed by getFiles or a search, which only send summaries
+	 *  @param absolutePaths the files, at most MAX_DETAILS
+	 *  @return the files that are still in the catalog and the caller can access, in the same order
 	 */
-	public void updateFile(Pipefile pipe){
-		// TODO
-		// Read the filename
-		//   If the file exists
-		//      read, parse the file, update the needed fields
-		//      if the package changed update the name, move the file
-		//      update the row corresponding to this file in the database
-		//      rewrite the access file
-		//   Else
-		//      return
-		File f = new File(pipe.absolutePath);
-		if (!f.exists() || !f.canRead())
-			return;
-		Document doc;
-		try
-		{
-			//parse
-			doc = ServerUtils.parseXML(f);
+	public Pipefile[] getPipefileDetails(String[] absolutePaths) throws Exception {
+		try {
+			if (absolutePaths.length > MAX_DETAILS){
+				throw new Exception("Too many files at once, at most " + MAX_DETAILS);
+			}
+			
+			Catalog c = getCatalog();
+			ArrayList<Pipefile> ret = new ArrayList<Pipefile>(absolutePaths.length);
+			for (String absolutePath : absolutePaths){
+				Pipefile pipe = c.get(absolutePath);
+				if (pipe != null){
+					ret.add(pipe);
+				}
+			}
+			
+			return filterByAccess(ret.toArray(new Pipefile[ret.size()]));
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
 		}
-		catch(Exception e)
-		{
-			return;	//parseXML triggered exception
+	}
+	
+	/**
+	 *  Searches the files of the root directory, with facet counts of the results
+	 *  @param root the absolute path of the root directory
+	 *  @param query what the user is searching for, empty to only filter by facets
+	 *  @param filters facet values the results must have (count is ignored),
+	 *         values of the same field are alternatives, null for no filtering
+	 *  @param fuzzy true to match the words of the query allowing typos, best matches first
+	 */
+	public SearchResult getSearchResults(String root, String query, Facet[] filters, boolean fuzzy) throws Exception{
+		try {
+			int dirID = getDirectoryId(root);
+			
+			// Without container authentication (no remote user) every file is searched
+			String user = getThreadLocalRequest() == null ? null : getThreadLocalRequest().getRemoteUser();
+			AccessControl acl = user == null ? null : getAccessControl();
+			
+			return getCatalog().search(dirID, query, filters, fuzzy, acl, user);
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
 		}
-		//TODO unknown pipe format
-		//TODO rewrite the access file
+	}
+	
+	/**
+	 *  One page of the search results, for a grid that only fetches the rows it shows
+	 *  <p>
+	 *  The whole result is kept, per sort order, until the catalog changes, 
+	 *  so scrolling and sorting do not search again
+	 *  @param root the absolute path of the root directory, null to search every root as getFederatedSearch
+	 *  @param query what the user is searching for, empty to only filter by facets
+	 *  @param filters facet values the results must have, as in getSearchResults
+	 *  @param fuzzy true to match the words of the query allowing typos
+	 *  @param sortBy "name", "packageName" or "type", null for the order of getSearchResults (by name for every root)
+	 *  @param descending true to sort from Z to A
+	 *  @param start index of the first result returned
+	 *  @param end index past the last result returned
+	 *  @return the results from start to end, with the number of results in total, 
+	 *          and the facet counts and the roots left out when start is 0
+	 */
+	public SearchResult getSearchPage(String root, String query, Facet[] filters, boolean fuzzy, 
+			String sortBy, boolean descending, int start, int end) throws Exception{
+		try {
+			String user = getThreadLocalRequest() == null ? null : getThreadLocalRequest().getRemoteUser();
+			
+			StringBuilder key = new StringBuilder();
+			key.append(root).append('\n').append(user).append('\n').append(query).append('\n').append(fuzzy);
+			if (filters != null){
+				for (Facet f : filters){
+					key.append('\n').append(f.field).append('=').append(f.value);
+				}
+			}
+			String unsorted = key.toString();
+			key.append('\n').append(sortBy).append('\n').append(descending);
+			String sorted = key.toString();
+			
+			String version = getCatalogVersion();
+			SearchResult all = cachedSearch(sorted, version);
+			if (all == null && root == null){
+				// Every root, merged in the sort order, kept only once every root has answered
+				all = getFederatedSearch(null, query, filters, fuzzy, sortBy == null ? "name" : sortBy, descending);
+				if (all.incompleteRoots == null){
+					cacheSearch(sorted, version, all);
+				}
+			} else if (all == null){
+				SearchResult results = cachedSearch(unsorted, version);
+				if (results == null){
+					results = getSearchResults(root, query, filters, fuzzy);
+					cacheSearch(unsorted, version, results);
+				}
+				
+				all = new SearchResult();
+				all.facets = results.facets;
+				all.files = results.files;
+				if (sortBy != null){
+					all.files = all.files.clone();
+					Arrays.sort(all.files, ServerUtils.pipefileOrder(sortBy, descending));
+				}
+				cacheSearch(sorted, version, all);
+			}
+			
+			start = Math.max(0, Math.min(start, all.files.length));
+			end = Math.max(start, Math.min(end, all.files.length));
+			
+			SearchResult ret = new SearchResult();
+			ret.files = Arrays.copyOfRange(all.files, start, end);
+			ret.total = all.files.length;
+			ret.facets = start == 0 ? all.facets : null;
+			ret.incompleteRoots = start == 0 ? all.incompleteRoots : null;
+			return ret;
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
+		}
+	}
+	
+	/**
+	 *  @return the search results kept under the key, null if there are none for this catalog version
+	 */
+	private SearchResult cachedSearch(String key, String version){
+		synchronized (searches){
+			Object[] cached = searches.get(key);
+			return cached != null && cached[0].equals(version) ? (SearchResult) cached[1] : null;
+		}
+	}
+	
+	private void cacheSearch(String key, String version, SearchResult results){
+		synchronized (searches){
+			searches.put(key, new Object[] {version, results});
+		}
+	}
+	
+	/**
+	 *  @return the absolute paths of the root directories the server has seen, in the order they were added
+	 */
+	public String[] getRoots() throws Exception {
+		try {
+			Connection con = getDatabaseConnection();
+			
+			PreparedStatement stmt = con.prepareStatement(
+				"SELECT absolutePath " +
+				"FROM directory " +
+				"ORDER BY directoryID"
+			);
+			ResultSet rs = executeQuery(stmt);
+			
+			ArrayList<String> ret = new ArrayList<String>();
+			while (rs.next()){
+				ret.add(rs.getString(1));
+			}
+			
+			return ret.toArray(new String[ret.size()]);
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
+		}
+	}
+	
+	/**
+	 *  Lists the files of several root directories as one, each root brought up-to-date
+	 *  in parallel as getFiles does
+	 *  @param roots absolute paths of the root directories, null for every root of getRoots
+	 *  @param sortBy "name", "packageName" or "type"
+	 *  @param descending true to sort from Z to A
+	 *  @return the files of the roots that answered within edu.ucla.loni.federation.timeout
+	 *          milliseconds, with the others in incompleteRoots
+	 */
+	public SearchResult getFederatedFiles(String[] roots, String sortBy, boolean descending) throws Exception {
+		try {
+			return federate(roots, sortBy, descending, new Federation.RootQuery() {
+				public Pipefile[] run(String root) throws Exception {
+					return scanFiles(new File(root), null);
+				}
+			});
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
+		}
+	}
+	
+	/**
+	 *  Searches several root directories as one, in parallel, as getSearchResults searches one
+	 *  @param roots absolute paths of the root directories, null for every root of getRoots
+	 *  @param sortBy "name", "packageName" or "type"
+	 *  @param descending true to sort from Z to A
+	 *  @return the results of the roots that answered within edu.ucla.loni.federation.timeout
+	 *          milliseconds, with the others in incompleteRoots, without facet counts
+	 */
+	public SearchResult getFederatedSearch(String[] roots, final String query, final Facet[] filters, 
+			final boolean fuzzy, String sortBy, boolean descending) throws Exception {
+		try {
+			// Request threads only, the executor has no request
+			final String user = getThreadLocalRequest() == null ? null : getThreadLocalRequest().getRemoteUser();
+			final AccessControl acl = user == null ? null : getAccessControl();
+			
+			return federate(roots, sortBy, descending, new Federation.RootQuery() {
+				public Pipefile[] run(String root) throws Exception {
+					return getCatalog().search(getDirectoryId(root), query, filters, fuzzy, acl, user).files;
+				}
+			});
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
+		}
+	}
+	
+	/**
+	 *  Runs the query on every root with the federation executor and merges the results
+	 */
+	private SearchResult federate(String[] roots, String sortBy, boolean descending, Federation.RootQuery query) throws Exception {
+		if (roots == null){
+			roots = getRoots();
+		}
+		
+		Federation.Result merged = federation.query(roots, query, 
+			ServerUtils.pipefileOrder(sortBy, descending), FEDERATION_TIMEOUT);
+		
+		SearchResult ret = new SearchResult();
+		ret.files = filterByAccess(merged.files);
+		ret.total = ret.files.length;
+		
+		ArrayList<String> incomplete = new ArrayList<String>(merged.late);
+		incomplete.addAll(merged.failed);
+		if (incomplete.isEmpty() == false){
+			ret.incompleteRoots = incomplete.toArray(new String[incomplete.size()]);
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 *  Tag autocomplete and popularity, an exact tag is looked up with a "tag" filter in getSearchResults
+	 *  @param root the absolute path of the root directory
+	 *  @param prefix what the user has typed so far, empty for the most used tags
+	 *  @param limit most tags returned
+	 *  @return normalized tags with the number of files using them, most used first
+	 */
+	public Facet[] getTags(String root, String prefix, int limit) throws Exception {
+		try {
+			return getCatalog().getTags(getDirectoryId(root), prefix, limit);
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
+		}
+	}
+	
+	/**
+	 *  Updates the file on the server, only its access can change
+	 *  @param pipe Pipefile representing the updated file
+	 */
+	public void updateFile(Pipefile pipe) throws Exception {
+		try {
+			File f = new File(pipe.absolutePath);
+			if (f.exists() == false){
+				throw new Exception("No such file: " + pipe.absolutePath);
+			}
+			
+			// Access is not stored in the file, only in the database
+			String access = pipe.access == null ? "" : pipe.access;
+			long op = journalBegin("update", pipe.absolutePath, access);
+			finishUpdate(pipe.absolutePath, access);
+			journalCommit(op);
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
+		}
+	}
+	
+	/**
+	 *  Stores the access of a file in the database, the catalog and the access file, 
+	 *  can be repeated
+	 */
+	private void finishUpdate(String absolutePath, String access) throws Exception {
+		Connection con = getDatabaseConnection();
+		PreparedStatement stmt = con.prepareStatement(
+			"UPDATE pipefile " +
+			"SET access = ? " +
+			"WHERE absolutePath = ?"
+		);
+		stmt.setString(1, access);
+		stmt.setString(2, absolutePath);
+		executeUpdate(stmt);
+		
+		getCatalog().setAccess(absolutePath, access);
+		getAccessFile().put(absolutePath, access);
+		publishChange(absolutePath);
 	}
 	
 	/**
@@ -359,19 +1608,45 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 	private void removeFile(String Filename) throws Exception {		
 		File f = new File(Filename);
 		if (f.exists()){
-			f.delete(); // TODO: check return status
-			Connection con = getDatabaseConnection();
+			long op = journalBegin("remove", Filename);
+			int recorded = history.record(Filename, "remove");
+			if (f.delete() == false){
+				history.discard(Filename, recorded);
+				journalCommit(op); // Nothing was changed
+				throw new Exception("Could not remove " + Filename);
+			}
 			
-			PreparedStatement stmt = con.prepareStatement(
-				"DELETE FROM pipefile " +
-				"WHERE absolutePath = ?" 		
-			);
-			stmt.setString(1, Filename);
-			stmt.executeUpdate();
-			//TODO: update access restrictions file
+			finishRemove(Filename);
+			journalCommit(op);
 		}
 	}
 	
+	/**
+	 *  Forgets a file removed from the file system, can be repeated
+	 */
+	private void finishRemove(String Filename) throws Exception {
+		Connection con = getDatabaseConnection();
+		
+		PreparedStatement stmt = con.prepareStatement(
+			"DELETE FROM pipefile " +
+			"WHERE absolutePath = ?" 		
+		);
+		stmt.setString(1, Filename);
+		executeUpdate(stmt);
+		
+		getCatalog().remove(Filename);
+		getAccessFile().remove(Filename);
+		publishChange(Filename);
+		
+		stmt = con.prepareStatement(
+			"DELETE FROM dependency " +
+			"WHERE absolutePath = ?"
+		);
+		stmt.setString(1, Filename);
+		executeUpdate(stmt);
+		getDependencyGraph().remove(Filename);
+	}
+	
 	/**
 	 *  Removes files from the server
 	 *  @param filenames absolute paths of the files
@@ -389,18 +1664,115 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 	}
 	
 	/**
-	 *  Copy a file from the server to the proper package
-	 *  @param filename absolute path of the file
-	 *  @param packageName absolute path of the package
+	 *  Copy a file from the server to the proper package
+	 *  @param filename absolute path of the file
+	 *  @param packageName absolute path of the package = destination folder path
+	 */
+	private void copyFile(String filename, String packageName) throws Exception {
+		File source_file = new File(filename);
+		if( source_file.exists() == false )
+		{
+			return; //file does not exist => abort
+		}
+		File dir = new File(packageName);
+		String formatted_package_name = extractFileName(packageName).replace(' ', '_');
+		File dest_file = new File(dir, extractFileName(filename));
+		if (dest_file.getCanonicalPath().equals(source_file.getCanonicalPath())){
+			throw new Exception(filename + " is already in " + dir);
+		}
+		
+		long op = journalBegin("copy", filename, dest_file.getAbsolutePath());
+		history.record(dest_file.getAbsolutePath(), "copy");
+		try {
+			// The copy only appears once written with its new package
+			rewritePackage(source_file, dest_file, formatted_package_name);
+		} catch (Exception e){
+			journalCommit(op); // Nothing was changed
+			throw e;
+		}
+		
+		finishCopy(filename, dest_file);
+		journalCommit(op);
+	}
+	
+	/**
+	 *  Adds a copy written to the file system to the database, the catalog, the dependencies 
+	 *  and the access file, with the root and access of the file it was copied from, can be repeated
+	 *  <p>
+	 *  A copy of a file that is not in the database is left for the next scan of its root
+	 *  @param filename absolute path of the file it was copied from
+	 *  @param dest_file the copy
+	 */
+	private void finishCopy(String filename, File dest_file) throws Exception {
+		Connection con = getDatabaseConnection();
+		PreparedStatement stmt = con.prepareStatement(
+			"SELECT directoryID, access " +
+			"FROM pipefile " +
+			"WHERE absolutePath = ?"
+		);
+		stmt.setString(1, filename);
+		ResultSet rs = executeQuery(stmt);
+		if (rs.next() == false){
+			return;
+		}
+		int dirID = rs.getInt(1);
+		String access = rs.getString(2);
+		
+		ArrayList<String> references = new ArrayList<String>();
+		Pipefile pipe = parseOrReuse(dest_file, references);
+		if (pipe == null){
+			return; // Not a pipefile we understand
+		}
+		pipe.access = access;
+		
+		storeFile(dirID, dest_file, pipe, references);
+	}
+	
+	/**
+	 *  Stores a file written by the server in the database, the catalog, the dependencies 
+	 *  and the access file, replacing its row if it has one
+	 *  @param pipe the file parsed, with its access
+	 *  @param references as filled by parseOrReuse
 	 */
-	private void copyFile(String filename, String packageName) throws Exception {
-		// TODO
-		// If the file exists
-		//   Copy the file to the new destination
-		//     File must be changed update the package
-		//   Insert a row corresponding to this file in the database
-		// do we insert or update? isnt this file already in db?
-		return;	
+	private void storeFile(int dirID, File file, Pipefile pipe, ArrayList<String> references) throws Exception {
+		String absolutePath = file.getAbsolutePath();
+		
+		// Replaces the row of a file written over, or of an earlier try
+		Connection con = getDatabaseConnection();
+		PreparedStatement stmt = con.prepareStatement(
+			"DELETE FROM pipefile " +
+			"WHERE absolutePath = ?"
+		);
+		stmt.setString(1, absolutePath);
+		executeUpdate(stmt);
+		
+		stmt = con.prepareStatement(
+			"INSERT INTO pipefile (" +
+				"directoryID, absolutePath, lastModified, " +
+				"name, type, packageName, description, tags, " +
+				"location, uri, access, contentHash, inputs, outputs) " +
+			"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+		);
+		stmt.setInt(1, dirID);
+		stmt.setString(2, absolutePath);
+		stmt.setTimestamp(3, new Timestamp(file.lastModified()));
+		stmt.setString(4, pipe.name);
+		stmt.setString(5, pipe.type);
+		stmt.setString(6, pipe.packageName);
+		stmt.setString(7, pipe.description);
+		stmt.setString(8, pipe.tags);
+		stmt.setString(9, pipe.location);
+		stmt.setString(10, pipe.uri);
+		stmt.setString(11, pipe.access);
+		stmt.setString(12, pipe.contentHash);
+		stmt.setString(13, pipe.inputs);
+		stmt.setString(14, pipe.outputs);
+		executeUpdate(stmt);
+		
+		getCatalog().put(dirID, pipe);
+		getAccessFile().put(absolutePath, pipe.access);
+		publishChange(absolutePath);
+		updateDependencies(pipe, references, true);
 	}
 	
 	/**
@@ -409,12 +1781,13 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 	 *  @param packageName absolute path of the package
 	 */
 	public void copyFiles(String[] filenames, String packageName) throws Exception {
-		// TODO
-		// For each filename
-		//   Call copyFile
-		
-		for (String filename : filenames) {
-			copyFile(filename, packageName);
+		try {
+			for (String filename : filenames) {
+				copyFile(filename, packageName);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
 		}
 	}
 	
@@ -427,7 +1800,7 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 		String res = "";
 		for( int i = s.length() - 1; i >= 0; i-- )
 		{
-			if( s.charAt(i) == File.pathSeparatorChar )
+			if( s.charAt(i) == File.separatorChar )
 			{
 				res = s.substring(i + 1, s.length());
 				break;
@@ -446,7 +1819,7 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 		String res = "";
 		for( int i = s.length() - 1; i >= 0; i-- )
 		{
-			if( s.charAt(i) == File.pathSeparatorChar )
+			if( s.charAt(i) == File.separatorChar )
 			{
 				res = s.substring(0, i);
 				break;
@@ -461,7 +1834,7 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 	 *  @param packageName absolute path of the package = destination folder path
 	 */
 	//Need some clarification about packageName, right now I implemented it as destination folder abs path
-	public void moveFile(String filename, String packageName){
+	public void moveFile(String filename, String packageName) throws Exception {
 		//find file in the database
 		File source_file = new File(filename);
 		//check that file exists
@@ -475,84 +1848,121 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 		String formatted_package_name = extractFileName(packageName).replace(' ', '_');
 		//move the file
 		File dest_file = new File(dir, extractFileName(filename));
-		boolean success = source_file.renameTo(dest_file);
-		if( success == false )
+		
+		long op = journalBegin("move", filename, dest_file.getAbsolutePath(), formatted_package_name);
+		// A file moved over is kept in its own history, the moved one's is appended to it
+		int replaced = history.record(dest_file.getAbsolutePath(), "move");
+		int recorded = history.record(filename, "move");
+		if( source_file.renameTo(dest_file) == false )
 		{
-			return;	//for some reason file can not be moved => abort
+			history.discard(filename, recorded);
+			history.discard(dest_file.getAbsolutePath(), replaced);
+			journalCommit(op); // Nothing was changed
+			throw new Exception("Could not move " + filename + " to " + dir);
 		}
-		//update XML
-		Document doc;
-		try
-		{
-			//parse
-			doc = ServerUtils.parseXML(dest_file);
+		
+		finishMove(filename, dest_file, formatted_package_name);
+		journalCommit(op);
+	}
+	
+	/**
+	 *  Brings the package attribute, the history, the database, the catalog and the access file
+	 *  up-to-date with a file moved in the file system, over another one or not, can be repeated
+	 *  @param filename absolute path the file was moved from
+	 *  @param dest_file where it is now
+	 *  @param packageName its new package
+	 */
+	private void finishMove(String filename, File dest_file, String packageName) throws Exception {
+		String dest = dest_file.getAbsolutePath();
+		history.rename(filename, dest);
+		rewritePackage(dest_file, dest_file, packageName);
+		
+		Connection con = getDatabaseConnection();
+		PreparedStatement stmt = con.prepareStatement(
+			"SELECT directoryID " +
+			"FROM pipefile " +
+			"WHERE absolutePath = ?"
+		);
+		stmt.setString(1, filename);
+		ResultSet rs = executeQuery(stmt);
+		
+		// Not found once the row has been moved
+		if (rs.next()){
+			int dirID = rs.getInt(1);
+			
+			// The file moved over is gone, its row would take the path the moved row needs
+			if (dest.equals(filename) == false){
+				finishRemove(dest);
+			}
+			
+			// directoryID and access go with the file
+			stmt = con.prepareStatement(
+				"UPDATE pipefile " +
+				"SET absolutePath = ?, packageName = ?, lastModified = ? " +
+				"WHERE absolutePath = ?"
+			);
+			stmt.setString(1, dest);
+			stmt.setString(2, packageName);
+			stmt.setTimestamp(3, new Timestamp(dest_file.lastModified()));
+			stmt.setString(4, filename);
+			executeUpdate(stmt);
+			
+			getCatalog().move(filename, dest, dirID, packageName);
 		}
-		catch(Exception e)
-		{
-			return;	//parseXML triggered exception
+		getAccessFile().rename(filename, dest);
+		publishChange(filename);
+		publishChange(dest);
+		
+		stmt = con.prepareStatement(
+			"UPDATE dependency " +
+			"SET absolutePath = ? " +
+			"WHERE absolutePath = ?"
+		);
+		stmt.setString(1, dest);
+		stmt.setString(2, filename);
+		executeUpdate(stmt);
+		getDependencyGraph().rename(filename, dest);
+		
+		// Known by its new package from now on
+		Pipefile moved = getCatalog().get(dest);
+		if (moved != null){
+			getDependencyGraph().setIdentity(dest, DependencyGraph.identityKeys(moved));
 		}
-		//get list of nodes with tag_name = module
-		NodeList nl = doc.getElementsByTagName("module");
-		//loop thru all those nodes 
-		for( int i = 0; i < nl.getLength(); i++ )
-		{
-			//get node item
-			Node n = nl.item(i);
-			NamedNodeMap attr = n.getAttributes();
-			//get node's attribute = package
-			Node nodeAttr = attr.getNamedItem("package");
-			//set package value to formatted_package_name, which is currently dest_folder_path with white spaces replaced by underscore symbols
-			nodeAttr.setTextContent(formatted_package_name);
+	}
+	
+	/**
+	 *  Writes a pipefile with the package attribute of its modules, data modules
+	 *  and workflow (the outermost module group) changed, written atomically
+	 *  @param source the pipefile
+	 *  @param dest where it is written, can be the source
+	 */
+	private void rewritePackage(File source, File dest, String packageName) throws Exception {
+		Document doc = ServerUtils.parseXML(source);
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		for (String tag : new String[] {"module", "dataModule"}){
+			NodeList nl = doc.getElementsByTagName(tag);
+			for (int i = 0; i < nl.getLength(); i++){
+				nodes.add(nl.item(i));
+			}
 		}
-		try
-		{
-			//save changes made to the file
-			//copied from <http://www.mkyong.com/java/how-to-modify-xml-file-in-java-dom-parser/>
-			TransformerFactory transformerFactory = TransformerFactory.newInstance();
-			Transformer transformer = transformerFactory.newTransformer();
-			DOMSource source = new DOMSource(doc);
-			StreamResult result = new StreamResult(new File(dest_file.getAbsolutePath()));
-			transformer.transform(source, result);
-			//get connection
-			Connection con = getDatabaseConnection();
-			//find the source file in pipefile table
-			PreparedStatement stmt = con.prepareStatement("SELECT * FROM pipefile WHERE absolutePath = ? AND directoryID = ?;");
-			stmt.setString(1, filename);
-			stmt.setInt(2, getDirectoryId(extractDirName(filename)));
-			ResultSet rs = stmt.executeQuery();
-			rs.next();
-			String arg_name = rs.getString(3);
-			String arg_type = rs.getString(4);
-			String arg_desc = rs.getString(6);
-			String arg_tags = rs.getString(7);
-			String arg_access = rs.getString(8);
-			String arg_seachable_text = rs.getString(11);
-			//insert moved_file in pipefile table
-			PreparedStatement stmt2 = con.prepareStatement("INSERT INTO pipefile VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
-			stmt2.setInt(1, getDirectoryId(dir.getAbsolutePath()));
-			stmt2.setString(2, dest_file.getAbsolutePath());
-			stmt2.setString(3, arg_name);
-			stmt2.setString(4, arg_type);
-			stmt2.setString(5, formatted_package_name);
-			stmt2.setString(6, arg_desc);
-			stmt2.setString(7, arg_tags);
-			stmt2.setString(8, arg_access);
-			stmt2.setString(9, "");//TODO location ?? not sure what location means, in original XML overview it says "pipeline://localhost//bin/program"
-			stmt2.setString(10, "");//TODO uri ?? same story with exception that URI does not even appear in XML template on XML_overview LONI web-page
-			stmt2.setString(11, arg_seachable_text);
-			stmt2.setTimestamp(12, new Timestamp(dest_file.lastModified()));
-			stmt2.executeUpdate();
-			//delete file from the pipefile table : [match file by absPath of file AND directoryID]
-			PreparedStatement stmt3 = con.prepareStatement("DELETE FROM pipefile WHERE absolutePath = ? AND directoryID = ?;");
-			stmt3.setString(1, filename);
-			stmt3.setInt(2, getDirectoryId(extractDirName(filename)));
-			stmt3.executeUpdate();
-		}
-		catch(Exception e)
-		{
-			//too bad... => abort
+		NodeList groups = doc.getElementsByTagName("moduleGroup");
+		if (groups.getLength() > 0){
+			nodes.add(groups.item(0));
+		}
+		
+		for (Node node : nodes){
+			//get node's attribute = package
+			Node nodeAttr = node.getAttributes().getNamedItem("package");
+			if( nodeAttr != null )
+			{
+				nodeAttr.setTextContent(packageName);
+			}
 		}
-		return;
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		transformer.transform(new DOMSource(doc), new StreamResult(out));
+		ServerUtils.writeAtomically(dest, new ByteArrayInputStream(out.toByteArray()));
 	}
 	
 	/**
@@ -560,20 +1970,434 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 	 *  @param filenames absolute paths of the files
 	 *  @param packageName absolute path of the package
 	 */
-	public void moveFiles(String[] filenames, String packageName){
-		for (String filename : filenames) {
-			moveFile(filename, packageName);
+	public void moveFiles(String[] filenames, String packageName) throws Exception {
+		try {
+			for (String filename : filenames) {
+				moveFile(filename, packageName);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
+		}
+	}
+	
+	/**
+	 *  Extracts the .pipe files of a zip archive into the root directory, keeping their relative paths
+	 *  @param archive absolute path of the zip archive
+	 *  @param rootDir the root directory
+	 *  @param job job to report progress to
+	 */
+	private void extractArchive(String archive, File rootDir, Job job) throws Exception {
+		ZipFile zip = new ZipFile(archive);
+		try {
+			job.setTotal(zip.size());
+			
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()){
+				ZipEntry entry = entries.nextElement();
+				job.progress();
+				
+				if (entry.isDirectory() || entry.getName().endsWith(".pipe") == false){
+					continue;
+				}
+				
+				InputStream in = zip.getInputStream(entry);
+				try {
+					importPipefile(in, rootDir, entry.getName());
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			zip.close();
+		}
+	}
+	
+	/**
+	 *  Writes a fetched pipefile, or the pipefiles of a fetched zip archive, into a root directory
+	 *  as the body streams in, the archive is not stored
+	 */
+	private void importUrl(URL url, String contentType, InputStream body, File rootDir) throws Exception {
+		String path = url.getPath();
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		
+		if (name.endsWith(".zip") || (contentType != null && contentType.contains("zip"))){
+			ZipInputStream zip = new ZipInputStream(new BufferedInputStream(body));
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null){
+				if (entry.isDirectory() == false && entry.getName().endsWith(".pipe")){
+					importPipefile(zip, rootDir, entry.getName());
+				}
+			}
+		} else if (name.endsWith(".pipe")){
+			importPipefile(body, rootDir, name);
+		} else {
+			throw new Exception(url + ": not a .pipe file or a .zip archive");
+		}
+	}
+	
+	/**
+	 *  Writes an imported pipefile under a root directory, left open
+	 *  @param name path relative to the root
+	 */
+	private void importPipefile(InputStream in, File rootDir, String name) throws Exception {
+		// Do not let names like ../../file.pipe escape the root
+		File dest = new File(rootDir, name);
+		if (dest.getCanonicalPath().startsWith(rootDir.getCanonicalPath() + File.separator) == false){
+			throw new Exception("Imported file is outside the root directory: " + name);
+		}
+		dest.getParentFile().mkdirs();
+		history.record(dest.getAbsolutePath(), "import");
+		ServerUtils.writeAtomically(dest, in);
+	}
+	
+	/**
+	 *  Starts scanning the root directory in the background, 
+	 *  the job's result is the same as getFiles
+	 *  @param root the absolute path of the root directory
+	 *  @return job id to poll with getJob
+	 */
+	public int startScan(final String root) throws Exception {
+		return jobs.submit(new Job("scan") {
+			protected Pipefile[] execute() throws Exception {
+				return scanFiles(new File(root), this);
+			}
+		});
+	}
+	
+	/**
+	 *  Starts scanning the root directory in the background, for a client that keeps 
+	 *  the files it was last sent: the job's version is the catalog version, and its result
+	 *  is null if that is the version the client has
+	 *  @param root the absolute path of the root directory
+	 *  @param version catalog version of the client's files, null if it has none
+	 *  @return job id to poll with getJob
+	 */
+	public int startRefresh(final String root, final String version) throws Exception {
+		return jobs.submit(new Job("scan") {
+			protected Pipefile[] execute() throws Exception {
+				File rootDir = new File(root);
+				if (rootDir.isDirectory() == false){
+					return null;
+				}
+				
+				refreshRoot(rootDir, this);
+				
+				// Read before the files, a change in between is sent again next time
+				String current = getCatalogVersion();
+				setVersion(current);
+				if (current.equals(version)){
+					return null;
+				}
+				
+				return getCatalog().getFiles(getDirectoryId(rootDir.getAbsolutePath()));
+			}
+		});
+	}
+	
+	/**
+	 *  Starts removing files in the background
+	 *  @param filenames absolute paths of the files
+	 *  @return job id to poll with getJob
+	 */
+	public int startRemove(final String[] filenames) throws Exception {
+		return jobs.submit(new Job("remove") {
+			protected Pipefile[] execute() throws Exception {
+				setTotal(filenames.length);
+				for (String filename : filenames){
+					removeFile(filename);
+					progress();
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 *  Starts copying files in the background
+	 *  @param filenames absolute paths of the files
+	 *  @param packageName absolute path of the package
+	 *  @return job id to poll with getJob
+	 */
+	public int startCopy(final String[] filenames, final String packageName) throws Exception {
+		return jobs.submit(new Job("copy") {
+			protected Pipefile[] execute() throws Exception {
+				setTotal(filenames.length);
+				for (String filename : filenames){
+					copyFile(filename, packageName);
+					progress();
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 *  Starts moving files in the background
+	 *  @param filenames absolute paths of the files
+	 *  @param packageName absolute path of the package
+	 *  @return job id to poll with getJob
+	 */
+	public int startMove(final String[] filenames, final String packageName) throws Exception {
+		return jobs.submit(new Job("move") {
+			protected Pipefile[] execute() throws Exception {
+				setTotal(filenames.length);
+				for (String filename : filenames){
+					moveFile(filename, packageName);
+					progress();
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 *  Starts importing a zip archive (already on the server) into the root directory,
+	 *  the root is scanned afterwards so the job's result is the same as getFiles
+	 *  @param archive absolute path of the zip archive
+	 *  @param root the absolute path of the root directory
+	 *  @return job id to poll with getJob
+	 */
+	public int startImport(final String archive, final String root) throws Exception {
+		return jobs.submit(new Job("import") {
+			protected Pipefile[] execute() throws Exception {
+				File rootDir = new File(root);
+				extractArchive(archive, rootDir, this);
+				return scanFiles(rootDir, null);
+			}
+		});
+	}
+	
+	/**
+	 *  Starts fetching pipefiles and zip archives of pipefiles into a root directory, 
+	 *  which is then scanned
+	 *  <p>
+	 *  The job fails listing the URLs that could not be fetched, the others are imported.
+	 *  @param urls http URLs, those ending in .zip (or served as zip) are archives
+	 *  @return the id of the job, poll it with getJob
+	 */
+	public int startUrlImport(final String[] urls, final String root) throws Exception {
+		return jobs.submit(new Job("urlimport") {
+			protected Pipefile[] execute() throws Exception {
+				final File rootDir = new File(root);
+				rootDir.mkdirs();
+				
+				UrlFetcher.Result result = fetcher.fetch(urls, new UrlFetcher.Sink() {
+					public void fetched(URL url, String contentType, InputStream body) throws Exception {
+						importUrl(url, contentType, body, rootDir);
+					}
+				}, this);
+				
+				Pipefile[] files = scanFiles(rootDir, null);
+				
+				if (result.failed.isEmpty() == false){
+					StringBuilder message = new StringBuilder("Could not import " + result.failed.size() + " of " + urls.length + " URLs:");
+					for (String reason : result.reasons){
+						message.append("\n").append(reason);
+					}
+					throw new Exception(message.toString());
+				}
+				return files;
+			}
+		});
+	}
+	
+	/**
+	 *  Returns the progress of a job, and its result once it is done
+	 *  @param id job id returned by one of the start functions
+	 *  @return the status, or null if the job does not exist or has expired
+	 */
+	public JobStatus getJob(int id) throws Exception {
+		JobStatus status = jobs.getStatus(id);
+		if (status != null){
+			status.result = filterByAccess(status.result);
+		}
+		
+		return status;
+	}
+	
+	/**
+	 *  Returns the workflows that directly use a pipefile
+	 *  @param absolutePath absolute path of the pipefile
+	 *  @return absolute paths of the workflows the caller can access
+	 */
+	public String[] getDependents(String absolutePath) throws Exception {
+		return filterPathsByAccess(getDependencyGraph().dependents(absolutePath));
+	}
+	
+	/**
+	 *  Returns the workflows that use a pipefile, directly or through other workflows
+	 *  @param absolutePath absolute path of the pipefile
+	 *  @return absolute paths of the workflows the caller can access
+	 */
+	public String[] getTransitiveDependents(String absolutePath) throws Exception {
+		return filterPathsByAccess(getDependencyGraph().transitiveDependents(absolutePath));
+	}
+	
+	/**
+	 *  Removes the files the caller cannot access, as filterByAccess, from absolute paths
+	 */
+	private String[] filterPathsByAccess(String[] paths) throws Exception {
+		if (getThreadLocalRequest() == null || getThreadLocalRequest().getRemoteUser() == null){
+			return paths;
+		}
+		
+		ArrayList<Pipefile> files = new ArrayList<Pipefile>(paths.length);
+		for (String path : paths){
+			Pipefile pipe = getCatalog().get(path);
+			if (pipe != null){
+				files.add(pipe);
+			}
+		}
+		
+		Pipefile[] allowed = filterByAccess(files.toArray(new Pipefile[files.size()]));
+		String[] ret = new String[allowed.length];
+		for (int i = 0; i < allowed.length; i++){
+			ret[i] = allowed[i].absolutePath;
+		}
+		return ret;
+	}
+	
+	/**
+	 *  Finds the pipefiles that are copies of each other, across root directories
+	 *  @param roots absolute paths of the root directories to look under, null for every known root
+	 *  @param byMetadata true to group files with the same normalized metadata, 
+	 *         false to group byte-identical files
+	 *  @return the groups of two files or more the caller can access, largest first
+	 */
+	public DuplicateCluster[] getDuplicates(String[] roots, boolean byMetadata) throws Exception {
+		try {
+			int[] dirIDs = null;
+			if (roots != null){
+				dirIDs = new int[roots.length];
+				for (int i = 0; i < roots.length; i++){
+					dirIDs[i] = getDirectoryId(roots[i]);
+				}
+			}
+			
+			ArrayList<DuplicateCluster> ret = new ArrayList<DuplicateCluster>();
+			for (DuplicateCluster cluster : getCatalog().duplicates(dirIDs, byMetadata)){
+				cluster.files = filterByAccess(cluster.files);
+				if (cluster.files.length > 1){
+					ret.add(cluster);
+				}
+			}
+			
+			return ret.toArray(new DuplicateCluster[ret.size()]);
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
+		}
+	}
+	
+	/**
+	 *  Returns the prior versions of a pipefile
+	 *  @param absolutePath absolute path of the pipefile, it may have been removed
+	 *  @return the versions, oldest first
+	 */
+	public PipefileVersion[] getVersions(String absolutePath) throws Exception {
+		try {
+			return history.list(absolutePath);
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
+		}
+	}
+	
+	/**
+	 *  Puts a prior version of a pipefile back, the version it replaces is recorded first
+	 *  @param root the absolute path of the root directory the pipefile is under
+	 *  @param absolutePath absolute path of the pipefile
+	 *  @param version as numbered by getVersions
+	 */
+	public void restoreVersion(String root, String absolutePath, int version) throws Exception {
+		try {
+			File rootDir = new File(root);
+			File f = new File(absolutePath);
+			if (f.getCanonicalPath().startsWith(rootDir.getCanonicalPath() + File.separator) == false){
+				throw new Exception("Not under the root directory: " + absolutePath);
+			}
+			
+			byte[] content = history.get(absolutePath, version);
+			if (content == null){
+				throw new Exception("No version " + version + " of " + absolutePath);
+			}
+			
+			long op = journalBegin("restore", rootDir.getAbsolutePath(), absolutePath);
+			int recorded = history.record(absolutePath, "restore");
+			try {
+				f.getParentFile().mkdirs();
+				ServerUtils.writeAtomically(f, new ByteArrayInputStream(content));
+			} catch (Exception e){
+				history.discard(absolutePath, recorded);
+				journalCommit(op); // Nothing was changed
+				throw e;
+			}
+			
+			finishRestore(rootDir.getAbsolutePath(), f);
+			journalCommit(op);
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw new Exception(e.getMessage());
 		}
 	}
 	
+	/**
+	 *  Brings the database, the catalog and the dependencies up-to-date with a restored file, 
+	 *  keeping its access, can be repeated. A file restored after it was removed is added back.
+	 *  @param root absolute path of the root directory the file is under
+	 */
+	private void finishRestore(String root, File f) throws Exception {
+		String absolutePath = f.getAbsolutePath();
+		
+		Connection con = getDatabaseConnection();
+		PreparedStatement stmt = con.prepareStatement(
+			"SELECT access " +
+			"FROM pipefile " +
+			"WHERE absolutePath = ?"
+		);
+		stmt.setString(1, absolutePath);
+		ResultSet rs = executeQuery(stmt);
+		String access = rs.next() ? rs.getString(1) : "";
+		
+		ArrayList<String> references = new ArrayList<String>();
+		Pipefile pipe = parseOrReuse(f, references);
+		if (pipe == null){
+			// Not a pipefile we understand, as a scan would see it
+			finishRemove(absolutePath);
+			return;
+		}
+		pipe.access = access;
+		
+		storeFile(getDirectoryId(root), f, pipe, references);
+	}
+	
 	/**
 	 *  Returns an array of all the groups
 	 */
 	public Group[] getGroups() throws Exception {
-		// TODO
-		// Call the database for a list of groups
-		// Convert to proper format
-		return null;
+		Connection con = getDatabaseConnection();
+		PreparedStatement stmt = con.prepareStatement(
+			"SELECT name, users " +
+			"FROM usergroup " +
+			"ORDER BY name"
+		);
+		ResultSet rs = executeQuery(stmt);
+		
+		ArrayList<Group> list = new ArrayList<Group>();
+		while (rs.next()){
+			Group g = new Group();
+			g.name = rs.getString(1);
+			g.users = rs.getString(2);
+			
+			list.add(g);
+		}
+		
+		Group[] ret = new Group[list.size()];
+		return list.toArray(ret);
 	}
 	
 	/**
@@ -581,9 +2405,36 @@ public class FileServiceImpl extends RemoteServiceServlet implements FileService
 	 *  @param group group to be updated
 	 */
 	public void	updateGroup(Group group) throws Exception{
-		// TODO
-		// Update the row in the database corresponding to this group
-		return;
+		if (group.name == null || group.name.trim().length() == 0){
+			throw new Exception("Group name cannot be empty");
+		}
+		
+		Connection con = getDatabaseConnection();
+		PreparedStatement stmt = con.prepareStatement(
+			"UPDATE usergroup " +
+			"SET users = ? " +
+			"WHERE name = ?"
+		);
+		stmt.setString(1, group.users);
+		stmt.setString(2, group.name);
+		
+		if (executeUpdate(stmt) == 0){
+			stmt = con.prepareStatement(
+				"INSERT INTO usergroup (name, users) " +
+				"VALUES (?, ?)"
+			);
+			stmt.setString(1, group.name);
+			stmt.setString(2, group.users);
+			executeUpdate(stmt);
+		}
+		
+		// Membership changed, compiled masks are stale
+		synchronized (this){
+			accessControl = null;
+		}
+		if (cluster != null){
+			cluster.publish(ClusterNode.GROUPS, "");
+		}
 	}
 }
 
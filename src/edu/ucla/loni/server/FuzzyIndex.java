@@ -0,0 +1,328 @@
+package edu.ucla.loni.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * Typo tolerant term index over name, packageName, description and tags
+ * <p>
+ * Every word of those fields is a term of the dictionary, each term keeps one CompressedBitmap
+ * of pipefile numbers per field. Terms are also indexed by their trigrams (with ^ and $ marking
+ * the ends of the word). A query word is looked up by counting shared trigrams, only the
+ * MAX_CANDIDATES terms sharing the most are checked with a bounded edit distance, so the
+ * cost does not grow with the library. Words of 3 or more letters also match terms they start.
+ * <p>
+ * A file scores, for each query word, the best of field weight / (1 + edit distance) over the
+ * terms matching it, and must match every query word.
+ * <p>
+ * Not thread safe, callers synchronize.
+ */
+public class FuzzyIndex {
+	private static final int NAME = 0;
+	private static final int PACKAGE = 1;
+	private static final int DESCRIPTION = 2;
+	private static final int TAG = 3;
+
+	private static final float[] WEIGHTS = {4, 2, 1, 3};
+
+	/**
+	 *  Most dictionary terms compared against one query word
+	 */
+	private static final int MAX_CANDIDATES = 64;
+
+	/**
+	 *  Similarity of a term the query word is the start of, between an exact match and one typo
+	 */
+	private static final float PREFIX = 0.75f;
+
+	private final HashMap<String, Integer> termIds = new HashMap<String, Integer>();
+	private final ArrayList<String> terms = new ArrayList<String>();
+	private final ArrayList<CompressedBitmap[]> postings = new ArrayList<CompressedBitmap[]>();
+
+	// trigram => term numbers, and the terms in order for prefixes
+	private final HashMap<String, CompressedBitmap> grams = new HashMap<String, CompressedBitmap>();
+	private final TreeSet<String> sorted = new TreeSet<String>();
+
+	private static class Match {
+		int term;
+		float similarity;
+	}
+
+	public void add(int id, Pipefile pipe){
+		String[][] fields = fieldTerms(pipe);
+		for (int f = 0; f < fields.length; f++){
+			for (String term : fields[f]){
+				CompressedBitmap[] p = postings.get(term(term));
+				if (p[f] == null){
+					p[f] = new CompressedBitmap();
+				}
+				p[f].add(id);
+			}
+		}
+	}
+
+	public void remove(int id, Pipefile pipe){
+		// Terms stay in the dictionary, empty ones are skipped when matching
+		String[][] fields = fieldTerms(pipe);
+		for (int f = 0; f < fields.length; f++){
+			for (String term : fields[f]){
+				Integer t = termIds.get(term);
+				if (t != null && postings.get(t)[f] != null){
+					postings.get(t)[f].remove(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 *  @param query words to match, case insensitive
+	 *  @param size scores are returned for pipefile numbers below size
+	 *  @return the score of each pipefile number, 0 if it does not match every word,
+	 *          null if the query has no words
+	 */
+	public float[] score(String query, int size){
+		ArrayList<String> words = tokenize(query);
+		if (words.isEmpty()){
+			return null;
+		}
+
+		float[] total = new float[size];
+		int[] matched = new int[size];
+
+		for (String word : words){
+			float[] best = new float[size];
+
+			for (Match m : matches(word)){
+				CompressedBitmap[] p = postings.get(m.term);
+				for (int f = 0; f < p.length; f++){
+					if (p[f] == null){
+						continue;
+					}
+
+					float s = WEIGHTS[f] * m.similarity;
+					for (int id : p[f].toArray()){
+						if (id < size && s > best[id]){
+							best[id] = s;
+						}
+					}
+				}
+			}
+
+			for (int id = 0; id < size; id++){
+				if (best[id] > 0){
+					total[id] += best[id];
+					matched[id]++;
+				}
+			}
+		}
+
+		for (int id = 0; id < size; id++){
+			if (matched[id] < words.size()){
+				total[id] = 0;
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 *  @return the dictionary terms matching a query word, with their similarity
+	 */
+	private ArrayList<Match> matches(String word){
+		ArrayList<Match> ret = new ArrayList<Match>();
+		int maxDistance = word.length() <= 2 ? 0 : word.length() <= 5 ? 1 : 2;
+
+		// Count shared trigrams, one edit changes at most 4 of them (a swap of two letters)
+		String[] wordGrams = trigrams(word);
+		int threshold = Math.max(1, wordGrams.length - 4 * maxDistance);
+
+		final HashMap<Integer, Integer> shared = new HashMap<Integer, Integer>();
+		for (String gram : wordGrams){
+			CompressedBitmap p = grams.get(gram);
+			if (p != null){
+				for (int t : p.toArray()){
+					Integer n = shared.get(t);
+					shared.put(t, n == null ? 1 : n + 1);
+				}
+			}
+		}
+
+		ArrayList<Integer> candidates = new ArrayList<Integer>();
+		for (Integer t : shared.keySet()){
+			if (shared.get(t) >= threshold && Math.abs(terms.get(t).length() - word.length()) <= maxDistance && used(t)){
+				candidates.add(t);
+			}
+		}
+
+		Collections.sort(candidates, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b){
+				return shared.get(b) - shared.get(a);
+			}
+		});
+
+		for (int i = 0; i < candidates.size() && i < MAX_CANDIDATES; i++){
+			int t = candidates.get(i);
+			int distance = distance(word, terms.get(t), maxDistance);
+			if (distance <= maxDistance){
+				ret.add(match(t, 1f / (1 + distance)));
+			}
+		}
+
+		// Terms starting with the word, for words still being typed
+		if (word.length() >= 3){
+			int n = 0;
+			for (String term : sorted.tailSet(word, false)){
+				if (term.startsWith(word) == false || n == MAX_CANDIDATES){
+					break;
+				}
+
+				int t = termIds.get(term);
+				if (used(t)){
+					ret.add(match(t, PREFIX));
+					n++;
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	private boolean used(int term){
+		for (CompressedBitmap p : postings.get(term)){
+			if (p != null && p.isEmpty() == false){
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 *  @return the number of a term, adding it to the dictionary if needed
+	 */
+	private int term(String term){
+		Integer t = termIds.get(term);
+		if (t == null){
+			t = terms.size();
+			termIds.put(term, t);
+			terms.add(term);
+			postings.add(new CompressedBitmap[WEIGHTS.length]);
+			sorted.add(term);
+
+			for (String gram : trigrams(term)){
+				CompressedBitmap p = grams.get(gram);
+				if (p == null){
+					p = new CompressedBitmap();
+					grams.put(gram, p);
+				}
+				p.add(t);
+			}
+		}
+
+		return t;
+	}
+
+	private static String[][] fieldTerms(Pipefile pipe){
+		String[][] ret = new String[WEIGHTS.length][];
+		ret[NAME] = distinct(tokenize(pipe.name));
+		ret[PACKAGE] = distinct(tokenize(pipe.packageName));
+		ret[DESCRIPTION] = distinct(tokenize(pipe.description));
+		ret[TAG] = distinct(tokenize(pipe.tags));
+		return ret;
+	}
+
+	/**
+	 *  Splits text into lower case words of letters and digits
+	 */
+	static ArrayList<String> tokenize(String text){
+		ArrayList<String> ret = new ArrayList<String>();
+		if (text == null){
+			return ret;
+		}
+
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++){
+			boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (letter && start < 0){
+				start = i;
+			} else if (letter == false && start >= 0){
+				ret.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+
+		return ret;
+	}
+
+	private static String[] distinct(ArrayList<String> words){
+		ArrayList<String> ret = new ArrayList<String>(words.size());
+		for (String w : words){
+			if (ret.contains(w) == false){
+				ret.add(w);
+			}
+		}
+
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	private static String[] trigrams(String word){
+		String padded = "^" + word + "$";
+		String[] ret = new String[padded.length() - 2];
+		for (int i = 0; i < ret.length; i++){
+			ret[i] = padded.substring(i, i + 3);
+		}
+
+		return ret;
+	}
+
+	/**
+	 *  @return the edit distance counting a swap of two neighbouring letters as one edit
+	 *          (optimal string alignment), or max + 1 once it is known to be larger than max
+	 */
+	static int distance(String a, String b, int max){
+		int[] beforePrevious = new int[b.length() + 1];
+		int[] previous = new int[b.length() + 1];
+		int[] current = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); j++){
+			previous[j] = j;
+		}
+
+		for (int i = 1; i <= a.length(); i++){
+			current[0] = i;
+			int rowMin = current[0];
+
+			for (int j = 1; j <= b.length(); j++){
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+
+				if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)){
+					current[j] = Math.min(current[j], beforePrevious[j - 2] + 1);
+				}
+				rowMin = Math.min(rowMin, current[j]);
+			}
+
+			if (rowMin > max){
+				return max + 1;
+			}
+
+			int[] swap = beforePrevious;
+			beforePrevious = previous;
+			previous = current;
+			current = swap;
+		}
+
+		return Math.min(previous[b.length()], max + 1);
+	}
+
+	private static Match match(int term, float similarity){
+		Match m = new Match();
+		m.term = term;
+		m.similarity = similarity;
+		return m;
+	}
+}
@@ -0,0 +1,83 @@
+package edu.ucla.loni.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * Keeps the pipefiles as objects on the heap, the default store
+ */
+public class HeapPipefileStore implements PipefileStore {
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final ArrayList<Pipefile> files = new ArrayList<Pipefile>();
+	private final ArrayList<String> text = new ArrayList<String>();
+	private final ArrayList<Integer> directories = new ArrayList<Integer>();
+
+	public int find(String absolutePath){
+		Integer id = ids.get(absolutePath);
+		return id == null ? -1 : id;
+	}
+
+	public int add(int directoryID, Pipefile pipe){
+		int id = files.size();
+		ids.put(pipe.absolutePath, id);
+		files.add(null);
+		text.add(null);
+		directories.add(null);
+
+		set(id, directoryID, pipe);
+		return id;
+	}
+
+	public void set(int id, int directoryID, Pipefile pipe){
+		files.set(id, pipe);
+		directories.set(id, directoryID);
+		text.set(id, searchText(pipe));
+	}
+
+	public void remove(int id){
+		ids.remove(files.get(id).absolutePath);
+		files.set(id, null);
+		text.set(id, null);
+	}
+
+	public Pipefile get(int id){
+		return files.get(id);
+	}
+
+	public Pipefile getSummary(int id){
+		Pipefile pipe = files.get(id);
+		return pipe == null ? null : Catalog.summary(pipe);
+	}
+
+	public int getDirectoryID(int id){
+		return directories.get(id);
+	}
+
+	public String getAccess(int id){
+		return files.get(id).access;
+	}
+
+	public boolean matches(int id, String query){
+		return text.get(id).contains(query);
+	}
+
+	public int size(){
+		return files.size();
+	}
+
+	public int count(){
+		return ids.size();
+	}
+
+	public void close(){
+	}
+
+	/**
+	 *  @return what text queries are matched against, tags are matched through their postings
+	 */
+	static String searchText(Pipefile pipe){
+		return (pipe.name + "\n" + pipe.packageName + "\n" + pipe.description).toLowerCase();
+	}
+}
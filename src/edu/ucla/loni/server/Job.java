@@ -0,0 +1,106 @@
+package edu.ucla.loni.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.ucla.loni.shared.JobStatus;
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * A long running operation executed by the JobManager instead of on a request thread
+ * <p>
+ * Subclasses implement execute and report progress with setTotal / progress
+ */
+public abstract class Job implements Runnable {
+	private int id;
+	private final String type;
+	
+	private volatile String state = "Queued";
+	private volatile int total = 0;
+	private final AtomicInteger done = new AtomicInteger();
+	
+	private volatile String message;
+	private volatile Pipefile[] result;
+	private volatile String version;
+	private volatile long finished = 0;
+	
+	public Job(String type){
+		this.type = type;
+	}
+	
+	/**
+	 * Does the work
+	 * @return Pipefiles to hand back to the client, or null
+	 */
+	protected abstract Pipefile[] execute() throws Exception;
+	
+	public void run(){
+		long start = System.nanoTime();
+		state = "Running";
+		try {
+			result = execute();
+			state = "Done";
+		} 
+		catch (Exception e){
+			e.printStackTrace();
+			message = e.getMessage();
+			state = "Failed";
+		}
+		finally {
+			finished = System.currentTimeMillis();
+			Metrics.histogram("slm_job_seconds", "Run time of background jobs", "type", type).recordSince(start);
+		}
+	}
+	
+	/**
+	 * Sets the number of units of work (files), known once the job has started
+	 */
+	public void setTotal(int total){
+		this.total = total;
+	}
+	
+	/**
+	 * Sets the catalog version the result was read at, for clients that cache it
+	 */
+	protected void setVersion(String version){
+		this.version = version;
+	}
+	
+	/**
+	 * Marks one unit of work as done
+	 */
+	public void progress(){
+		done.incrementAndGet();
+	}
+	
+	void setId(int id){
+		this.id = id;
+	}
+	
+	public int getId(){
+		return id;
+	}
+	
+	/**
+	 * @return time the job finished (System.currentTimeMillis), 0 if it has not
+	 */
+	public long getFinished(){
+		return finished;
+	}
+	
+	/**
+	 * Snapshot of the job for the client
+	 */
+	public JobStatus getStatus(){
+		JobStatus status = new JobStatus();
+		status.id = id;
+		status.type = type;
+		status.state = state;
+		status.done = done.get();
+		status.total = total;
+		status.message = message;
+		status.result = result;
+		status.version = version;
+		
+		return status;
+	}
+}
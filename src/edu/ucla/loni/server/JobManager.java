@@ -0,0 +1,101 @@
+package edu.ucla.loni.server;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.ucla.loni.shared.JobStatus;
+
+/**
+ * Runs Jobs on a dedicated, bounded executor so Tomcat request threads return immediately
+ * <p>
+ * Finished jobs are kept for RETENTION milliseconds so clients can poll their result
+ */
+public class JobManager {
+	private static final long RETENTION = 10 * 60 * 1000;
+	
+	private final ThreadPoolExecutor executor;
+	private final AtomicInteger nextId = new AtomicInteger(1);
+	private final ConcurrentHashMap<Integer, Job> jobs = new ConcurrentHashMap<Integer, Job>();
+	
+	/**
+	 * @param threads number of jobs that run at the same time
+	 * @param queue number of jobs that can wait for a thread
+	 */
+	public JobManager(int threads, int queue){
+		executor = new ThreadPoolExecutor(
+			threads, threads, 0, TimeUnit.MILLISECONDS, 
+			new ArrayBlockingQueue<Runnable>(queue),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "slm-job-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			}
+		);
+	}
+	
+	/**
+	 * Queues a job
+	 * @return id of the job, used to poll its status
+	 * @throws Exception if too many jobs are already queued
+	 */
+	public int submit(Job job) throws Exception {
+		purge();
+		
+		job.setId(nextId.getAndIncrement());
+		jobs.put(job.getId(), job);
+		
+		try {
+			executor.execute(job);
+		} 
+		catch (RejectedExecutionException e){
+			jobs.remove(job.getId());
+			throw new Exception("Server is busy, too many jobs are queued");
+		}
+		
+		return job.getId();
+	}
+	
+	/**
+	 * @return status of the job, or null if there is no such job (or it expired)
+	 */
+	public JobStatus getStatus(int id){
+		Job job = jobs.get(id);
+		if (job == null){
+			return null;
+		}
+		
+		return job.getStatus();
+	}
+	
+	/**
+	 * Stops accepting jobs, running jobs are interrupted
+	 */
+	public void shutdown(){
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Forgets jobs that finished more than RETENTION ago
+	 */
+	private void purge(){
+		long cutoff = System.currentTimeMillis() - RETENTION;
+		
+		Iterator<Job> it = jobs.values().iterator();
+		while (it.hasNext()){
+			long finished = it.next().getFinished();
+			if (finished != 0 && finished < cutoff){
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package edu.ucla.loni.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets (HDR style)
+ * <p>
+ * Every power of two is split into 8 sub-buckets, so any recorded value
+ * is known within 12.5%. Recording does not allocate.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(long nanos){
+		if (nanos < 0){
+			nanos = 0;
+		}
+
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current = max.get();
+		while (nanos > current && max.compareAndSet(current, nanos) == false){
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Records the time elapsed since start
+	 * @param start value of System.nanoTime() when the operation began
+	 */
+	public void recordSince(long start){
+		record(System.nanoTime() - start);
+	}
+
+	public long getCount(){
+		return count.get();
+	}
+
+	/**
+	 * @return sum of all recorded values in nanoseconds
+	 */
+	public long getSum(){
+		return sum.get();
+	}
+
+	public long getMax(){
+		return max.get();
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return upper bound of the bucket holding the quantile in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getQuantile(double quantile){
+		long total = count.get();
+		if (total == 0){
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++){
+			seen += counts.get(i);
+			if (seen >= rank && seen > 0){
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	/**
+	 * Values below SUB_BUCKETS get their own bucket,
+	 * larger values are bucketed by exponent and the next SUB_BITS bits
+	 */
+	private static int bucket(long value){
+		if (value < SUB_BUCKETS){
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS;
+		int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int bucket){
+		if (bucket < SUB_BUCKETS){
+			return bucket;
+		}
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS;
+
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
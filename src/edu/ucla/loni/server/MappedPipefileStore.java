@@ -0,0 +1,543 @@
+package edu.ucla.loni.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * Keeps the pipefiles in memory-mapped files instead of the heap, so the heap stays flat as the
+ * library grows and the operating system pages out what is not used
+ * <p>
+ * Three files in a directory, deleted on close:<br>
+ * records: one fixed-width RECORD per pipefile number, int live, int directoryID and the long
+ * pool offset of each string (-1 for null), the last being the lower case search text<br>
+ * pool: the strings, an int byte length followed by UTF-8 bytes, appended in SEGMENT sized
+ * mappings that no string crosses. Types, packages and access expressions repeat, they are
+ * stored once, as are parameter lists<br>
+ * index: open addressing table of absolutePath hash and pipefile number + 1 (0 empty,
+ * -1 removed), doubled when half full
+ * <p>
+ * Only the pipefiles returned are decoded, text queries are matched on the UTF-8 bytes in place.
+ * A string that did not change keeps its place in the pool. Replaced and removed strings are
+ * counted as garbage, once it is most of the pool (and at least COMPACT_MIN) the live strings
+ * are copied to a new pool file.
+ * <p>
+ * Not thread safe, the Catalog synchronizes.
+ */
+public class MappedPipefileStore implements PipefileStore {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int ABSOLUTE_PATH = 0;
+	private static final int NAME = 1;
+	private static final int TYPE = 2;
+	private static final int PACKAGE = 3;
+	private static final int DESCRIPTION = 4;
+	private static final int TAGS = 5;
+	private static final int ACCESS = 6;
+	private static final int LOCATION = 7;
+	private static final int URI = 8;
+	private static final int CONTENT_HASH = 9;
+	private static final int INPUTS = 10;
+	private static final int OUTPUTS = 11;
+	private static final int TEXT = 12;
+	private static final int STRINGS = 13;
+
+	/**
+	 *  The strings stored once per distinct value
+	 */
+	private static final boolean[] REPEATED = new boolean[STRINGS];
+	static {
+		for (int string : new int[] {TYPE, PACKAGE, ACCESS, INPUTS, OUTPUTS}){
+			REPEATED[string] = true;
+		}
+	}
+
+	private static final int RECORD = 8 + 8 * STRINGS;
+	private static final int RECORDS_PER_SEGMENT = 1 << 16;
+	private static final int SEGMENT = 64 << 20;
+
+	/**
+	 *  Most distinct repeated values remembered, past that they are stored every time
+	 */
+	private static final int SHARED_MAX = 4096;
+
+	/**
+	 *  Bytes of garbage below which the pool is never compacted
+	 */
+	private static final long COMPACT_MIN = 1 << 20;
+
+	private static final Metrics.Counter compactions =
+		Metrics.counter("slm_catalog_pool_compactions_total", "Times the mapped string pool was compacted");
+
+	private final File directory;
+
+	private final File recordsFile;
+	private final RandomAccessFile records;
+	private final ArrayList<ByteBuffer> recordSegments = new ArrayList<ByteBuffer>();
+	private int size = 0;
+	private int count = 0;
+
+	private File poolFile;
+	private RandomAccessFile pool;
+	private ArrayList<ByteBuffer> poolSegments = new ArrayList<ByteBuffer>();
+	private long poolEnd = 0;
+	private long garbage = 0;	// Bytes of the pool no record points to
+
+	// Pool offsets of repeated values
+	private final HashMap<String, Long> shared = new HashMap<String, Long>();
+
+	private String lastQuery;
+	private byte[] lastQueryBytes;
+
+	private File indexFile;
+	private RandomAccessFile index;
+	private ByteBuffer table;
+	private int capacity;
+	private int used = 0;	// Slots not empty, removed ones included
+
+	/**
+	 *  @param directory where the files are created
+	 */
+	public MappedPipefileStore(File directory) throws IOException {
+		this.directory = directory;
+		directory.mkdirs();
+
+		recordsFile = File.createTempFile("slm-records", ".bin", directory);
+		records = new RandomAccessFile(recordsFile, "rw");
+		newPool();
+		newIndex(1 << 12);
+	}
+
+	public int find(String absolutePath){
+		byte[] path = absolutePath.getBytes(UTF8);
+		int hash = absolutePath.hashCode();
+
+		for (int slot = hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)){
+			int id = table.getInt(slot * 8 + 4) - 1;
+			if (id == -1){
+				return -1;
+			}
+			if (id >= 0 && table.getInt(slot * 8) == hash && equals(offset(id, ABSOLUTE_PATH), path)){
+				return id;
+			}
+		}
+	}
+
+	public int add(int directoryID, Pipefile pipe){
+		int id = size++;
+		if (id == recordSegments.size() * RECORDS_PER_SEGMENT){
+			recordSegments.add(map(records, (long) recordSegments.size() * RECORDS_PER_SEGMENT * RECORD, RECORDS_PER_SEGMENT * RECORD));
+		}
+
+		write(id, directoryID, pipe, false);
+		count++;
+
+		if ((used + 1) * 2 > capacity){
+			resize();
+		}
+		insert(pipe.absolutePath.hashCode(), id);
+		return id;
+	}
+
+	public void set(int id, int directoryID, Pipefile pipe){
+		write(id, directoryID, pipe, record(id).getInt(recordOffset(id)) == 1);
+		compactIfNeeded();
+	}
+
+	/**
+	 *  @param replace true if the record holds a live pipefile, its unchanged strings are kept
+	 */
+	private void write(int id, int directoryID, Pipefile pipe, boolean replace){
+		ByteBuffer r = record(id);
+		int at = recordOffset(id);
+
+		r.putInt(at, 1);
+		r.putInt(at + 4, directoryID);
+		replace(id, ABSOLUTE_PATH, pipe.absolutePath, replace);
+		replace(id, NAME, pipe.name, replace);
+		replace(id, TYPE, pipe.type, replace);
+		replace(id, PACKAGE, pipe.packageName, replace);
+		replace(id, DESCRIPTION, pipe.description, replace);
+		replace(id, TAGS, pipe.tags, replace);
+		replace(id, ACCESS, pipe.access, replace);
+		replace(id, LOCATION, pipe.location, replace);
+		replace(id, URI, pipe.uri, replace);
+		replace(id, CONTENT_HASH, pipe.contentHash, replace);
+		replace(id, INPUTS, pipe.inputs, replace);
+		replace(id, OUTPUTS, pipe.outputs, replace);
+		replace(id, TEXT, HeapPipefileStore.searchText(pipe), replace);
+	}
+
+	/**
+	 *  Points a string of a record to the value, stored unless it is the one already there
+	 *  @param replace true if the record already points to a value, counted as garbage if replaced
+	 */
+	private void replace(int id, int string, String value, boolean replace){
+		if (replace){
+			long old = offset(id, string);
+			if (old < 0 ? value == null : value != null && equals(old, value.getBytes(UTF8))){
+				return;
+			}
+			release(old, string);
+		}
+
+		putOffset(record(id), recordOffset(id), string, put(value, REPEATED[string]));
+	}
+
+	public void remove(int id){
+		int hash = getString(offset(id, ABSOLUTE_PATH)).hashCode();
+		for (int slot = hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)){
+			int stored = table.getInt(slot * 8 + 4) - 1;
+			if (stored == -1){
+				break;
+			}
+			if (stored == id){
+				table.putInt(slot * 8 + 4, -1);
+				break;
+			}
+		}
+
+		record(id).putInt(recordOffset(id), 0);
+		count--;
+
+		for (int string = 0; string < STRINGS; string++){
+			release(offset(id, string), string);
+		}
+		compactIfNeeded();
+	}
+
+	public Pipefile get(int id){
+		if (record(id).getInt(recordOffset(id)) == 0){
+			return null;
+		}
+
+		Pipefile ret = new Pipefile();
+		ret.absolutePath = getString(offset(id, ABSOLUTE_PATH));
+		ret.name = getString(offset(id, NAME));
+		ret.type = getString(offset(id, TYPE));
+		ret.packageName = getString(offset(id, PACKAGE));
+		ret.description = getString(offset(id, DESCRIPTION));
+		ret.tags = getString(offset(id, TAGS));
+		ret.access = getString(offset(id, ACCESS));
+		ret.location = getString(offset(id, LOCATION));
+		ret.uri = getString(offset(id, URI));
+		ret.contentHash = getString(offset(id, CONTENT_HASH));
+		ret.inputs = getString(offset(id, INPUTS));
+		ret.outputs = getString(offset(id, OUTPUTS));
+		return ret;
+	}
+
+	public Pipefile getSummary(int id){
+		if (record(id).getInt(recordOffset(id)) == 0){
+			return null;
+		}
+
+		// The long strings (description, tags, parameters) are not decoded
+		Pipefile ret = new Pipefile();
+		ret.absolutePath = getString(offset(id, ABSOLUTE_PATH));
+		ret.name = getString(offset(id, NAME));
+		ret.type = getString(offset(id, TYPE));
+		ret.packageName = getString(offset(id, PACKAGE));
+		ret.access = getString(offset(id, ACCESS));
+		return ret;
+	}
+
+	public int getDirectoryID(int id){
+		return record(id).getInt(recordOffset(id) + 4);
+	}
+
+	public String getAccess(int id){
+		return getString(offset(id, ACCESS));
+	}
+
+	public boolean matches(int id, String query){
+		// Called for every candidate of a search with the same query
+		if (query.equals(lastQuery) == false){
+			lastQuery = query;
+			lastQueryBytes = query.getBytes(UTF8);
+		}
+		byte[] q = lastQueryBytes;
+		long offset = offset(id, TEXT);
+		ByteBuffer segment = poolSegments.get((int) (offset / SEGMENT));
+		int at = (int) (offset % SEGMENT);
+		int length = segment.getInt(at);
+		at += 4;
+
+		// UTF-8 is self-synchronizing, a byte match is a character match
+		byte first = q[0];
+		for (int i = at, end = at + length - q.length; i <= end; i++){
+			if (segment.get(i) != first){
+				continue;
+			}
+
+			int j = 1;
+			while (j < q.length && segment.get(i + j) == q[j]){
+				j++;
+			}
+			if (j == q.length){
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public int count(){
+		return count;
+	}
+
+	public void close(){
+		// Mappings stay valid until they are collected, deleting the files only unlinks them
+		close(records, recordsFile);
+		close(pool, poolFile);
+		close(index, indexFile);
+	}
+
+	private ByteBuffer record(int id){
+		return recordSegments.get(id / RECORDS_PER_SEGMENT);
+	}
+
+	private static int recordOffset(int id){
+		return (id % RECORDS_PER_SEGMENT) * RECORD;
+	}
+
+	private long offset(int id, int string){
+		return record(id).getLong(recordOffset(id) + 8 + 8 * string);
+	}
+
+	private static void putOffset(ByteBuffer r, int at, int string, long offset){
+		r.putLong(at + 8 + 8 * string, offset);
+	}
+
+	/**
+	 *  Appends a string to the pool
+	 *  @param repeated store the value once
+	 *  @return its offset, -1 for null
+	 */
+	private long put(String s, boolean repeated){
+		if (s == null){
+			return -1;
+		}
+		if (repeated){
+			Long known = shared.get(s);
+			if (known != null){
+				return known;
+			}
+		}
+
+		long ret = append(s.getBytes(UTF8));
+		if (repeated && shared.size() < SHARED_MAX){
+			shared.put(s, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 *  @return the offset of the bytes appended to the pool
+	 */
+	private long append(byte[] bytes){
+		if (4 + bytes.length > SEGMENT){
+			throw new IllegalArgumentException("String of " + bytes.length + " bytes does not fit a pool segment");
+		}
+
+		if (poolEnd % SEGMENT + 4 + bytes.length > SEGMENT){
+			poolEnd = (poolEnd / SEGMENT + 1) * SEGMENT;
+		}
+		int n = (int) (poolEnd / SEGMENT);
+		while (poolSegments.size() <= n){
+			poolSegments.add(map(pool, (long) poolSegments.size() * SEGMENT, SEGMENT));
+		}
+
+		ByteBuffer segment = poolSegments.get(n).duplicate();
+		segment.position((int) (poolEnd % SEGMENT));
+		segment.putInt(bytes.length);
+		segment.put(bytes);
+
+		long ret = poolEnd;
+		poolEnd += 4 + bytes.length;
+		return ret;
+	}
+
+	/**
+	 *  Counts a string no longer pointed to by a record as garbage, 
+	 *  unless it is a repeated value other records may share
+	 */
+	private void release(long offset, int string){
+		if (offset < 0){
+			return;
+		}
+		if (REPEATED[string]){
+			Long known = shared.get(getString(offset));
+			if (known != null && known == offset){
+				return;
+			}
+		}
+
+		garbage += 4 + poolSegments.get((int) (offset / SEGMENT)).getInt((int) (offset % SEGMENT));
+	}
+
+	/**
+	 *  Copies the strings of the live records to a new pool once most of the pool is garbage
+	 */
+	private void compactIfNeeded(){
+		if (garbage < COMPACT_MIN || garbage * 2 < poolEnd){
+			return;
+		}
+
+		File oldFile = poolFile;
+		RandomAccessFile old = pool;
+		ArrayList<ByteBuffer> oldSegments = poolSegments;
+		newPool();
+
+		for (int id = 0; id < size; id++){
+			ByteBuffer r = record(id);
+			int at = recordOffset(id);
+			if (r.getInt(at) == 0){
+				continue;
+			}
+
+			for (int string = 0; string < STRINGS; string++){
+				long offset = offset(id, string);
+				if (offset < 0){
+					continue;
+				}
+
+				ByteBuffer segment = oldSegments.get((int) (offset / SEGMENT)).duplicate();
+				segment.position((int) (offset % SEGMENT));
+				byte[] bytes = new byte[segment.getInt()];
+				segment.get(bytes);
+
+				putOffset(r, at, string, REPEATED[string] ? put(new String(bytes, UTF8), true) : append(bytes));
+			}
+		}
+
+		close(old, oldFile);
+		compactions.inc();
+	}
+
+	/**
+	 *  Starts an empty pool file
+	 */
+	private void newPool(){
+		try {
+			poolFile = File.createTempFile("slm-pool", ".bin", directory);
+			pool = new RandomAccessFile(poolFile, "rw");
+		} catch (IOException e){
+			throw new RuntimeException(e);
+		}
+		poolSegments = new ArrayList<ByteBuffer>();
+		poolEnd = 0;
+		garbage = 0;
+		shared.clear();
+	}
+
+	private String getString(long offset){
+		if (offset < 0){
+			return null;
+		}
+
+		ByteBuffer segment = poolSegments.get((int) (offset / SEGMENT)).duplicate();
+		segment.position((int) (offset % SEGMENT));
+		byte[] bytes = new byte[segment.getInt()];
+		segment.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 *  @return true if the pool string at offset is the bytes
+	 */
+	private boolean equals(long offset, byte[] bytes){
+		ByteBuffer segment = poolSegments.get((int) (offset / SEGMENT));
+		int at = (int) (offset % SEGMENT);
+		if (segment.getInt(at) != bytes.length){
+			return false;
+		}
+
+		for (int i = 0; i < bytes.length; i++){
+			if (segment.get(at + 4 + i) != bytes[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void insert(int hash, int id){
+		int slot = hash & (capacity - 1);
+		while (table.getInt(slot * 8 + 4) > 0){
+			slot = (slot + 1) & (capacity - 1);
+		}
+
+		if (table.getInt(slot * 8 + 4) == 0){
+			used++;
+		}
+		table.putInt(slot * 8, hash);
+		table.putInt(slot * 8 + 4, id + 1);
+	}
+
+	/**
+	 *  Rehashes the live entries into a new index file, twice as large unless most slots were removed ones
+	 */
+	private void resize(){
+		File oldFile = indexFile;
+		RandomAccessFile old = index;
+		ByteBuffer oldTable = table;
+		int oldCapacity = capacity;
+
+		newIndex(count * 4 > oldCapacity ? oldCapacity * 2 : oldCapacity);
+		for (int slot = 0; slot < oldCapacity; slot++){
+			int id = oldTable.getInt(slot * 8 + 4) - 1;
+			if (id >= 0){
+				insert(oldTable.getInt(slot * 8), id);
+			}
+		}
+
+		close(old, oldFile);
+	}
+
+	private void newIndex(int capacity){
+		try {
+			indexFile = File.createTempFile("slm-index", ".bin", directory);
+			index = new RandomAccessFile(indexFile, "rw");
+			table = map(index, 0, capacity * 8);
+			this.capacity = capacity;
+			used = 0;
+		} catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 *  @return a read-write mapping of the region, growing the file as needed
+	 */
+	private static ByteBuffer map(RandomAccessFile file, long position, int length){
+		try {
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, position, length);
+		} catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void close(RandomAccessFile file, File path){
+		try {
+			file.close();
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+		if (path != null){
+			path.delete();
+		}
+	}
+}
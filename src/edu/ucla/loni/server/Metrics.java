@@ -0,0 +1,166 @@
+package edu.ucla.loni.server;
+
+import java.io.PrintWriter;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide registry of counters, gauges and latency histograms
+ * <p>
+ * Metrics are created on first use and live as long as the webapp.
+ * Callers on hot paths should keep the returned object in a static field.
+ */
+public class Metrics {
+	/**
+	 * Monotonically increasing counter
+	 */
+	public static class Counter {
+		private final AtomicLong value = new AtomicLong();
+
+		public void inc(){
+			value.incrementAndGet();
+		}
+
+		public void add(long n){
+			value.addAndGet(n);
+		}
+
+		public long get(){
+			return value.get();
+		}
+	}
+
+	/**
+	 * Value that goes up and down, such as requests in progress
+	 */
+	public static class Gauge {
+		private final AtomicLong value = new AtomicLong();
+
+		public void set(long n){
+			value.set(n);
+		}
+
+		public void inc(){
+			value.incrementAndGet();
+		}
+
+		public void dec(){
+			value.decrementAndGet();
+		}
+
+		public long get(){
+			return value.get();
+		}
+	}
+
+	/**
+	 * All the series sharing a metric name, keyed by their label string
+	 */
+	private static class Family {
+		String help;
+		String type;
+		ConcurrentHashMap<String, Object> series = new ConcurrentHashMap<String, Object>();
+
+		Family(String help, String type){
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<String, Family>();
+
+	public static Counter counter(String name, String help){
+		return counter(name, help, null, null);
+	}
+
+	public static Counter counter(String name, String help, String label, String value){
+		return (Counter) get(name, help, "counter", labels(label, value));
+	}
+
+	public static Gauge gauge(String name, String help, String label, String value){
+		return (Gauge) get(name, help, "gauge", labels(label, value));
+	}
+
+	public static LatencyHistogram histogram(String name, String help){
+		return histogram(name, help, null, null);
+	}
+
+	public static LatencyHistogram histogram(String name, String help, String label, String value){
+		return (LatencyHistogram) get(name, help, "summary", labels(label, value));
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text exposition format (version 0.0.4)
+	 * <p>
+	 * Histograms are exported as summaries in seconds with the 0.5, 0.9 and 0.99 quantiles
+	 */
+	public static void write(PrintWriter out){
+		for (Map.Entry<String, Family> entry : new TreeMap<String, Family>(families).entrySet()){
+			String name = entry.getKey();
+			Family family = entry.getValue();
+
+			out.println("# HELP " + name + " " + family.help);
+			out.println("# TYPE " + name + " " + family.type);
+
+			for (Map.Entry<String, Object> s : new TreeMap<String, Object>(family.series).entrySet()){
+				String labels = s.getKey();
+				Object metric = s.getValue();
+
+				if (metric instanceof Counter){
+					out.println(name + braces(labels) + " " + ((Counter) metric).get());
+				} else if (metric instanceof Gauge){
+					out.println(name + braces(labels) + " " + ((Gauge) metric).get());
+				} else {
+					LatencyHistogram h = (LatencyHistogram) metric;
+					String prefix = labels.length() == 0 ? "" : labels + ",";
+
+					out.println(name + "{" + prefix + "quantile=\"0.5\"} " + seconds(h.getQuantile(0.5)));
+					out.println(name + "{" + prefix + "quantile=\"0.9\"} " + seconds(h.getQuantile(0.9)));
+					out.println(name + "{" + prefix + "quantile=\"0.99\"} " + seconds(h.getQuantile(0.99)));
+					out.println(name + "_sum" + braces(labels) + " " + seconds(h.getSum()));
+					out.println(name + "_count" + braces(labels) + " " + h.getCount());
+				}
+			}
+		}
+		out.flush();
+	}
+
+	private static Object get(String name, String help, String type, String labels){
+		Family family = families.get(name);
+		if (family == null){
+			families.putIfAbsent(name, new Family(help, type));
+			family = families.get(name);
+		}
+
+		Object metric = family.series.get(labels);
+		if (metric == null){
+			Object created = type.equals("counter") ? new Counter() : type.equals("gauge") ? new Gauge() : new LatencyHistogram();
+			metric = family.series.putIfAbsent(labels, created);
+			if (metric == null){
+				metric = created;
+			}
+		}
+
+		return metric;
+	}
+
+	private static String labels(String label, String value){
+		if (label == null){
+			return "";
+		}
+
+		String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		return label + "=\"" + escaped + "\"";
+	}
+
+	private static String braces(String labels){
+		return labels.length() == 0 ? "" : "{" + labels + "}";
+	}
+
+	private static String seconds(long nanos){
+		return Double.toString(nanos / 1e9);
+	}
+}
@@ -0,0 +1,21 @@
+package edu.ucla.loni.server;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Exposes all Metrics in the Prometheus text format
+ */
+@SuppressWarnings("serial")
+public class MetricsServlet extends HttpServlet {
+	public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		response.setHeader("Cache-Control", "no-cache");
+
+		Metrics.write(response.getWriter());
+	}
+}
@@ -0,0 +1,335 @@
+package edu.ucla.loni.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the file operations, so one cut short by a crash or an error
+ * can be finished or undone at startup instead of rescanning every root
+ * <p>
+ * An operation logs its intent with begin before touching the file system and its
+ * completion with commit once the database, the catalog and the access file agree.
+ * begin returns once the intent is on disk. Threads beginning at the same time share
+ * one write and one fsync: the first to find no write in progress writes every pending
+ * record, the others wait for it (group commit). Completion records are not waited for,
+ * they go out with the next write, a lost one only makes recovery redo an operation
+ * that is already done, so recovering must be idempotent.
+ * <p>
+ * Once no operation is outstanding and the file is over COMPACT_SIZE it is truncated.
+ * <p>
+ * Format (big endian):<br>
+ * int MAGIC, then records: int length, int CRC32 of the payload, payload<br>
+ * payload: byte BEGIN, long id, UTF type, int count and UTF args; or byte COMMIT, long id<br>
+ * A record cut short by a crash (bad length or CRC) ends the journal.
+ */
+public class OperationJournal {
+	private static final int MAGIC = 0x534c4d4a;	// "SLMJ"
+
+	private static final byte BEGIN = 1;
+	private static final byte COMMIT = 2;
+
+	/**
+	 *  Size past which the journal is truncated once nothing is outstanding
+	 */
+	private static final long COMPACT_SIZE = 1 << 20;
+
+	/**
+	 *  Largest record read back, anything longer is a torn length
+	 */
+	private static final int MAX_RECORD = 1 << 16;
+
+	private static final LatencyHistogram syncTime =
+		Metrics.histogram("slm_journal_sync_seconds", "Time to write and fsync a batch of journal records");
+	private static final Metrics.Counter syncedRecords =
+		Metrics.counter("slm_journal_records_total", "Records written to the operation journal");
+
+	/**
+	 *  An operation begun but not committed
+	 */
+	public static class Operation {
+		public final long id;
+		public final String type;
+		public final String[] args;
+
+		Operation(long id, String type, String[] args){
+			this.id = id;
+			this.type = type;
+			this.args = args;
+		}
+	}
+
+	private final FileChannel channel;
+
+	// Operations found incomplete when opening, in the order they began
+	private final ArrayList<Operation> incomplete = new ArrayList<Operation>();
+
+	private final HashSet<Long> outstanding = new HashSet<Long>();
+	private long nextId = 1;
+
+	// Records appended but not written, numbered from 1
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private long appended = 0;
+	private long durable = 0;
+	private boolean writing = false;
+	private IOException failed;
+
+	/**
+	 *  Opens the journal, creating it if needed, and reads the operations left incomplete
+	 */
+	public OperationJournal(File file) throws IOException {
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		if (channel.size() < 4){
+			reset();
+		} else {
+			read();
+		}
+	}
+
+	/**
+	 *  @return the operations a crash or an error left between begin and commit, oldest first,
+	 *          each must be finished or undone and then committed
+	 */
+	public synchronized Operation[] incomplete(){
+		return incomplete.toArray(new Operation[incomplete.size()]);
+	}
+
+	/**
+	 *  Logs the intent of an operation and waits until it is on disk
+	 *  @param type what the operation is, for recovery
+	 *  @param args what recovery needs to finish or undo it
+	 *  @return id to commit once the operation is done
+	 */
+	public long begin(String type, String... args) throws IOException {
+		long id;
+		long seq;
+		synchronized (this){
+			id = nextId++;
+			outstanding.add(id);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(BEGIN);
+			out.writeLong(id);
+			out.writeUTF(type);
+			out.writeInt(args.length);
+			for (String arg : args){
+				out.writeUTF(arg);
+			}
+			seq = append(bytes.toByteArray());
+		}
+
+		sync(seq);
+		return id;
+	}
+
+	/**
+	 *  Logs the completion of an operation, without waiting for it to be on disk
+	 */
+	public synchronized void commit(long id) throws IOException {
+		if (outstanding.remove(id) == false){
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(COMMIT);
+		out.writeLong(id);
+		append(bytes.toByteArray());
+
+		for (int i = 0; i < incomplete.size(); i++){
+			if (incomplete.get(i).id == id){
+				incomplete.remove(i);
+				break;
+			}
+		}
+
+		if (outstanding.isEmpty() && writing == false && channel.size() > COMPACT_SIZE){
+			// Every record in the file is resolved, including the pending ones
+			pending.reset();
+			durable = appended;
+			reset();
+		}
+	}
+
+	/**
+	 *  Writes the pending completion records and closes the file
+	 */
+	public void close() throws IOException {
+		long seq;
+		synchronized (this){
+			seq = appended;
+		}
+
+		try {
+			sync(seq);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 *  Adds a record to the pending batch, called with the lock held
+	 *  @return its sequence number
+	 */
+	private long append(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		DataOutputStream out = new DataOutputStream(pending);
+		out.writeInt(payload.length);
+		out.writeInt((int) crc.getValue());
+		out.write(payload);
+		return ++appended;
+	}
+
+	/**
+	 *  Returns once the record is on disk, writing the pending batch if no other thread is
+	 */
+	private void sync(long seq) throws IOException {
+		byte[] batch;
+		long from;
+		long upTo;
+		synchronized (this){
+			while (durable < seq && writing && failed == null){
+				try {
+					wait();
+				} catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for the journal");
+				}
+			}
+			if (failed != null){
+				throw failed;
+			}
+			if (durable >= seq){
+				return;
+			}
+
+			writing = true;
+			batch = pending.toByteArray();
+			pending.reset();
+			from = durable;
+			upTo = appended;
+		}
+
+		long start = System.nanoTime();
+		IOException error = null;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			long position = channel.size();
+			while (buffer.hasRemaining()){
+				position += channel.write(buffer, position);
+			}
+			channel.force(false);
+			syncedRecords.add(upTo - from);
+		} catch (IOException e){
+			error = e;
+		} finally {
+			syncTime.recordSince(start);
+			synchronized (this){
+				writing = false;
+				if (error == null){
+					durable = upTo;
+				} else {
+					// The batch is lost, nothing can be logged reliably after it
+					failed = error;
+				}
+				notifyAll();
+			}
+		}
+
+		if (error != null){
+			throw error;
+		}
+	}
+
+	/**
+	 *  Reads the records, keeping the operations without a commit
+	 */
+	private void read() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+		while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0){
+		}
+		buffer.flip();
+
+		if (buffer.getInt() != MAGIC){
+			throw new IOException("Not an operation journal");
+		}
+
+		LinkedHashMap<Long, Operation> begun = new LinkedHashMap<Long, Operation>();
+		int end = buffer.position();
+		try {
+			while (buffer.remaining() >= 8){
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length <= 0 || length > MAX_RECORD || length > buffer.remaining()){
+					break;
+				}
+
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum){
+					break;
+				}
+
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				byte kind = in.readByte();
+				long id = in.readLong();
+				if (kind == BEGIN){
+					String type = in.readUTF();
+					String[] args = new String[in.readInt()];
+					for (int i = 0; i < args.length; i++){
+						args[i] = in.readUTF();
+					}
+					begun.put(id, new Operation(id, type, args));
+				} else {
+					begun.remove(id);
+				}
+
+				nextId = Math.max(nextId, id + 1);
+				end = buffer.position();
+			}
+		} catch (EOFException e){
+			// Payload shorter than its kind says, treated as torn
+		}
+
+		// Drop a torn tail, new records go after the last good one
+		channel.truncate(end);
+
+		incomplete.addAll(begun.values());
+		for (Operation op : incomplete){
+			outstanding.add(op.id);
+		}
+	}
+
+	/**
+	 *  Empties the file, leaving the header
+	 */
+	private void reset() throws IOException {
+		channel.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(4);
+		header.putInt(MAGIC);
+		header.flip();
+		channel.write(header, 0);
+		channel.force(false);
+	}
+}
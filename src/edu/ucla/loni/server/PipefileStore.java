@@ -0,0 +1,68 @@
+package edu.ucla.loni.server;
+
+import edu.ucla.loni.shared.Pipefile;
+
+/**
+ * Where the Catalog keeps its pipefiles, by number
+ * <p>
+ * Numbers are assigned by add and never reused. Implementations are not thread safe, 
+ * the Catalog synchronizes.
+ * 
+ * @see HeapPipefileStore
+ * @see MappedPipefileStore
+ */
+public interface PipefileStore {
+	/**
+	 * @return the number of the pipefile, or -1 if it is not stored
+	 */
+	int find(String absolutePath);
+	
+	/**
+	 * Stores a new pipefile
+	 * @return its number
+	 */
+	int add(int directoryID, Pipefile pipe);
+	
+	/**
+	 * Replaces a stored pipefile, its absolutePath must not change
+	 */
+	void set(int id, int directoryID, Pipefile pipe);
+	
+	void remove(int id);
+	
+	/**
+	 * @return the pipefile, or null if it was removed
+	 */
+	Pipefile get(int id);
+	
+	/**
+	 * @return a new pipefile with only the absolutePath, name, type, packageName and access,
+	 *         what listings need, or null if it was removed
+	 */
+	Pipefile getSummary(int id);
+	
+	int getDirectoryID(int id);
+	
+	String getAccess(int id);
+	
+	/**
+	 * @param query lower case text
+	 * @return true if the name, packageName or description contains the query, case insensitive
+	 */
+	boolean matches(int id, String query);
+	
+	/**
+	 * @return one more than the highest number assigned
+	 */
+	int size();
+	
+	/**
+	 * @return number of pipefiles stored
+	 */
+	int count();
+	
+	/**
+	 * Releases the storage, pipefiles already returned stay valid
+	 */
+	void close();
+}
@@ -0,0 +1,132 @@
+package edu.ucla.loni.server;
+
+import java.util.HashMap;
+
+/**
+ * Makes sure only one reconciliation runs per root directory at a time
+ * <p>
+ * A caller arriving while a scan of the same root is running does not start its own,
+ * it joins the single follow-up pass that runs right after the current one
+ * (the current pass may have already walked past the caller's changes).
+ * Callers arriving while a follow-up is already waiting join that follow-up.
+ * Every caller returns once the pass it joined has finished, or throws its exception.
+ */
+public class ScanCoordinator {
+	/**
+	 * The work to coordinate
+	 */
+	public interface Scan {
+		void run() throws Exception;
+	}
+
+	/**
+	 * One pass over a root, waited on by all the callers that joined it
+	 */
+	private static class Pass {
+		private boolean finished = false;
+		private Exception error;
+
+		synchronized void finish(Exception e){
+			finished = true;
+			error = e;
+			notifyAll();
+		}
+
+		synchronized void await() throws InterruptedException {
+			while (finished == false){
+				wait();
+			}
+		}
+
+		/**
+		 * Waits even if interrupted (the interrupt is kept), 
+		 * used by a follow-up that must not give up its turn
+		 */
+		synchronized void awaitUninterruptibly(){
+			boolean interrupted = false;
+			while (finished == false){
+				try {
+					wait();
+				} catch (InterruptedException e){
+					interrupted = true;
+				}
+			}
+			if (interrupted){
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized Exception getError(){
+			return error;
+		}
+	}
+
+	private static final Metrics.Counter coalesced =
+		Metrics.counter("slm_scan_coalesced_total", "Scan requests that joined a pass started by another caller");
+
+	// root => pass currently running, root => follow-up pass waiting for it
+	private final HashMap<String, Pass> running = new HashMap<String, Pass>();
+	private final HashMap<String, Pass> pending = new HashMap<String, Pass>();
+
+	/**
+	 * Runs scan for root, or waits for a pass that covers this request
+	 */
+	public void scan(String root, Scan scan) throws Exception {
+		Pass pass;
+		Pass before = null;
+		boolean owner = false;
+
+		synchronized (this){
+			Pass current = running.get(root);
+
+			if (current == null){
+				pass = new Pass();
+				running.put(root, pass);
+				owner = true;
+			} else if (pending.containsKey(root)){
+				pass = pending.get(root);
+			} else {
+				pass = new Pass();
+				pending.put(root, pass);
+				before = current;
+				owner = true;
+			}
+		}
+
+		if (owner == false){
+			coalesced.inc();
+			pass.await();
+
+			Exception error = pass.getError();
+			if (error != null){
+				throw error;
+			}
+			return;
+		}
+
+		// A follow-up pass is promoted to running by the pass before it
+		if (before != null){
+			before.awaitUninterruptibly();
+		}
+
+		Exception error = null;
+		try {
+			scan.run();
+		}
+		catch (Exception e){
+			error = e;
+			throw e;
+		}
+		finally {
+			synchronized (this){
+				Pass next = pending.remove(root);
+				if (next != null){
+					running.put(root, next);
+				} else {
+					running.remove(root);
+				}
+			}
+			pass.finish(error);
+		}
+	}
+}
@@ -1,6 +1,22 @@
 package edu.ucla.loni.server;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.regex.Pattern;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -13,6 +29,18 @@ import org.w3c.dom.NodeList;
 import edu.ucla.loni.shared.Pipefile;
 
 public class ServerUtils {
+	private static final LatencyHistogram parseTime = 
+		Metrics.histogram("slm_parse_seconds", "Time to parse one .pipe file");
+	private static final Metrics.Counter parseFailures = 
+		Metrics.counter("slm_parse_failures_total", "Files that could not be parsed as a pipefile");
+	
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	
+	// Separators of Pipefile.inputs and outputs
+	private static final Pattern SEPARATORS = Pattern.compile("[\\t\\n\\r,:]");
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
 	/**
 	 * Parse an XML file into a Document
 	 */
@@ -40,17 +68,17 @@ public class ServerUtils {
 	}
 	
 	/** 
-	 * Get a comma separated list of the textual value of children within an element
+	 * Get the textual values of the children within an element, empty values are left out
 	 * <p>
 	 * Example:<br>
 	 * {@literal<e><child>a</child><child>b</child></e>}<br>
-	 * returns "a, b"
+	 * returns ["a", "b"]
 	 */
-	private static String getChildValues(Element e, String child){
+	private static ArrayList<String> getChildValues(Element e, String child){
 		NodeList children = e.getChildNodes();
 		int length = children.getLength();
 		
-		String ret = "";
+		ArrayList<String> ret = new ArrayList<String>();
 		for (int i = 0; i < length; i++){
 			Node childNode = children.item(i);
 			
@@ -58,21 +86,183 @@ public class ServerUtils {
 				Element childElement = (Element) childNode;
 				
 				if (child.equals(childElement.getNodeName())){
-					String value = getElementValue(childElement);
+					String value = getElementValue(childElement).trim();
 					
-					if (value != ""){
-						ret += value + ", ";
+					if (value.length() > 0){
+						ret.add(value);
 					}
 				}
 			}
 		}
 		
-		// Remove the last comma and space
-		if (ret != ""){
-			ret = ret.substring(0, ret.length() - 2);
+		return ret;
+	}
+	
+	/**
+	 * Normalizes a tag for indexing and lookup: trimmed, lower case, inner whitespace collapsed
+	 * <p>
+	 * Example:<br>
+	 * " Brain  MRI " returns "brain mri"
+	 */
+	public static String normalizeTag(String tag){
+		return WHITESPACE.matcher(tag.trim()).replaceAll(" ").toLowerCase();
+	}
+	
+	/**
+	 * Splits Pipefile.tags into its normalized tags, without duplicates
+	 */
+	public static ArrayList<String> parseTags(String tags){
+		LinkedHashSet<String> ret = new LinkedHashSet<String>();
+		if (tags != null){
+			for (String tag : tags.split(",")){
+				tag = normalizeTag(tag);
+				if (tag.length() > 0){
+					ret.add(tag);
+				}
+			}
 		}
 		
-		return ret;
+		return new ArrayList<String>(ret);
+	}
+	
+	/**
+	 * Joins tags into the comma separated Pipefile.tags, 
+	 * dropping tags that normalize the same as an earlier one
+	 * <p>
+	 * Example:<br>
+	 * ["fMRI", "DTI", "fmri"] returns "fMRI, DTI"
+	 */
+	public static String joinTags(ArrayList<String> tags){
+		LinkedHashSet<String> seen = new LinkedHashSet<String>();
+		StringBuilder ret = new StringBuilder();
+		
+		for (String tag : tags){
+			// Commas separate tags in Pipefile.tags
+			tag = tag.replace(',', ' ').trim();
+			if (tag.length() > 0 && seen.add(normalizeTag(tag))){
+				if (ret.length() > 0){
+					ret.append(", ");
+				}
+				ret.append(tag);
+			}
+		}
+		
+		return ret.toString();
+	}
+	
+	/**
+	 * Splits Pipefile.inputs or outputs into the normalized formats its parameters take, 
+	 * without duplicates: the format types and the names and extensions of the file types
+	 * <p>
+	 * Example:<br>
+	 * "Image\tFile\tNIfTI:nii,Analyze:img" returns ["file", "nifti", "nii", "analyze", "img"]
+	 */
+	public static ArrayList<String> parseFormats(String parameters){
+		LinkedHashSet<String> ret = new LinkedHashSet<String>();
+		if (parameters != null){
+			for (String parameter : parameters.split("\n")){
+				String[] fields = parameter.split("\t", -1);
+				if (fields.length < 3){
+					continue;
+				}
+				
+				ArrayList<String> values = new ArrayList<String>();
+				values.add(fields[1]);
+				for (String fileType : fields[2].split(",")){
+					Collections.addAll(values, fileType.split(":"));
+				}
+				
+				for (String value : values){
+					value = normalizeTag(value);
+					if (value.length() > 0){
+						ret.add(value);
+					}
+				}
+			}
+		}
+		
+		return new ArrayList<String>(ret);
+	}
+	
+	/**
+	 * Hashes the content of a file without reading it into memory
+	 * @return the SHA-1 of the bytes, in lower case hex
+	 */
+	public static String contentHash(File file) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int length;
+			while ((length = in.read(buffer)) != -1){
+				digest.update(buffer, 0, length);
+			}
+		} finally {
+			in.close();
+		}
+		
+		return hex(digest.digest());
+	}
+	
+	/**
+	 * Hashes the metadata of a pipefile, so copies that differ only in layout, case, 
+	 * whitespace or tag order hash the same
+	 * @return the SHA-1 of the normalized type, name, packageName, description, 
+	 *         sorted tags, location and uri, in lower case hex
+	 */
+	public static String metadataHash(Pipefile pipe){
+		ArrayList<String> tags = parseTags(pipe.tags);
+		Collections.sort(tags);
+		
+		StringBuilder key = new StringBuilder();
+		for (String value : new String[] {pipe.type, pipe.name, pipe.packageName, pipe.description, 
+				tags.toString(), pipe.location, pipe.uri}){
+			key.append(value == null ? "" : normalizeTag(value)).append('\0');
+		}
+		
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return hex(digest.digest(key.toString().getBytes("UTF-8")));
+		} catch (Exception e){
+			// SHA-1 and UTF-8 are always available
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Orders pipefiles by one field, case insensitive, then by absolutePath so the order is stable
+	 * @param field "name", "packageName" or "type"
+	 * @param descending true to sort from Z to A
+	 */
+	public static Comparator<Pipefile> pipefileOrder(final String field, final boolean descending){
+		if (field.equals("name") == false && field.equals("packageName") == false && field.equals("type") == false){
+			throw new IllegalArgumentException("Cannot sort by " + field);
+		}
+		
+		return new Comparator<Pipefile>() {
+			public int compare(Pipefile a, Pipefile b){
+				int ret = String.CASE_INSENSITIVE_ORDER.compare(value(a), value(b));
+				if (ret == 0){
+					ret = a.absolutePath.compareTo(b.absolutePath);
+				}
+				return descending ? -ret : ret;
+			}
+			
+			private String value(Pipefile p){
+				String ret = field.equals("name") ? p.name : field.equals("packageName") ? p.packageName : p.type;
+				return ret == null ? "" : ret;
+			}
+		};
+	}
+	
+	private static String hex(byte[] bytes){
+		char[] ret = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++){
+			ret[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			ret[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		
+		return new String(ret);
 	}
 	
 	/** 
@@ -97,10 +287,86 @@ public class ServerUtils {
 		return "";
 	}
 	
+	/**
+	 * Get the input or output parameters of a module, for Pipefile.inputs or outputs: 
+	 * one line per parameter, its name, format type and file types separated by tabs, 
+	 * the file types as name:extension separated by commas
+	 * <p>
+	 * Example:<br>
+	 * {@literal<input name="Image"><format type="File"><fileTypes><filetype name="NIfTI" extension="nii"/>}
+	 * {@literal</fileTypes></format></input>}<br>
+	 * returns "Image\tFile\tNIfTI:nii"
+	 * @param child "input" or "output"
+	 * @return null if the module has none
+	 */
+	private static String getParameters(Element e, String child){
+		NodeList children = e.getChildNodes();
+		StringBuilder ret = new StringBuilder();
+		
+		for (int i = 0; i < children.getLength(); i++){
+			Node childNode = children.item(i);
+			if (childNode.getNodeType() != Node.ELEMENT_NODE || child.equals(childNode.getNodeName()) == false){
+				continue;
+			}
+			Element parameter = (Element) childNode;
+			
+			String formatType = "";
+			StringBuilder fileTypes = new StringBuilder();
+			NodeList formats = parameter.getElementsByTagName("format");
+			if (formats.getLength() > 0){
+				Element format = (Element) formats.item(0);
+				formatType = format.getAttribute("type");
+				
+				NodeList types = format.getElementsByTagName("filetype");
+				for (int t = 0; t < types.getLength(); t++){
+					Element type = (Element) types.item(t);
+					if (fileTypes.length() > 0){
+						fileTypes.append(',');
+					}
+					fileTypes.append(clean(type.getAttribute("name"))).append(':').append(clean(type.getAttribute("extension")));
+				}
+			}
+			
+			if (ret.length() > 0){
+				ret.append('\n');
+			}
+			ret.append(clean(parameter.getAttribute("name"))).append('\t').append(clean(formatType)).append('\t').append(fileTypes);
+		}
+		
+		return ret.length() == 0 ? null : ret.toString();
+	}
+	
+	/**
+	 * Replaces the characters that separate the parts of Pipefile.inputs and outputs
+	 */
+	private static String clean(String value){
+		return SEPARATORS.matcher(value).replaceAll(" ").trim();
+	}
+	
+	/**
+	 * Get the DependencyGraph key of a module or group referenced by a workflow
+	 */
+	private static String getReferenceKey(Element e){
+		return DependencyGraph.referenceKey(
+			getChildValue(e, "uri"), e.getAttribute("location"), 
+			e.getAttribute("package"), e.getAttribute("name")
+		);
+	}
+	
 	/**
 	 * Parses a .pipe into a Pipefile
 	 */
 	public static Pipefile parseFile(File file){
+		return parseFile(file, null);
+	}
+	
+	/**
+	 * Parses a .pipe into a Pipefile
+	 * @param references if not null, filled with the DependencyGraph keys of the modules,
+	 *   data modules and nested groups a workflow contains
+	 */
+	public static Pipefile parseFile(File file, ArrayList<String> references){
+		long start = System.nanoTime();
 		try {
 			Pipefile pipe = new Pipefile();
 			
@@ -122,6 +388,7 @@ public class ServerUtils {
 				mainNode = modules.item(0);
 				pipe.type = "Modules";
 			} else {
+				parseFailures.inc();
 				return null;
 			}
 	    
@@ -134,13 +401,13 @@ public class ServerUtils {
 			pipe.name = mainElement.getAttribute("name");
 			pipe.packageName = mainElement.getAttribute("package");
 			pipe.description = mainElement.getAttribute("description");
-			pipe.tags = getChildValues(mainElement, "tag");
+			pipe.tags = joinTags(getChildValues(mainElement, "tag"));
 			
 			// Get type specific properties			
-			if (pipe.type == "Data"){
-				// TODO, 
-				// By the schema dataModule does not have output / input elements
-				// Also need to know what we are getting out
+			if (pipe.type == "Data" || pipe.type == "Modules"){
+				// A data module has an output if it is a source, an input if it is a sink
+				pipe.inputs = getParameters(mainElement, "input");
+				pipe.outputs = getParameters(mainElement, "output");
 			}
 			
 			if (pipe.type == "Modules"){
@@ -151,11 +418,30 @@ public class ServerUtils {
 				pipe.uri = getChildValue(mainElement, "uri");
 			}
 			
+			if (pipe.type == "Workflows" && references != null){
+				// Nested groups (other than the workflow itself), modules and data modules
+				for (int i = 1; i < group.getLength(); i++){
+					references.add(getReferenceKey((Element) group.item(i)));
+				}
+				for (int i = 0; i < modules.getLength(); i++){
+					references.add(getReferenceKey((Element) modules.item(i)));
+				}
+				for (int i = 0; i < data.getLength(); i++){
+					// A Data file is only known by its package and name
+					Element e = (Element) data.item(i);
+					references.add(DependencyGraph.referenceKey(null, null, e.getAttribute("package"), e.getAttribute("name")));
+				}
+			}
+			
 			return pipe;
 		} 
 		catch (Exception e){
+			parseFailures.inc();
 			return null;
 		}
+		finally {
+			parseTime.recordSince(start);
+		}
 	}
 	
 	/**
@@ -177,4 +463,27 @@ public class ServerUtils {
 		//TODO
 		return;
 	}
+	
+	/**
+	 * Writes a file from a stream, which is left open. It is written next to the file and 
+	 * renamed over it, so it is never seen half written.
+	 */
+	public static void writeAtomically(File dest, InputStream in) throws IOException {
+		File temp = File.createTempFile(dest.getName(), ".tmp", dest.getParentFile());
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				byte[] buffer = new byte[8192];
+				int length;
+				while ((length = in.read(buffer)) != -1){
+					out.write(buffer, 0, length);
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp.delete();
+		}
+	}
 }
@@ -0,0 +1,109 @@
+package edu.ucla.loni.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Prefix trie of normalized tags, for autocomplete
+ * <p>
+ * Each node keeps its children in a sorted char[] with a parallel Node[], so a lookup is one
+ * binary search per character of the prefix. Completions are every tag below the prefix node,
+ * in alphabetical order, callers rank them by popularity.
+ * <p>
+ * Not thread safe, callers synchronize.
+ */
+public class TagTrie {
+	private static class Node {
+		char[] labels = new char[0];
+		Node[] children = new Node[0];
+		String tag;		// Non-null if a tag ends here
+	}
+
+	private final Node root = new Node();
+	private int size = 0;
+
+	public void add(String tag){
+		Node node = root;
+		for (int i = 0; i < tag.length(); i++){
+			char c = tag.charAt(i);
+			int j = Arrays.binarySearch(node.labels, c);
+			if (j < 0){
+				j = -j - 1;
+				node.labels = insert(node.labels, j, c);
+				node.children = insert(node.children, j, new Node());
+			}
+			node = node.children[j];
+		}
+
+		if (node.tag == null){
+			node.tag = tag;
+			size++;
+		}
+	}
+
+	public void remove(String tag){
+		// Nodes left without tags below them are kept, tags come back often enough
+		Node node = find(tag);
+		if (node != null && node.tag != null){
+			node.tag = null;
+			size--;
+		}
+	}
+
+	public boolean contains(String tag){
+		Node node = find(tag);
+		return node != null && node.tag != null;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return every tag starting with the prefix, in alphabetical order
+	 */
+	public ArrayList<String> complete(String prefix){
+		ArrayList<String> ret = new ArrayList<String>();
+		Node node = find(prefix);
+		if (node != null){
+			collect(node, ret);
+		}
+
+		return ret;
+	}
+
+	private Node find(String s){
+		Node node = root;
+		for (int i = 0; i < s.length() && node != null; i++){
+			int j = Arrays.binarySearch(node.labels, s.charAt(i));
+			node = j < 0 ? null : node.children[j];
+		}
+
+		return node;
+	}
+
+	private static void collect(Node node, ArrayList<String> ret){
+		if (node.tag != null){
+			ret.add(node.tag);
+		}
+		for (Node child : node.children){
+			collect(child, ret);
+		}
+	}
+
+	private static char[] insert(char[] a, int i, char v){
+		char[] ret = new char[a.length + 1];
+		System.arraycopy(a, 0, ret, 0, i);
+		ret[i] = v;
+		System.arraycopy(a, i, ret, i + 1, a.length - i);
+		return ret;
+	}
+
+	private static Node[] insert(Node[] a, int i, Node v){
+		Node[] ret = new Node[a.length + 1];
+		System.arraycopy(a, 0, ret, 0, i);
+		ret[i] = v;
+		System.arraycopy(a, i, ret, i + 1, a.length - i);
+		return ret;
+	}
+}
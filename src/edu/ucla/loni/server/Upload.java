@@ -8,14 +8,33 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 public class Upload extends HttpServlet {
+	private static final LatencyHistogram uploadTime = 
+		Metrics.histogram("slm_upload_seconds", "Time to handle an upload request");
+	
 	public void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		AdmissionControl.Permit permit;
+		try {
+			permit = AdmissionControl.get().acquire("upload", AdmissionControl.sessionOf(req));
+		} catch (AdmissionControl.Rejected e){
+			e.send(resp);
+			return;
+		}
+		
+		long start = System.nanoTime();
+		try {
+			upload(req, resp);
+		} finally {
+			permit.release();
+			uploadTime.recordSince(start);
+		}
+	}
+	
+	private void upload(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 		// TODO
 		// Everything comes in as a form that has been POSTED
 		
 		// If uploading from a URL
-		  // Get the file from the URL
-		  // Add it to the filesystem
-		  // Update the database
+		  // Done by FileService.startUrlImport
 		// If uploading a folder or files
 		  // For each file
 		    // Add it to the filesystem
@@ -0,0 +1,398 @@
+package edu.ucla.loni.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches many URLs at once on a bounded executor, handing each response body to a Sink
+ * as a stream, so nothing is held in memory in full
+ * <p>
+ * At most perHost connections are open to the same host. The URLs of a host beyond that
+ * wait in its queue without holding a thread, and start as its fetches finish, so a long
+ * list from one host leaves the other threads to the other hosts. Failed fetches
+ * (connection errors, timeouts, 5xx and 429 answers) are tried again after a backoff
+ * that doubles each time, other answers fail right away. A fetch the Sink failed on part
+ * way is tried again from the start, the Sink has to accept the same URL again.
+ * <p>
+ * Only http and https URLs are fetched.
+ */
+public class UrlFetcher {
+	/**
+	 * Where a response body goes
+	 */
+	public interface Sink {
+		/**
+		 * Reads the body, the stream is closed afterwards
+		 * @param contentType the Content-Type header, null if missing
+		 */
+		void fetched(URL url, String contentType, InputStream body) throws Exception;
+	}
+
+	/**
+	 * The URLs that could not be fetched, with why
+	 */
+	public static class Result {
+		public final ArrayList<String> failed = new ArrayList<String>();
+		public final ArrayList<String> reasons = new ArrayList<String>();
+	}
+
+	private static final LatencyHistogram fetchTime =
+		Metrics.histogram("slm_fetch_seconds", "Time to fetch a URL and hand its body over, retries included");
+	private static final Metrics.Counter fetchRetries =
+		Metrics.counter("slm_fetch_retries_total", "URL fetches tried again after failing");
+	private static final Metrics.Counter fetchFailures =
+		Metrics.counter("slm_fetch_failures_total", "URLs that could not be fetched");
+
+	/**
+	 *  The fetches of one host: how many hold a connection, and the ones waiting for one
+	 */
+	private static class Host {
+		int running = 0;
+		final ArrayDeque<Fetch> waiting = new ArrayDeque<Fetch>();
+	}
+
+	/**
+	 *  One URL, from its first attempt until it is fetched or has failed
+	 */
+	private class Fetch implements Runnable {
+		final String url;
+		final String host;
+		final Sink sink;
+		final Job job;
+		final long start = System.nanoTime();
+		final CountDownLatch done = new CountDownLatch(1);
+
+		int attempt = 0;
+		String failure;
+
+		/**
+		 *  @param host null if url is not a URL
+		 */
+		Fetch(String url, String host, Sink sink, Job job){
+			this.url = url;
+			this.host = host;
+			this.sink = sink;
+			this.job = job;
+		}
+
+		/**
+		 *  Makes one attempt, holding a connection of the host
+		 */
+		public void run(){
+			try {
+				fetchOnce(new URL(url), sink);
+				finish(null);
+			}
+			catch (RetryableException e){
+				if (attempt >= retries){
+					finish(e.getMessage() + " (tried " + (attempt + 1) + " times)");
+					return;
+				}
+
+				// The connection goes to the next URL of the host while this one waits
+				fetchRetries.inc();
+				synchronized (hosts){
+					retrying.add(this);
+				}
+				release(host);
+				try {
+					retryTimer.schedule(new Runnable() {
+						public void run(){
+							synchronized (hosts){
+								retrying.remove(Fetch.this);
+							}
+							start(Fetch.this);
+						}
+					}, backoff << attempt++, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException stopped){
+					cancel();
+				}
+			}
+			catch (Throwable e){
+				finish(e.getMessage() == null ? e.toString() : e.getMessage());
+			}
+		}
+
+		/**
+		 *  Fails a fetch that will not run, the server is stopping
+		 */
+		void cancel(){
+			failure = "The server is stopping";
+			done.countDown();
+		}
+
+		private void finish(String failure){
+			this.failure = failure;
+			fetchTime.recordSince(start);
+			if (job != null){
+				job.progress();
+			}
+			release(host);
+			done.countDown();
+		}
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledThreadPoolExecutor retryTimer;
+	private final int capacity;
+	private final int perHost;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int retries;
+	private final long backoff;
+
+	// host => its fetches, guarded along with retrying, pending and closed
+	private final HashMap<String, Host> hosts = new HashMap<String, Host>();
+	private final HashSet<Fetch> retrying = new HashSet<Fetch>();
+	private int pending = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param threads URLs fetched at the same time, across all requests
+	 * @param queue URLs that can wait for a thread or for their host, across all requests
+	 * @param perHost connections open to one host at the same time
+	 * @param connectTimeout milliseconds to connect
+	 * @param readTimeout milliseconds without data before a fetch fails
+	 * @param retries times a failed fetch is tried again
+	 * @param backoff milliseconds before the first retry
+	 */
+	public UrlFetcher(int threads, int queue, int perHost, int connectTimeout, int readTimeout, int retries, long backoff){
+		this.capacity = threads + queue;
+		this.perHost = perHost;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.retries = retries;
+		this.backoff = backoff;
+
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory threadFactory = new ThreadFactory() {
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "slm-fetch-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+
+		// Not bounded itself, fetch lets no more than capacity URLs in
+		executor = new ThreadPoolExecutor(
+			threads, threads, 0, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			threadFactory
+		);
+		retryTimer = new ScheduledThreadPoolExecutor(1, threadFactory);
+	}
+
+	/**
+	 * Fetches every URL into the sink, which is called from several threads at once
+	 * @param job progress is reported to, can be null
+	 * @throws Exception if there is no room for all the URLs, none is fetched then
+	 */
+	public Result fetch(String[] urls, Sink sink, Job job) throws Exception {
+		synchronized (hosts){
+			if (closed){
+				throw new Exception("URLs are no longer fetched, the server is stopping");
+			}
+			if (pending + urls.length > capacity){
+				throw new Exception("Too many URLs are being fetched, try again later");
+			}
+			pending += urls.length;
+		}
+		if (job != null){
+			job.setTotal(urls.length);
+		}
+
+		Fetch[] fetches = new Fetch[urls.length];
+		for (int i = 0; i < urls.length; i++){
+			String host = null;
+			try {
+				URL url = new URL(urls[i]);
+				String protocol = url.getProtocol();
+				if (protocol.equals("http") || protocol.equals("https")){
+					host = url.getHost().toLowerCase() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+				}
+			} catch (IOException e){
+				// Not a URL
+			}
+
+			fetches[i] = new Fetch(urls[i], host, sink, job);
+			if (host == null){
+				fetches[i].finish("Not an http URL: " + urls[i]);
+			} else {
+				start(fetches[i]);
+			}
+		}
+
+		Result ret = new Result();
+		try {
+			for (Fetch fetch : fetches){
+				fetch.done.await();
+				if (fetch.failure != null){
+					fetchFailures.inc();
+					ret.failed.add(fetch.url);
+					ret.reasons.add(fetch.failure);
+				}
+			}
+		} finally {
+			synchronized (hosts){
+				pending -= urls.length;
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Stops the threads, fetches still running are abandoned, the others fail
+	 */
+	public void shutdown(){
+		ArrayList<Fetch> waiting = new ArrayList<Fetch>();
+		synchronized (hosts){
+			closed = true;
+			for (Host host : hosts.values()){
+				waiting.addAll(host.waiting);
+				host.waiting.clear();
+			}
+			waiting.addAll(retrying);
+			retrying.clear();
+		}
+
+		retryTimer.shutdownNow();
+		for (Runnable queued : executor.shutdownNow()){
+			waiting.add((Fetch) queued);
+		}
+		for (Fetch fetch : waiting){
+			fetch.cancel();
+		}
+	}
+
+	/**
+	 *  Runs a fetch if its host has a free connection, otherwise queues it behind the host's
+	 */
+	private void start(Fetch fetch){
+		synchronized (hosts){
+			if (closed){
+				fetch.cancel();
+				return;
+			}
+
+			Host host = hosts.get(fetch.host);
+			if (host == null){
+				host = new Host();
+				hosts.put(fetch.host, host);
+			}
+
+			if (host.running >= perHost){
+				host.waiting.add(fetch);
+				return;
+			}
+			host.running++;
+		}
+
+		execute(fetch);
+	}
+
+	/**
+	 *  Hands the connection of a fetch that finished, or waits to retry, to the next URL of its host
+	 *  @param key null for a URL that never held one
+	 */
+	private void release(String key){
+		if (key == null){
+			return;
+		}
+
+		Fetch next;
+		synchronized (hosts){
+			Host host = hosts.get(key);
+			next = host.waiting.poll();
+			if (next == null){
+				host.running--;
+				if (host.running == 0 && host.waiting.isEmpty()){
+					hosts.remove(key);
+				}
+				return;
+			}
+		}
+
+		execute(next);
+	}
+
+	private void execute(Fetch fetch){
+		try {
+			executor.execute(fetch);
+		} catch (RejectedExecutionException e){
+			fetch.cancel();
+		}
+	}
+
+	private void fetchOnce(URL url, Sink sink) throws Exception {
+		HttpURLConnection con;
+		int status;
+		try {
+			con = (HttpURLConnection) url.openConnection();
+			con.setConnectTimeout(connectTimeout);
+			con.setReadTimeout(readTimeout);
+			con.setInstanceFollowRedirects(true);
+			status = con.getResponseCode();
+		} catch (IOException e){
+			throw new RetryableException(url + ": " + e.getMessage());
+		}
+
+		if (status != HttpURLConnection.HTTP_OK){
+			// Read the error body so the connection can be reused
+			InputStream error = con.getErrorStream();
+			if (error != null){
+				try {
+					byte[] buffer = new byte[8192];
+					while (error.read(buffer) != -1){
+					}
+				} catch (IOException e){
+					// Not reused then
+				} finally {
+					error.close();
+				}
+			}
+
+			String message = url + ": HTTP " + status;
+			if (status >= 500 || status == 429){
+				throw new RetryableException(message);
+			}
+			throw new Exception(message);
+		}
+
+		InputStream body = con.getInputStream();
+		try {
+			sink.fetched(url, con.getContentType(), body);
+		} catch (IOException e){
+			// The connection broke (or timed out) part way
+			throw new RetryableException(url + ": " + e.getMessage());
+		} finally {
+			body.close();
+		}
+	}
+
+	/**
+	 * A failure that may not happen again
+	 */
+	@SuppressWarnings("serial")
+	private static class RetryableException extends Exception {
+		RetryableException(String message){
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,529 @@
+package edu.ucla.loni.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import edu.ucla.loni.shared.PipefileVersion;
+
+/**
+ * Keeps the prior versions of pipefiles, so overwriting, moving or removing one can be undone
+ * <p>
+ * Each pipefile has one append-only file in the history directory, named by a hash of its
+ * absolutePath and renamed with it when it is moved (appended to the history already at the
+ * new path, if there is one). A version is stored as a line delta
+ * against the previous version (copy runs of lines from it, plus inserted lines), every
+ * KEYFRAME_INTERVAL-th version in full, all deflated. Rebuilding a version applies at most
+ * KEYFRAME_INTERVAL - 1 deltas. Pipefiles are XML with one element per line or so, an edit
+ * to an attribute costs about one line.
+ * <p>
+ * Format (big endian):<br>
+ * int MAGIC, then for each version: long time, UTF operation, boolean keyframe,
+ * int length and that many deflated bytes. A version cut short by a crash is dropped.
+ * <br>
+ * Delta: COPY int line int count, INSERT int count then int length and bytes per line, END.
+ */
+public class VersionHistory {
+	private static final int MAGIC = 0x534c4d48;	// "SLMH"
+
+	/**
+	 *  Every KEYFRAME_INTERVAL-th version is stored in full
+	 */
+	private static final int KEYFRAME_INTERVAL = 16;
+
+	private static final byte END = 0;
+	private static final byte COPY = 1;
+	private static final byte INSERT = 2;
+
+	/**
+	 *  Most earlier positions of a line tried as the start of a copy
+	 */
+	private static final int MAX_CANDIDATES = 8;
+
+	// Lines are compared as Strings, ISO-8859-1 maps every byte to one char
+	private static final Charset BYTES = Charset.forName("ISO-8859-1");
+
+	private static final Metrics.Counter recorded =
+		Metrics.counter("slm_history_versions_total", "Pipefile versions recorded in the history");
+	private static final Metrics.Counter storedBytes =
+		Metrics.counter("slm_history_bytes_total", "Bytes written to the history, versions are deltas");
+
+	private final File directory;
+
+	/**
+	 *  A version's place in its history file
+	 */
+	private static class Entry {
+		long time;
+		String operation;
+		boolean keyframe;
+		long offset;	// Of the deflated bytes
+		int length;
+	}
+
+	/**
+	 *  @param directory where the history files are kept
+	 */
+	public VersionHistory(File directory){
+		this.directory = directory;
+	}
+
+	/**
+	 *  Records the current content of a pipefile as a version, before it is changed or removed.
+	 *  Nothing is recorded if the file does not exist or is the same as the last version.
+	 *  @param operation what is about to happen to it ("update", "move", "remove", ...)
+	 *  @return the version recorded, to discard if the change does not happen, 0 if none was
+	 */
+	public synchronized int record(String absolutePath, String operation) throws IOException {
+		File f = new File(absolutePath);
+		if (f.isFile() == false){
+			return 0;
+		}
+
+		byte[] content = Files.readAllBytes(f.toPath());
+
+		RandomAccessFile raf = open(absolutePath, true);
+		try {
+			ArrayList<Entry> entries = entries(raf);
+			byte[] previous = entries.isEmpty() ? null : get(raf, entries, entries.size());
+			if (previous != null && Arrays.equals(previous, content)){
+				return 0;
+			}
+
+			append(raf, entries, previous, content, System.currentTimeMillis(), operation);
+			return entries.size();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 *  Drops a version recorded for a change that did not happen, unless a later one was recorded since
+	 *  @param version as returned by record, nothing is dropped for 0
+	 */
+	public synchronized void discard(String absolutePath, int version) throws IOException {
+		if (version == 0){
+			return;
+		}
+
+		RandomAccessFile raf = open(absolutePath, false);
+		if (raf == null){
+			return;
+		}
+
+		boolean empty;
+		try {
+			ArrayList<Entry> entries = entries(raf);
+			if (entries.size() != version){
+				return;
+			}
+
+			raf.setLength(version == 1 ? 4 : end(entries.get(version - 2)));
+			empty = version == 1;
+		} finally {
+			raf.close();
+		}
+
+		if (empty){
+			file(absolutePath).delete();
+		}
+	}
+
+	/**
+	 *  Appends a version after the complete ones, as a delta unless it is a keyframe
+	 *  @param previous the content of the last version, null if there is none
+	 */
+	private static void append(RandomAccessFile raf, ArrayList<Entry> entries, byte[] previous, byte[] content, 
+			long time, String operation) throws IOException {
+		boolean keyframe = entries.size() % KEYFRAME_INTERVAL == 0;
+		byte[] data = deflate(keyframe ? content : delta(previous, content));
+
+		// Drops a version left half written
+		raf.setLength(entries.isEmpty() ? 4 : end(entries.get(entries.size() - 1)));
+		raf.seek(raf.length());
+		raf.writeLong(time);
+		raf.writeUTF(operation);
+		raf.writeBoolean(keyframe);
+		raf.writeInt(data.length);
+		raf.write(data);
+		raf.getFD().sync();
+
+		Entry e = new Entry();
+		e.time = time;
+		e.operation = operation;
+		e.keyframe = keyframe;
+		e.length = data.length;
+		e.offset = raf.length() - data.length;
+		entries.add(e);
+
+		recorded.inc();
+		storedBytes.add(data.length);
+	}
+
+	/**
+	 *  @return the versions of a pipefile, oldest first
+	 */
+	public synchronized PipefileVersion[] list(String absolutePath) throws IOException {
+		RandomAccessFile raf = open(absolutePath, false);
+		if (raf == null){
+			return new PipefileVersion[0];
+		}
+
+		try {
+			ArrayList<Entry> entries = entries(raf);
+			PipefileVersion[] ret = new PipefileVersion[entries.size()];
+			for (int i = 0; i < ret.length; i++){
+				Entry e = entries.get(i);
+				ret[i] = new PipefileVersion();
+				ret[i].absolutePath = absolutePath;
+				ret[i].version = i + 1;
+				ret[i].time = new Date(e.time);
+				ret[i].operation = e.operation;
+			}
+			return ret;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 *  @param version from 1, as numbered by list
+	 *  @return the content of the version, or null if there is no such version
+	 */
+	public synchronized byte[] get(String absolutePath, int version) throws IOException {
+		RandomAccessFile raf = open(absolutePath, false);
+		if (raf == null){
+			return null;
+		}
+
+		try {
+			ArrayList<Entry> entries = entries(raf);
+			if (version < 1 || version > entries.size()){
+				return null;
+			}
+			return get(raf, entries, version);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 *  Moves the history of a pipefile along with it. If the new path has a history already
+	 *  (a file was moved over another), the moved versions are appended to it, so both are kept.
+	 *  Can be repeated: versions already appended are not appended again.
+	 */
+	public synchronized void rename(String oldPath, String newPath) throws IOException {
+		File from = file(oldPath);
+		if (from.exists() == false || oldPath.equals(newPath)){
+			return;
+		}
+
+		File to = file(newPath);
+		if (from.length() == 0){
+			from.delete(); // Created by a call cut short, holds no version
+			return;
+		}
+		if (to.exists() == false){
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return;
+		}
+
+		RandomAccessFile source = new RandomAccessFile(from, "r");
+		RandomAccessFile dest = new RandomAccessFile(to, "rw");
+		try {
+			ArrayList<Entry> moved = entries(source);
+			ArrayList<Entry> entries = entries(dest);
+
+			// Appended by an earlier call cut short before the old file was deleted
+			HashSet<String> present = new HashSet<String>();
+			for (Entry e : entries){
+				present.add(e.time + "\n" + e.operation);
+			}
+
+			byte[] previous = entries.isEmpty() ? null : get(dest, entries, entries.size());
+			for (int i = 1; i <= moved.size(); i++){
+				Entry e = moved.get(i - 1);
+				if (present.contains(e.time + "\n" + e.operation)){
+					continue;
+				}
+
+				byte[] content = get(source, moved, i);
+				append(dest, entries, previous, content, e.time, e.operation);
+				previous = content;
+			}
+		} finally {
+			source.close();
+			dest.close();
+		}
+
+		from.delete();
+	}
+
+	/**
+	 *  Rebuilds a version from the keyframe before it
+	 */
+	private static byte[] get(RandomAccessFile raf, ArrayList<Entry> entries, int version) throws IOException {
+		int first = version - 1;
+		while (entries.get(first).keyframe == false){
+			first--;
+		}
+
+		byte[] ret = inflate(read(raf, entries.get(first)));
+		for (int i = first + 1; i < version; i++){
+			ret = apply(ret, inflate(read(raf, entries.get(i))));
+		}
+
+		return ret;
+	}
+
+	/**
+	 *  @return the complete versions in the file
+	 */
+	private static ArrayList<Entry> entries(RandomAccessFile raf) throws IOException {
+		ArrayList<Entry> ret = new ArrayList<Entry>();
+		if (raf.length() == 0){
+			raf.writeInt(MAGIC);
+			return ret;
+		}
+
+		raf.seek(0);
+		if (raf.readInt() != MAGIC){
+			throw new IOException("Not a history file");
+		}
+
+		try {
+			while (raf.getFilePointer() < raf.length()){
+				Entry e = new Entry();
+				e.time = raf.readLong();
+				e.operation = raf.readUTF();
+				e.keyframe = raf.readBoolean();
+				e.length = raf.readInt();
+				e.offset = raf.getFilePointer();
+				if (e.length < 0 || end(e) > raf.length()){
+					break;
+				}
+
+				raf.seek(end(e));
+				ret.add(e);
+			}
+		} catch (EOFException e){
+			// Cut short by a crash
+		}
+
+		return ret;
+	}
+
+	private static long end(Entry e){
+		return e.offset + e.length;
+	}
+
+	private static byte[] read(RandomAccessFile raf, Entry e) throws IOException {
+		byte[] ret = new byte[e.length];
+		raf.seek(e.offset);
+		raf.readFully(ret);
+		return ret;
+	}
+
+	/**
+	 *  @param create create the file if it does not exist
+	 *  @return the history file of a pipefile, null if it does not exist and create is false
+	 */
+	private RandomAccessFile open(String absolutePath, boolean create) throws IOException {
+		File f = file(absolutePath);
+		if (f.exists() == false){
+			if (create == false){
+				return null;
+			}
+			directory.mkdirs();
+		}
+
+		return new RandomAccessFile(f, "rw");
+	}
+
+	private File file(String absolutePath){
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(absolutePath.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for (byte b : hash){
+				name.append(String.format("%02x", b));
+			}
+			return new File(directory, name.append(".hist").toString());
+		} catch (Exception e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 *  @return the delta turning base into target
+	 */
+	static byte[] delta(byte[] base, byte[] target) throws IOException {
+		String[] baseLines = lines(base);
+		String[] targetLines = lines(target);
+
+		HashMap<String, ArrayList<Integer>> positions = new HashMap<String, ArrayList<Integer>>();
+		for (int i = 0; i < baseLines.length; i++){
+			ArrayList<Integer> p = positions.get(baseLines[i]);
+			if (p == null){
+				p = new ArrayList<Integer>(1);
+				positions.put(baseLines[i], p);
+			}
+			if (p.size() < MAX_CANDIDATES){
+				p.add(i);
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		ArrayList<String> inserted = new ArrayList<String>();
+		int next = 0;	// Base line after the last copy, the likeliest to match
+
+		int i = 0;
+		while (i < targetLines.length){
+			int bestStart = -1, bestLength = 0;
+
+			ArrayList<Integer> candidates = positions.get(targetLines[i]);
+			if (candidates != null){
+				ArrayList<Integer> starts = new ArrayList<Integer>(candidates);
+				if (next < baseLines.length && baseLines[next].equals(targetLines[i])){
+					starts.add(0, next);
+				}
+
+				for (int start : starts){
+					int length = 0;
+					while (start + length < baseLines.length && i + length < targetLines.length
+							&& baseLines[start + length].equals(targetLines[i + length])){
+						length++;
+					}
+					if (length > bestLength){
+						bestStart = start;
+						bestLength = length;
+					}
+				}
+			}
+
+			if (bestLength == 0){
+				inserted.add(targetLines[i]);
+				i++;
+				continue;
+			}
+
+			writeInserted(out, inserted);
+			out.writeByte(COPY);
+			out.writeInt(bestStart);
+			out.writeInt(bestLength);
+			next = bestStart + bestLength;
+			i += bestLength;
+		}
+
+		writeInserted(out, inserted);
+		out.writeByte(END);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 *  @return the target the delta was made for
+	 */
+	static byte[] apply(byte[] base, byte[] delta) throws IOException {
+		String[] baseLines = lines(base);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+		ByteArrayOutputStream ret = new ByteArrayOutputStream(base.length);
+
+		for (byte op = in.readByte(); op != END; op = in.readByte()){
+			if (op == COPY){
+				int start = in.readInt();
+				int count = in.readInt();
+				for (int i = start; i < start + count; i++){
+					byte[] line = baseLines[i].getBytes(BYTES);
+					ret.write(line, 0, line.length);
+				}
+			} else if (op == INSERT){
+				int count = in.readInt();
+				for (int i = 0; i < count; i++){
+					byte[] line = new byte[in.readInt()];
+					in.readFully(line);
+					ret.write(line, 0, line.length);
+				}
+			} else {
+				throw new IOException("Corrupt delta");
+			}
+		}
+
+		return ret.toByteArray();
+	}
+
+	private static void writeInserted(DataOutputStream out, ArrayList<String> inserted) throws IOException {
+		if (inserted.isEmpty()){
+			return;
+		}
+
+		out.writeByte(INSERT);
+		out.writeInt(inserted.size());
+		for (String line : inserted){
+			byte[] bytes = line.getBytes(BYTES);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		inserted.clear();
+	}
+
+	/**
+	 *  @return the lines of the content, each with its line terminator
+	 */
+	private static String[] lines(byte[] content){
+		String s = new String(content, BYTES);
+		ArrayList<String> ret = new ArrayList<String>();
+
+		int start = 0;
+		for (int i = 0; i < s.length(); i++){
+			if (s.charAt(i) == '\n'){
+				ret.add(s.substring(start, i + 1));
+				start = i + 1;
+			}
+		}
+		if (start < s.length()){
+			ret.add(s.substring(start));
+		}
+
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	private static byte[] deflate(byte[] data) throws IOException {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		DeflaterOutputStream out = new DeflaterOutputStream(ret);
+		out.write(data);
+		out.close();
+		return ret.toByteArray();
+	}
+
+	private static byte[] inflate(byte[] data) throws IOException {
+		InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream ret = new ByteArrayOutputStream(data.length * 4);
+		byte[] buffer = new byte[8192];
+		int length;
+		while ((length = in.read(buffer)) != -1){
+			ret.write(buffer, 0, length);
+		}
+		in.close();
+		return ret.toByteArray();
+	}
+}
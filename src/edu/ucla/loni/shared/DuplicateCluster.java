@@ -0,0 +1,9 @@
+package edu.ucla.loni.shared;
+
+import java.io.Serializable;
+
+@SuppressWarnings("serial")
+public class DuplicateCluster implements Serializable {
+	public String key;			// Content hash, or hash of the normalized metadata
+	public Pipefile[] files;	// At least two
+}
@@ -0,0 +1,10 @@
+package edu.ucla.loni.shared;
+
+import java.io.Serializable;
+
+@SuppressWarnings("serial")
+public class Facet implements Serializable {
+	public String field;	// "type", "packageName", "tag", "input" or "output"
+	public String value;
+	public int count;		// Matching files with this value, unused in filters
+}
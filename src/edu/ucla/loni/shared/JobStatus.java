@@ -0,0 +1,18 @@
+package edu.ucla.loni.shared;
+
+import java.io.Serializable;
+
+@SuppressWarnings("serial")
+public class JobStatus implements Serializable {
+	public int id;
+	public String type;			// "scan", "remove", "copy", "move", "import" or "urlimport"
+	public String state;		// "Queued", "Running", "Done" or "Failed"
+	
+	// Progress, total is 0 until it is known
+	public int done;
+	public int total;
+	
+	public String message;		// Error message when Failed
+	public Pipefile[] result;	// Files of the root when a scan or import is Done
+	public String version;		// Catalog version of a refresh, result is null if the caller has it already
+}
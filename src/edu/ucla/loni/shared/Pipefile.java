@@ -12,9 +12,11 @@ public class Pipefile implements Serializable {
 	public String description;
 	public String tags;
 	public String access;
+	public String contentHash;	// SHA-1 of the file, set by the scan
 	
 	// Type specific properties
-	// TODO input / output 		- For Data
+	public String inputs;		// - For Modules and Data, one line per parameter: name, format type
+	public String outputs;		//   and file types (name:extension, comma separated), tab separated
 	public String location;		// - For Modules
 	public String uri;			// - For Modules and Workflows
 }
@@ -0,0 +1,12 @@
+package edu.ucla.loni.shared;
+
+import java.io.Serializable;
+import java.util.Date;
+
+@SuppressWarnings("serial")
+public class PipefileVersion implements Serializable {
+	public String absolutePath;
+	public int version;			// From 1, oldest first
+	public Date time;			// When it was replaced
+	public String operation;	// What replaced it: "move", "remove", "import" or "restore"
+}
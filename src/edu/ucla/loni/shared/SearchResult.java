@@ -0,0 +1,17 @@
+package edu.ucla.loni.shared;
+
+import java.io.Serializable;
+
+@SuppressWarnings("serial")
+public class SearchResult implements Serializable {
+	public Pipefile[] files;
+	
+	// Number of results, more than files.length when only a page of them was asked for
+	public int total;
+	
+	// Roots of a federated query that failed or did not answer in time, null if none
+	public String[] incompleteRoots;
+	
+	// Counts of the files by type, package and tag, most common first
+	public Facet[] facets;
+}
@@ -0,0 +1,21 @@
+package edu.ucla.loni.shared;
+
+import java.io.Serializable;
+
+/**
+ * Thrown by an RPC the server turned away instead of running, it can be retried later
+ */
+@SuppressWarnings("serial")
+public class ServerBusyException extends Exception implements Serializable {
+	public boolean rateLimited;	// Too many calls from this session, otherwise too many from everyone
+	public int retryAfter;		// Seconds to wait before trying again
+	
+	public ServerBusyException(){
+	}
+	
+	public ServerBusyException(String message, boolean rateLimited, int retryAfter){
+		super(message);
+		this.rateLimited = rateLimited;
+		this.retryAfter = retryAfter;
+	}
+}